@@ -0,0 +1,71 @@
+package com.example.cameralibrary;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * OutputStream that writes into a ByteBuffer from the
+ * ByteBufferPool, trading up to a larger pooled buffer when
+ * the current one fills.
+ */
+class ByteBufferOutputStream extends OutputStream {
+    private final ByteBufferPool pool;
+    private ByteBuffer buffer;
+
+    ByteBufferOutputStream(ByteBufferPool pool, int initialCapacity) {
+        this.pool=pool;
+        this.buffer=pool.acquire(initialCapacity);
+    }
+
+    @Override
+    public void write(int b) {
+        ensureRemaining(1);
+        buffer.put((byte)b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ensureRemaining(len);
+        buffer.put(b, off, len);
+    }
+
+    /**
+     * @return a read-only view of the bytes written so far;
+     *         only valid until release() is called
+     */
+    ByteBuffer toReadOnlyBuffer() {
+        ByteBuffer result=buffer.duplicate();
+
+        result.flip();
+
+        return(result.asReadOnlyBuffer());
+    }
+
+    /**
+     * Returns the underlying buffer to the pool.
+     */
+    void release() {
+        if (buffer != null) {
+            pool.release(buffer);
+            buffer=null;
+        }
+    }
+
+    @Override
+    public void close() {
+        // no-op; call release() once the bytes are consumed
+    }
+
+    private void ensureRemaining(int needed) {
+        if (buffer.remaining() < needed) {
+            int capacity=Math.max(buffer.capacity() * 2,
+                    buffer.position() + needed);
+            ByteBuffer bigger=pool.acquire(capacity);
+
+            buffer.flip();
+            bigger.put(buffer);
+            pool.release(buffer);
+            buffer=bigger;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.example.cameralibrary;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Small pool of direct ByteBuffers, so that encoding a
+ * picture does not allocate (and later collect) a fresh
+ * multi-megabyte array each time.
+ *
+ * Buffers waiting in the pool count against the
+ * CaptureMemoryBudget, as any other capture memory does; a
+ * buffer the budget cannot spare is dropped rather than
+ * pooled. trim() gives them all up, which ImageCleanupTask
+ * does before settling for a sampled picture, and the pool
+ * does itself in onTrimMemory().
+ */
+public class ByteBufferPool implements ComponentCallbacks2 {
+    private static final int MIN_CAPACITY=64 * 1024;
+    private static final int MAX_POOLED=4;
+    private static volatile ByteBufferPool SINGLETON=null;
+    private final CaptureMemoryBudget budget;
+    private final ByteBuffer[] free;
+    private final CaptureMemoryBudget.Reservation[] reservations;
+
+    synchronized public static ByteBufferPool getInstance(Context ctxt) {
+        if (SINGLETON == null) {
+            SINGLETON=
+                    new ByteBufferPool(MAX_POOLED,
+                            CaptureMemoryBudget.getInstance(ctxt));
+            ctxt.getApplicationContext().registerComponentCallbacks(SINGLETON);
+        }
+
+        return(SINGLETON);
+    }
+
+    ByteBufferPool(int maxPooled, CaptureMemoryBudget budget) {
+        this.budget=budget;
+        free=new ByteBuffer[maxPooled];
+        reservations=new CaptureMemoryBudget.Reservation[maxPooled];
+    }
+
+    /**
+     * @param minCapacity
+     *          the number of bytes the buffer must hold
+     * @return a cleared direct ByteBuffer with at least
+     *         minCapacity bytes of capacity
+     */
+    synchronized public ByteBuffer acquire(int minCapacity) {
+        int best=-1;
+
+        for (int i=0; i < free.length; i++) {
+            if (free[i] != null && free[i].capacity() >= minCapacity
+                    && (best == -1 || free[i].capacity() < free[best].capacity())) {
+                best=i;
+            }
+        }
+
+        if (best >= 0) {
+            ByteBuffer result=free[best];
+
+            // from here on, the caller's own reservation
+            // covers it
+            drop(best);
+            result.clear();
+
+            return(result);
+        }
+
+        return(ByteBuffer.allocateDirect(roundUp(minCapacity)));
+    }
+
+    /**
+     * Returns a buffer to the pool. If the pool is full, the
+     * smallest pooled buffer is dropped in favor of this one,
+     * if this one is larger. If the budget cannot spare the
+     * buffer, it is not pooled.
+     *
+     * @param buffer
+     *          a buffer obtained from acquire()
+     */
+    synchronized public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+
+        int empty=-1;
+        int smallest=-1;
+
+        for (int i=0; i < free.length; i++) {
+            if (free[i] == buffer) {
+                return;
+            }
+
+            if (free[i] == null) {
+                empty=i;
+            }
+            else if (smallest == -1 || free[i].capacity() < free[smallest].capacity()) {
+                smallest=i;
+            }
+        }
+
+        int slot=empty;
+
+        if (slot < 0) {
+            if (smallest < 0 || free[smallest].capacity() >= buffer.capacity()) {
+                return;
+            }
+
+            slot=smallest;
+        }
+
+        drop(slot);
+
+        CaptureMemoryBudget.Reservation reservation=
+                budget.tryReserve("pooled buffer", buffer.capacity());
+
+        if (reservation != null) {
+            free[slot]=buffer;
+            reservations[slot]=reservation;
+        }
+    }
+
+    /**
+     * Drops every pooled buffer, giving its memory back to
+     * the CaptureMemoryBudget.
+     *
+     * @return true if anything was pooled
+     */
+    synchronized public boolean trim() {
+        boolean result=false;
+
+        for (int i=0; i < free.length; i++) {
+            if (free[i] != null) {
+                drop(i);
+                result=true;
+            }
+        }
+
+        return(result);
+    }
+
+    /**
+     * @return the bytes held by pooled buffers
+     */
+    synchronized public long getPooledBytes() {
+        long result=0;
+
+        for (ByteBuffer buffer : free) {
+            if (buffer != null) {
+                result+=buffer.capacity();
+            }
+        }
+
+        return(result);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            trim();
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        trim();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        // no-op
+    }
+
+    private void drop(int slot) {
+        free[slot]=null;
+
+        if (reservations[slot] != null) {
+            reservations[slot].release();
+            reservations[slot]=null;
+        }
+    }
+
+    private static int roundUp(int capacity) {
+        int result=MIN_CAPACITY;
+
+        while (result < capacity && result > 0) {
+            result<<=1;
+        }
+
+        return(result > 0 ? result : capacity);
+    }
+}
@@ -0,0 +1,1537 @@
+package com.example.cameralibrary;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.SurfaceTexture;
+import android.hardware.Camera;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CaptureFailure;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.TotalCaptureResult;
+import android.hardware.camera2.params.Face;
+import android.hardware.camera2.params.MeteringRectangle;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
+import android.media.MediaRecorder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.Range;
+import android.util.Rational;
+import android.util.Size;
+import android.util.SizeF;
+import android.view.Surface;
+import android.view.SurfaceView;
+import android.view.TextureView;
+import android.view.View;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A CameraBackend on the android.hardware.camera2 API, for
+ * devices where the DeviceProfile asks for it (useCamera2).
+ * CameraHost still sees the Camera.Parameters it always
+ * has: they start out as what the CameraCharacteristics
+ * say the device supports, and each setParameters() is
+ * translated into the preview's repeating CaptureRequest
+ * (focus and flash modes, focus and metering areas, zoom,
+ * exposure compensation) and, for pictures, the JPEG
+ * rotation and quality. The SDK cannot create
+ * Camera.Parameters, so the Factory takes a
+ * ParametersSupplier for them. Camera indexes are positions
+ * in the Camera2 id list.
+ *
+ * The preview runs as a repeating request to the preview
+ * strategy's widget, plus a YUV ImageReader, converted to
+ * NV21, while a preview callback is registered. Pictures
+ * are captured through a JPEG ImageReader. The sensor
+ * timestamp of each preview frame and picture is kept, via
+ * getLastFrameTimestamp() and getLastPictureTimestamp().
+ *
+ * Camera2 callbacks arrive on a thread of their own; the
+ * Camera callbacks built on them are delivered on the
+ * Looper of the thread that opened the backend, as with a
+ * Camera, including the ErrorCallback, should the device
+ * be disconnected or fail. Video recording is not
+ * supported, and the preview is not rotated for display;
+ * use RotationMode.TRANSFORM.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+class Camera2Backend implements CameraBackend {
+    private static final long OPEN_TIMEOUT_MS=2500;
+    private static final int DEFAULT_JPEG_QUALITY=95;
+    private static final int ZOOM_STEP=10;
+    private static final int MAX_AUTO_FOCUS_FRAMES=90;
+    private static final int MAX_QUEUED_BUFFERS=16;
+    private static HandlerThread thread;
+    private static Handler callbackHandler;
+
+    static {
+        thread=new HandlerThread("CWAC_CAMERA2", Thread.MAX_PRIORITY);
+        thread.start();
+        callbackHandler=new Handler(thread.getLooper());
+    }
+
+    static class Factory implements CameraBackend.Factory {
+        private final CameraManager manager;
+        private final ParametersSupplier parameters;
+        private final Map<String, String> templates=
+                new HashMap<String, String>();
+        private String[] ids=null;
+
+        /**
+         * @param parameters
+         *          the source of the Camera.Parameters handed
+         *          to CameraView, one per getParameters()
+         */
+        Factory(Context ctxt, ParametersSupplier parameters) {
+            manager=
+                    (CameraManager)ctxt.getApplicationContext()
+                            .getSystemService(Context.CAMERA_SERVICE);
+            this.parameters=parameters;
+        }
+
+        // Camera2 ids are strings, and need not be numbers, so
+        // CameraView's indexes are positions in the id list
+
+        @Override
+        public synchronized int getNumberOfCameras() {
+            try {
+                ids=manager.getCameraIdList();
+            }
+            catch (CameraAccessException e) {
+                Log.e(CameraView.TAG, "Could not list cameras", e);
+                ids=new String[0];
+            }
+
+            return(ids.length);
+        }
+
+        @Override
+        public void getCameraInfo(int cameraId, Camera.CameraInfo info) {
+            CameraCharacteristics chars=getCharacteristics(getId(cameraId));
+            Integer facing=chars.get(CameraCharacteristics.LENS_FACING);
+            Integer orientation=
+                    chars.get(CameraCharacteristics.SENSOR_ORIENTATION);
+
+            info.facing=
+                    (facing != null
+                            && facing == CameraCharacteristics.LENS_FACING_FRONT)
+                            ? Camera.CameraInfo.CAMERA_FACING_FRONT
+                            : Camera.CameraInfo.CAMERA_FACING_BACK;
+            info.orientation=(orientation == null ? 0 : orientation);
+        }
+
+        @Override
+        public CameraBackend open(int cameraId) {
+            String id=getId(cameraId);
+            CameraCharacteristics chars=getCharacteristics(id);
+            String template=getTemplate(id, chars);
+            OpenCallback callback=new OpenCallback();
+
+            try {
+                manager.openCamera(id, callback, callbackHandler);
+            }
+            catch (CameraAccessException | SecurityException e) {
+                throw new RuntimeException("Could not open camera " + id, e);
+            }
+
+            try {
+                await(callback.latch);
+            }
+            catch (RuntimeException e) {
+                callback.abandon();
+                throw e;
+            }
+
+            CameraDevice device=callback.getDevice();
+
+            if (device == null) {
+                throw new RuntimeException("Could not open camera " + id);
+            }
+
+            Camera2Backend result=
+                    new Camera2Backend(this, device, chars, template);
+
+            if (!callback.attach(result)) {
+                result.release();
+                throw new RuntimeException("Lost camera " + id);
+            }
+
+            return(result);
+        }
+
+        Camera.Parameters newParameters() {
+            return(parameters.newParameters());
+        }
+
+        private synchronized String getId(int cameraId) {
+            if (ids == null) {
+                getNumberOfCameras();
+            }
+
+            if (cameraId < 0 || cameraId >= ids.length) {
+                throw new RuntimeException("No camera " + cameraId);
+            }
+
+            return(ids[cameraId]);
+        }
+
+        private synchronized String getTemplate(String id,
+                                                CameraCharacteristics chars) {
+            String result=templates.get(id);
+
+            if (result == null) {
+                result=toParameters(chars);
+                templates.put(id, result);
+            }
+
+            return(result);
+        }
+
+        private CameraCharacteristics getCharacteristics(String id) {
+            try {
+                return(manager.getCameraCharacteristics(id));
+            }
+            catch (CameraAccessException e) {
+                throw new RuntimeException("Could not read camera " + id, e);
+            }
+        }
+    }
+
+    // the device arrives on the Camera2 thread, possibly after
+    // open() has given up on it, in which case nobody else
+    // would ever close it; once the backend exists, failures
+    // go to it
+
+    private static class OpenCallback extends CameraDevice.StateCallback {
+        final CountDownLatch latch=new CountDownLatch(1);
+        private CameraDevice device=null;
+        private boolean abandoned=false;
+        private boolean failed=false;
+        private Camera2Backend backend=null;
+
+        @Override
+        public void onOpened(CameraDevice device) {
+            synchronized(this) {
+                if (!abandoned) {
+                    this.device=device;
+                    latch.countDown();
+
+                    return;
+                }
+            }
+
+            device.close();
+        }
+
+        @Override
+        public void onDisconnected(CameraDevice device) {
+            onFailed(device, Camera.CAMERA_ERROR_EVICTED);
+        }
+
+        @Override
+        public void onError(CameraDevice device, int error) {
+            Log.e(CameraView.TAG, "Camera error " + error);
+            onFailed(device, Camera.CAMERA_ERROR_UNKNOWN);
+        }
+
+        synchronized CameraDevice getDevice() {
+            return(device);
+        }
+
+        synchronized boolean attach(Camera2Backend backend) {
+            this.backend=backend;
+
+            return(!failed);
+        }
+
+        void abandon() {
+            CameraDevice toClose;
+
+            synchronized(this) {
+                abandoned=true;
+                toClose=device;
+                device=null;
+            }
+
+            if (toClose != null) {
+                toClose.close();
+            }
+        }
+
+        private void onFailed(CameraDevice device, int error) {
+            Camera2Backend current;
+
+            synchronized(this) {
+                current=backend;
+                this.device=null;
+                failed=true;
+            }
+
+            device.close();
+            latch.countDown();
+
+            if (current != null) {
+                current.onDeviceError(error);
+            }
+        }
+    }
+
+    private final Factory factory;
+    private final CameraDevice device;
+    private final Rect activeArray;
+    private final Handler clientHandler;
+    private volatile String flattened;
+    private int previewWidth;
+    private int previewHeight;
+    private int pictureWidth;
+    private int pictureHeight;
+    private volatile Camera.ErrorCallback errorCallback=null;
+    private View previewWidget=null;
+    private Surface previewSurface=null;
+    private ImageReader jpegReader=null;
+    private ImageReader yuvReader=null;
+    private CameraCaptureSession session=null;
+    private CaptureRequest.Builder previewRequest=null;
+    private boolean repeating=false;
+    private volatile Camera.PreviewCallback previewCallback=null;
+    private boolean withBuffer=false;
+    private final ArrayDeque<byte[]> buffers=new ArrayDeque<byte[]>();
+    private volatile Camera.AutoFocusCallback autoFocusCallback=null;
+    private int autoFocusFrames=0;
+    private volatile Camera.AutoFocusMoveCallback moveCallback=null;
+    private boolean focusMoving=false;
+    private volatile Camera.FaceDetectionListener faceListener=null;
+    private volatile boolean detectingFaces=false;
+    private boolean hadFaces=false;
+    private volatile Camera.OnZoomChangeListener zoomListener=null;
+    private volatile Camera.ShutterCallback pendingShutter=null;
+    private volatile Camera.PictureCallback pendingRaw=null;
+    private volatile Camera.PictureCallback pendingJpeg=null;
+    private volatile long lastFrameTimestamp=0;
+    private volatile long lastPictureTimestamp=0;
+
+    Camera2Backend(Factory factory, CameraDevice device,
+                   CameraCharacteristics chars, String template) {
+        Looper looper=Looper.myLooper();
+
+        this.factory=factory;
+        this.device=device;
+        this.activeArray=
+                chars.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
+        this.clientHandler=
+                new Handler(looper == null ? Looper.getMainLooper() : looper);
+        this.flattened=template;
+        setSizes(getParameters());
+    }
+
+    /**
+     * @return the sensor timestamp of the most recent preview
+     *         frame, in nanoseconds, or 0
+     */
+    long getLastFrameTimestamp() {
+        return(lastFrameTimestamp);
+    }
+
+    /**
+     * @return the sensor timestamp of the most recent
+     *         picture, in nanoseconds, or 0
+     */
+    long getLastPictureTimestamp() {
+        return(lastPictureTimestamp);
+    }
+
+    @Override
+    public Camera getCamera() {
+        return(null);
+    }
+
+    // the parameters live here in flattened form, so each
+    // getParameters() is the caller's own copy, as with a
+    // Camera
+
+    @Override
+    public Camera.Parameters getParameters() {
+        Camera.Parameters result=factory.newParameters();
+
+        result.unflatten(flattened);
+
+        return(result);
+    }
+
+    @Override
+    public void setParameters(Camera.Parameters params) {
+        boolean resized=setSizes(params);
+
+        flattened=params.flatten();
+
+        if (session != null) {
+            if (resized) {
+                boolean wasRepeating=repeating;
+
+                closeSession();
+
+                if (wasRepeating) {
+                    startPreview();
+                }
+            }
+            else if (repeating) {
+                updatePreview(params);
+            }
+        }
+    }
+
+    @Override
+    public void setErrorCallback(Camera.ErrorCallback cb) {
+        errorCallback=cb;
+    }
+
+    @Override
+    public void setDisplayOrientation(int degrees) {
+        // Camera2 has no equivalent; see RotationMode.TRANSFORM
+    }
+
+    @Override
+    public void attachPreview(PreviewStrategy strategy) {
+        previewWidget=strategy.getWidget();
+    }
+
+    @Override
+    public void startPreview() {
+        if (session == null) {
+            openSession();
+        }
+
+        if (session != null && !repeating) {
+            updatePreview(getParameters());
+        }
+    }
+
+    @Override
+    public void stopPreview() {
+        closeSession();
+    }
+
+    @Override
+    public void setPreviewCallback(Camera.PreviewCallback cb) {
+        setPreviewCallback(cb, false);
+    }
+
+    @Override
+    public void setPreviewCallbackWithBuffer(Camera.PreviewCallback cb) {
+        setPreviewCallback(cb, true);
+    }
+
+    @Override
+    public void addCallbackBuffer(byte[] buffer) {
+        synchronized(buffers) {
+            if (buffers.size() < MAX_QUEUED_BUFFERS) {
+                buffers.add(buffer);
+            }
+        }
+    }
+
+    @Override
+    public void autoFocus(Camera.AutoFocusCallback cb) {
+        int mode=getAfMode(getParameters().getFocusMode());
+
+        if (mode == CaptureRequest.CONTROL_AF_MODE_OFF
+                || mode == CaptureRequest.CONTROL_AF_MODE_EDOF
+                || session == null) {
+            deliverAutoFocus(cb, true);
+
+            return;
+        }
+
+        autoFocusFrames=0;
+        autoFocusCallback=cb;
+        trigger(CaptureRequest.CONTROL_AF_TRIGGER_START);
+    }
+
+    @Override
+    public void cancelAutoFocus() {
+        autoFocusCallback=null;
+
+        if (session != null) {
+            trigger(CaptureRequest.CONTROL_AF_TRIGGER_CANCEL);
+        }
+    }
+
+    @Override
+    public void setAutoFocusMoveCallback(Camera.AutoFocusMoveCallback cb) {
+        moveCallback=cb;
+    }
+
+    /**
+     * Captures a JPEG from the running preview session. As
+     * with a Camera, the preview stops once the picture is
+     * taken, until startPreview() is called again.
+     */
+    @Override
+    public void takePicture(Camera.ShutterCallback shutter,
+                            Camera.PictureCallback raw,
+                            Camera.PictureCallback jpeg) {
+        if (session == null) {
+            throw new RuntimeException("takePicture failed: preview is not running");
+        }
+
+        Camera.Parameters params=getParameters();
+
+        pendingShutter=shutter;
+        pendingRaw=raw;
+        pendingJpeg=jpeg;
+
+        try {
+            CaptureRequest.Builder still=
+                    device.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+
+            still.addTarget(jpegReader.getSurface());
+
+            if (previewSurface != null) {
+                still.addTarget(previewSurface);
+            }
+
+            applyParameters(still, params);
+
+            String rotation=params.get("rotation");
+
+            if (rotation != null) {
+                still.set(CaptureRequest.JPEG_ORIENTATION,
+                        Integer.parseInt(rotation));
+            }
+
+            still.set(CaptureRequest.JPEG_QUALITY, (byte)params.getJpegQuality());
+            session.capture(still.build(), stillCallback, callbackHandler);
+        }
+        catch (CameraAccessException | IllegalStateException e) {
+            pendingJpeg=null;
+            throw new RuntimeException("takePicture failed", e);
+        }
+    }
+
+    @Override
+    public void setFaceDetectionListener(Camera.FaceDetectionListener listener) {
+        faceListener=listener;
+    }
+
+    @Override
+    public void startFaceDetection() {
+        detectingFaces=true;
+        hadFaces=false;
+
+        if (repeating) {
+            updatePreview(getParameters());
+        }
+    }
+
+    @Override
+    public void stopFaceDetection() {
+        detectingFaces=false;
+
+        if (repeating) {
+            updatePreview(getParameters());
+        }
+    }
+
+    @Override
+    public void setZoomChangeListener(Camera.OnZoomChangeListener listener) {
+        zoomListener=listener;
+    }
+
+    // the crop region changes in one step
+
+    @Override
+    public void startSmoothZoom(final int value) {
+        Camera.Parameters params=getParameters();
+
+        params.setZoom(value);
+        setParameters(params);
+
+        clientHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Camera.OnZoomChangeListener listener=zoomListener;
+
+                if (listener != null) {
+                    listener.onZoomChange(value, true, null);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void stopSmoothZoom() {
+        // the zoom has always finished already
+    }
+
+    @Override
+    public boolean canRecord() {
+        return(false);
+    }
+
+    @Override
+    public void attachRecorder(MediaRecorder recorder) {
+        throw new UnsupportedOperationException(
+                "Video recording is not supported with Camera2");
+    }
+
+    @Override
+    public void lock() {
+        // nothing else uses the camera
+    }
+
+    @Override
+    public void unlock() {
+        // nothing else uses the camera
+    }
+
+    @Override
+    public void reconnect() {
+        // nothing else uses the camera
+    }
+
+    @Override
+    public void release() {
+        closeSession();
+        device.close();
+        previewCallback=null;
+        autoFocusCallback=null;
+        pendingJpeg=null;
+        clientHandler.removeCallbacksAndMessages(null);
+    }
+
+    // called on the Camera2 thread once the device has closed
+    // under us
+
+    private void onDeviceError(final int error) {
+        clientHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Camera.ErrorCallback cb=errorCallback;
+
+                if (cb != null) {
+                    cb.onError(error, null);
+                }
+            }
+        });
+    }
+
+    // records the preview and picture sizes, as changing
+    // either means a new session
+    //
+    // @return true if either changed
+
+    private boolean setSizes(Camera.Parameters params) {
+        Camera.Size preview=params.getPreviewSize();
+        Camera.Size picture=params.getPictureSize();
+        int newPreviewWidth=(preview == null ? 0 : preview.width);
+        int newPreviewHeight=(preview == null ? 0 : preview.height);
+        int newPictureWidth=(picture == null ? 0 : picture.width);
+        int newPictureHeight=(picture == null ? 0 : picture.height);
+        boolean result=
+                (newPreviewWidth != previewWidth
+                        || newPreviewHeight != previewHeight
+                        || newPictureWidth != pictureWidth
+                        || newPictureHeight != pictureHeight);
+
+        previewWidth=newPreviewWidth;
+        previewHeight=newPreviewHeight;
+        pictureWidth=newPictureWidth;
+        pictureHeight=newPictureHeight;
+
+        return(result);
+    }
+
+    private void setPreviewCallback(Camera.PreviewCallback cb,
+                                    boolean withBuffer) {
+        boolean hadCallback=(previewCallback != null);
+
+        previewCallback=cb;
+        this.withBuffer=withBuffer;
+
+        synchronized(buffers) {
+            buffers.clear();
+        }
+
+        // the YUV output is part of the session, so adding or
+        // removing it means a new session
+
+        if (session != null && hadCallback != (cb != null)) {
+            boolean wasRepeating=repeating;
+
+            closeSession();
+
+            if (wasRepeating) {
+                startPreview();
+            }
+        }
+    }
+
+    private void openSession() {
+        Camera.Parameters params=getParameters();
+        Camera.Size preview=params.getPreviewSize();
+        Camera.Size picture=params.getPictureSize();
+        List<Surface> outputs=new ArrayList<Surface>();
+
+        previewSurface=getPreviewSurface(preview);
+
+        if (previewSurface != null) {
+            outputs.add(previewSurface);
+        }
+
+        jpegReader=
+                ImageReader.newInstance(picture.width, picture.height,
+                        ImageFormat.JPEG, 2);
+        jpegReader.setOnImageAvailableListener(jpegListener, callbackHandler);
+        outputs.add(jpegReader.getSurface());
+
+        if (previewCallback != null) {
+            yuvReader=
+                    ImageReader.newInstance(preview.width, preview.height,
+                            ImageFormat.YUV_420_888, 3);
+            yuvReader.setOnImageAvailableListener(yuvListener, callbackHandler);
+            outputs.add(yuvReader.getSurface());
+        }
+
+        final CountDownLatch latch=new CountDownLatch(1);
+        final CameraCaptureSession[] configured=new CameraCaptureSession[1];
+
+        try {
+            device.createCaptureSession(outputs,
+                    new CameraCaptureSession.StateCallback() {
+                        @Override
+                        public void onConfigured(CameraCaptureSession s) {
+                            configured[0]=s;
+                            latch.countDown();
+                        }
+
+                        @Override
+                        public void onConfigureFailed(CameraCaptureSession s) {
+                            latch.countDown();
+                        }
+                    }, callbackHandler);
+        }
+        catch (CameraAccessException e) {
+            closeSession();
+            throw new RuntimeException("Could not start preview", e);
+        }
+
+        await(latch);
+
+        if (configured[0] == null) {
+            closeSession();
+            throw new RuntimeException("Could not configure preview session");
+        }
+
+        session=configured[0];
+    }
+
+    private Surface getPreviewSurface(Camera.Size size) {
+        if (previewWidget instanceof TextureView) {
+            SurfaceTexture texture=
+                    ((TextureView)previewWidget).getSurfaceTexture();
+
+            if (texture != null) {
+                texture.setDefaultBufferSize(size.width, size.height);
+
+                return(new Surface(texture));
+            }
+        }
+        else if (previewWidget instanceof SurfaceView) {
+            return(((SurfaceView)previewWidget).getHolder().getSurface());
+        }
+
+        return(null);
+    }
+
+    private void closeSession() {
+        repeating=false;
+
+        if (session != null) {
+            session.close();
+            session=null;
+        }
+
+        previewRequest=null;
+
+        if (jpegReader != null) {
+            jpegReader.close();
+            jpegReader=null;
+        }
+
+        if (yuvReader != null) {
+            yuvReader.close();
+            yuvReader=null;
+        }
+
+        if (previewSurface != null && previewWidget instanceof TextureView) {
+            previewSurface.release();
+        }
+
+        previewSurface=null;
+    }
+
+    private void updatePreview(Camera.Parameters params) {
+        try {
+            previewRequest=
+                    device.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+
+            if (previewSurface != null) {
+                previewRequest.addTarget(previewSurface);
+            }
+
+            if (yuvReader != null) {
+                previewRequest.addTarget(yuvReader.getSurface());
+            }
+
+            applyParameters(previewRequest, params);
+            session.setRepeatingRequest(previewRequest.build(),
+                    previewCallbackListener, callbackHandler);
+            repeating=true;
+        }
+        catch (CameraAccessException | IllegalStateException e) {
+            Log.e(CameraView.TAG, "Could not update preview", e);
+        }
+    }
+
+    private void trigger(int afTrigger) {
+        if (previewRequest == null) {
+            return;
+        }
+
+        try {
+            previewRequest.set(CaptureRequest.CONTROL_AF_TRIGGER, afTrigger);
+            session.capture(previewRequest.build(), previewCallbackListener,
+                    callbackHandler);
+        }
+        catch (CameraAccessException | IllegalStateException e) {
+            Log.e(CameraView.TAG, "Could not trigger autofocus", e);
+        }
+        finally {
+            previewRequest.set(CaptureRequest.CONTROL_AF_TRIGGER,
+                    CaptureRequest.CONTROL_AF_TRIGGER_IDLE);
+        }
+    }
+
+    private void applyParameters(CaptureRequest.Builder request,
+                                 Camera.Parameters params) {
+        request.set(CaptureRequest.CONTROL_MODE,
+                CaptureRequest.CONTROL_MODE_AUTO);
+
+        int afMode=getAfMode(params.getFocusMode());
+
+        request.set(CaptureRequest.CONTROL_AF_MODE, afMode);
+
+        if (afMode == CaptureRequest.CONTROL_AF_MODE_OFF
+                && Camera.Parameters.FOCUS_MODE_INFINITY.equals(params.getFocusMode())) {
+            request.set(CaptureRequest.LENS_FOCUS_DISTANCE, 0f);
+        }
+
+        applyFlashMode(request, params.getFlashMode());
+
+        request.set(CaptureRequest.CONTROL_AE_EXPOSURE_COMPENSATION,
+                params.getExposureCompensation());
+
+        if (params.getMaxNumFocusAreas() > 0) {
+            request.set(CaptureRequest.CONTROL_AF_REGIONS,
+                    toRegions(params.getFocusAreas()));
+        }
+
+        if (params.getMaxNumMeteringAreas() > 0) {
+            request.set(CaptureRequest.CONTROL_AE_REGIONS,
+                    toRegions(params.getMeteringAreas()));
+        }
+
+        if (params.isZoomSupported()) {
+            int ratio=params.getZoomRatios().get(params.getZoom());
+            int width=activeArray.width() * 100 / ratio;
+            int height=activeArray.height() * 100 / ratio;
+            int left=activeArray.left + (activeArray.width() - width) / 2;
+            int top=activeArray.top + (activeArray.height() - height) / 2;
+
+            request.set(CaptureRequest.SCALER_CROP_REGION,
+                    new Rect(left, top, left + width, top + height));
+        }
+
+        request.set(CaptureRequest.STATISTICS_FACE_DETECT_MODE,
+                detectingFaces
+                        ? CaptureRequest.STATISTICS_FACE_DETECT_MODE_SIMPLE
+                        : CaptureRequest.STATISTICS_FACE_DETECT_MODE_OFF);
+    }
+
+    // Camera.Parameters in flattened form, as a Camera would
+    // report them, from what Camera2 says the device supports
+
+    static String toParameters(CameraCharacteristics chars) {
+        StringBuilder result=new StringBuilder();
+        StreamConfigurationMap map=
+                chars.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+
+        put(result, "preview-format", "yuv420sp");
+        put(result, "preview-format-values", "yuv420sp");
+        put(result, "picture-format", "jpeg");
+        put(result, "picture-format-values", "jpeg");
+        put(result, "jpeg-quality", String.valueOf(DEFAULT_JPEG_QUALITY));
+
+        if (map != null) {
+            putSizes(result, "preview-size",
+                    map.getOutputSizes(SurfaceTexture.class));
+            putSizes(result, "picture-size",
+                    map.getOutputSizes(ImageFormat.JPEG));
+        }
+
+        putFocusModes(result, chars);
+        putFlashModes(result, chars);
+        putZoom(result, chars);
+        putFpsRanges(result, chars);
+
+        Range<Integer> compensation=
+                chars.get(CameraCharacteristics.CONTROL_AE_COMPENSATION_RANGE);
+        Rational step=
+                chars.get(CameraCharacteristics.CONTROL_AE_COMPENSATION_STEP);
+
+        if (compensation != null && step != null) {
+            put(result, "exposure-compensation", "0");
+            put(result, "min-exposure-compensation",
+                    String.valueOf(compensation.getLower()));
+            put(result, "max-exposure-compensation",
+                    String.valueOf(compensation.getUpper()));
+            put(result, "exposure-compensation-step",
+                    String.valueOf(step.floatValue()));
+        }
+
+        put(result, "max-num-focus-areas",
+                String.valueOf(getInt(chars, CameraCharacteristics.CONTROL_MAX_REGIONS_AF)));
+        put(result, "max-num-metering-areas",
+                String.valueOf(getInt(chars, CameraCharacteristics.CONTROL_MAX_REGIONS_AE)));
+        put(result, "max-num-detected-faces-hw",
+                String.valueOf(getInt(chars, CameraCharacteristics.STATISTICS_INFO_MAX_FACE_COUNT)));
+
+        float[] focalLengths=
+                chars.get(CameraCharacteristics.LENS_INFO_AVAILABLE_FOCAL_LENGTHS);
+        SizeF sensor=chars.get(CameraCharacteristics.SENSOR_INFO_PHYSICAL_SIZE);
+
+        if (focalLengths != null && focalLengths.length > 0 && sensor != null) {
+            float focal=focalLengths[0];
+
+            put(result, "focal-length", String.valueOf(focal));
+            put(result, "horizontal-view-angle",
+                    String.valueOf(getViewAngle(sensor.getWidth(), focal)));
+            put(result, "vertical-view-angle",
+                    String.valueOf(getViewAngle(sensor.getHeight(), focal)));
+        }
+
+        return(result.toString());
+    }
+
+    private static void put(StringBuilder flattened, String key,
+                            String value) {
+        if (flattened.length() > 0) {
+            flattened.append(';');
+        }
+
+        flattened.append(key).append('=').append(value);
+    }
+
+    // the first size is the default, as Camera2 lists them
+    // largest first
+
+    private static void putSizes(StringBuilder flattened, String key,
+                                 Size[] sizes) {
+        if (sizes == null || sizes.length == 0) {
+            return;
+        }
+
+        StringBuilder values=new StringBuilder();
+
+        for (Size size : sizes) {
+            if (values.length() > 0) {
+                values.append(',');
+            }
+
+            values.append(size.getWidth()).append('x').append(size.getHeight());
+        }
+
+        put(flattened, key,
+                sizes[0].getWidth() + "x" + sizes[0].getHeight());
+        put(flattened, key + "-values", values.toString());
+    }
+
+    private static void putFocusModes(StringBuilder flattened,
+                                      CameraCharacteristics chars) {
+        int[] afModes=chars.get(CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES);
+        Float minimumDistance=
+                chars.get(CameraCharacteristics.LENS_INFO_MINIMUM_FOCUS_DISTANCE);
+        List<String> modes=new ArrayList<String>();
+
+        if (afModes != null) {
+            for (int afMode : afModes) {
+                String mode=getFocusMode(afMode, minimumDistance);
+
+                if (mode != null && !modes.contains(mode)) {
+                    modes.add(mode);
+                }
+            }
+        }
+
+        if (modes.isEmpty()) {
+            modes.add(Camera.Parameters.FOCUS_MODE_FIXED);
+        }
+
+        String mode=modes.get(0);
+
+        if (modes.contains(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE)) {
+            mode=Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE;
+        }
+        else if (modes.contains(Camera.Parameters.FOCUS_MODE_AUTO)) {
+            mode=Camera.Parameters.FOCUS_MODE_AUTO;
+        }
+
+        put(flattened, "focus-mode", mode);
+        put(flattened, "focus-mode-values", TextUtils.join(",", modes));
+    }
+
+    private static String getFocusMode(int afMode, Float minimumDistance) {
+        switch (afMode) {
+            case CameraCharacteristics.CONTROL_AF_MODE_AUTO:
+                return(Camera.Parameters.FOCUS_MODE_AUTO);
+
+            case CameraCharacteristics.CONTROL_AF_MODE_MACRO:
+                return(Camera.Parameters.FOCUS_MODE_MACRO);
+
+            case CameraCharacteristics.CONTROL_AF_MODE_CONTINUOUS_VIDEO:
+                return(Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO);
+
+            case CameraCharacteristics.CONTROL_AF_MODE_CONTINUOUS_PICTURE:
+                return(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE);
+
+            case CameraCharacteristics.CONTROL_AF_MODE_EDOF:
+                return(Camera.Parameters.FOCUS_MODE_EDOF);
+
+            case CameraCharacteristics.CONTROL_AF_MODE_OFF:
+                // a minimum focus distance of 0 means the lens
+                // cannot focus at all
+                return(minimumDistance == null || minimumDistance == 0f
+                        ? Camera.Parameters.FOCUS_MODE_FIXED
+                        : Camera.Parameters.FOCUS_MODE_INFINITY);
+        }
+
+        return(null);
+    }
+
+    private static void putFlashModes(StringBuilder flattened,
+                                      CameraCharacteristics chars) {
+        if (!Boolean.TRUE.equals(chars.get(CameraCharacteristics.FLASH_INFO_AVAILABLE))) {
+            return;
+        }
+
+        String modes=
+                Camera.Parameters.FLASH_MODE_OFF + ","
+                        + Camera.Parameters.FLASH_MODE_AUTO + ","
+                        + Camera.Parameters.FLASH_MODE_ON + ","
+                        + Camera.Parameters.FLASH_MODE_TORCH;
+        int[] aeModes=chars.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_MODES);
+
+        if (aeModes != null) {
+            for (int aeMode : aeModes) {
+                if (aeMode == CameraCharacteristics.CONTROL_AE_MODE_ON_AUTO_FLASH_REDEYE) {
+                    modes+="," + Camera.Parameters.FLASH_MODE_RED_EYE;
+                }
+            }
+        }
+
+        put(flattened, "flash-mode", Camera.Parameters.FLASH_MODE_OFF);
+        put(flattened, "flash-mode-values", modes);
+    }
+
+    // Camera zoom ratios are percentages, one per zoom level
+
+    private static void putZoom(StringBuilder flattened,
+                                CameraCharacteristics chars) {
+        Float maxZoom=
+                chars.get(CameraCharacteristics.SCALER_AVAILABLE_MAX_DIGITAL_ZOOM);
+
+        if (maxZoom == null || maxZoom <= 1f) {
+            put(flattened, "zoom-supported", "false");
+
+            return;
+        }
+
+        StringBuilder ratios=new StringBuilder();
+        int levels=0;
+
+        for (int ratio=100; ratio <= maxZoom * 100; ratio+=ZOOM_STEP) {
+            if (levels > 0) {
+                ratios.append(',');
+            }
+
+            ratios.append(ratio);
+            levels++;
+        }
+
+        put(flattened, "zoom-supported", "true");
+        put(flattened, "smooth-zoom-supported", "true");
+        put(flattened, "zoom", "0");
+        put(flattened, "max-zoom", String.valueOf(levels - 1));
+        put(flattened, "zoom-ratios", ratios.toString());
+    }
+
+    // Camera frame rates are scaled by 1000; the default is
+    // the fastest range
+
+    private static void putFpsRanges(StringBuilder flattened,
+                                     CameraCharacteristics chars) {
+        Range<Integer>[] ranges=
+                chars.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+
+        if (ranges == null || ranges.length == 0) {
+            return;
+        }
+
+        StringBuilder values=new StringBuilder();
+        Range<Integer> fastest=ranges[0];
+
+        for (Range<Integer> range : ranges) {
+            if (values.length() > 0) {
+                values.append(',');
+            }
+
+            values.append('(').append(range.getLower() * 1000).append(',')
+                    .append(range.getUpper() * 1000).append(')');
+
+            if (range.getUpper() > fastest.getUpper()
+                    || (range.getUpper().equals(fastest.getUpper())
+                    && range.getLower() > fastest.getLower())) {
+                fastest=range;
+            }
+        }
+
+        put(flattened, "preview-fps-range",
+                fastest.getLower() * 1000 + "," + fastest.getUpper() * 1000);
+        put(flattened, "preview-fps-range-values", values.toString());
+        put(flattened, "preview-frame-rate",
+                String.valueOf(fastest.getUpper()));
+        put(flattened, "preview-frame-rate-values",
+                String.valueOf(fastest.getUpper()));
+    }
+
+    private static int getInt(CameraCharacteristics chars,
+                              CameraCharacteristics.Key<Integer> key) {
+        Integer result=chars.get(key);
+
+        return(result == null ? 0 : result);
+    }
+
+    private static float getViewAngle(float sensorSize, float focalLength) {
+        return((float)Math.toDegrees(2 * Math.atan(sensorSize / (2 * focalLength))));
+    }
+
+    private static int getAfMode(String focusMode) {
+        if (Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE.equals(focusMode)) {
+            return(CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+        }
+
+        if (Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO.equals(focusMode)) {
+            return(CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_VIDEO);
+        }
+
+        if (Camera.Parameters.FOCUS_MODE_AUTO.equals(focusMode)) {
+            return(CaptureRequest.CONTROL_AF_MODE_AUTO);
+        }
+
+        if (Camera.Parameters.FOCUS_MODE_MACRO.equals(focusMode)) {
+            return(CaptureRequest.CONTROL_AF_MODE_MACRO);
+        }
+
+        if (Camera.Parameters.FOCUS_MODE_EDOF.equals(focusMode)) {
+            return(CaptureRequest.CONTROL_AF_MODE_EDOF);
+        }
+
+        return(CaptureRequest.CONTROL_AF_MODE_OFF);
+    }
+
+    private static void applyFlashMode(CaptureRequest.Builder request,
+                                       String flashMode) {
+        int aeMode=CaptureRequest.CONTROL_AE_MODE_ON;
+        int flash=CaptureRequest.FLASH_MODE_OFF;
+
+        if (Camera.Parameters.FLASH_MODE_ON.equals(flashMode)) {
+            aeMode=CaptureRequest.CONTROL_AE_MODE_ON_ALWAYS_FLASH;
+        }
+        else if (Camera.Parameters.FLASH_MODE_AUTO.equals(flashMode)) {
+            aeMode=CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH;
+        }
+        else if (Camera.Parameters.FLASH_MODE_RED_EYE.equals(flashMode)) {
+            aeMode=CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH_REDEYE;
+        }
+        else if (Camera.Parameters.FLASH_MODE_TORCH.equals(flashMode)) {
+            flash=CaptureRequest.FLASH_MODE_TORCH;
+        }
+
+        request.set(CaptureRequest.CONTROL_AE_MODE, aeMode);
+        request.set(CaptureRequest.FLASH_MODE, flash);
+    }
+
+    // Camera.Area coordinates run from -1000 to 1000 across
+    // the field of view; Camera2 uses active array pixels
+
+    private MeteringRectangle[] toRegions(List<Camera.Area> areas) {
+        if (areas == null || areas.isEmpty()) {
+            return(null);
+        }
+
+        MeteringRectangle[] result=new MeteringRectangle[areas.size()];
+
+        for (int i=0; i < result.length; i++) {
+            Camera.Area area=areas.get(i);
+            Rect rect=new Rect(toActiveX(area.rect.left),
+                    toActiveY(area.rect.top), toActiveX(area.rect.right),
+                    toActiveY(area.rect.bottom));
+
+            result[i]=new MeteringRectangle(rect, area.weight);
+        }
+
+        return(result);
+    }
+
+    private int toActiveX(int x) {
+        return(activeArray.left + (x + 1000) * activeArray.width() / 2000);
+    }
+
+    private int toActiveY(int y) {
+        return(activeArray.top + (y + 1000) * activeArray.height() / 2000);
+    }
+
+    private int fromActiveX(int x) {
+        return((x - activeArray.left) * 2000 / activeArray.width() - 1000);
+    }
+
+    private int fromActiveY(int y) {
+        return((y - activeArray.top) * 2000 / activeArray.height() - 1000);
+    }
+
+    private void deliverAutoFocus(final Camera.AutoFocusCallback cb,
+                                  final boolean success) {
+        clientHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                cb.onAutoFocus(success, null);
+            }
+        });
+    }
+
+    // called on the Camera2 thread for every preview result
+
+    private void onPreviewResult(TotalCaptureResult result) {
+        Long timestamp=result.get(TotalCaptureResult.SENSOR_TIMESTAMP);
+
+        if (timestamp != null) {
+            lastFrameTimestamp=timestamp;
+        }
+
+        Integer afState=result.get(TotalCaptureResult.CONTROL_AF_STATE);
+
+        if (afState != null) {
+            onFocusState(afState);
+        }
+
+        if (detectingFaces) {
+            onFaces(result.get(TotalCaptureResult.STATISTICS_FACES));
+        }
+    }
+
+    private void onFocusState(int afState) {
+        Camera.AutoFocusCallback cb=autoFocusCallback;
+
+        if (cb != null) {
+            if (afState == TotalCaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED
+                    || afState == TotalCaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED) {
+                autoFocusCallback=null;
+                deliverAutoFocus(cb,
+                        afState == TotalCaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED);
+            }
+            else if (++autoFocusFrames > MAX_AUTO_FOCUS_FRAMES) {
+                autoFocusCallback=null;
+                deliverAutoFocus(cb, false);
+            }
+        }
+
+        final Camera.AutoFocusMoveCallback move=moveCallback;
+        boolean moving=
+                (afState == TotalCaptureResult.CONTROL_AF_STATE_PASSIVE_SCAN);
+
+        if (move != null && moving != focusMoving
+                && (moving
+                || afState == TotalCaptureResult.CONTROL_AF_STATE_PASSIVE_FOCUSED
+                || afState == TotalCaptureResult.CONTROL_AF_STATE_PASSIVE_UNFOCUSED)) {
+            final boolean start=moving;
+
+            focusMoving=moving;
+            clientHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    move.onAutoFocusMoving(start, null);
+                }
+            });
+        }
+    }
+
+    // reported while there are faces, and once more when the
+    // last one goes, as with a Camera
+
+    private void onFaces(Face[] faces) {
+        final Camera.FaceDetectionListener listener=faceListener;
+        boolean hasFaces=(faces != null && faces.length > 0);
+
+        if (listener == null || (!hasFaces && !hadFaces)) {
+            return;
+        }
+
+        hadFaces=hasFaces;
+
+        final Camera.Face[] converted=
+                new Camera.Face[hasFaces ? faces.length : 0];
+
+        for (int i=0; i < converted.length; i++) {
+            Rect bounds=faces[i].getBounds();
+
+            converted[i]=new Camera.Face();
+            converted[i].rect=
+                    new Rect(fromActiveX(bounds.left), fromActiveY(bounds.top),
+                            fromActiveX(bounds.right), fromActiveY(bounds.bottom));
+            converted[i].score=faces[i].getScore();
+            converted[i].id=-1;
+        }
+
+        clientHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onFaceDetection(converted, null);
+            }
+        });
+    }
+
+    private final CameraCaptureSession.CaptureCallback previewCallbackListener=
+            new CameraCaptureSession.CaptureCallback() {
+                @Override
+                public void onCaptureCompleted(CameraCaptureSession s,
+                                               CaptureRequest request,
+                                               TotalCaptureResult result) {
+                    onPreviewResult(result);
+                }
+            };
+
+    private final CameraCaptureSession.CaptureCallback stillCallback=
+            new CameraCaptureSession.CaptureCallback() {
+                @Override
+                public void onCaptureStarted(CameraCaptureSession s,
+                                             CaptureRequest request,
+                                             long timestamp, long frameNumber) {
+                    final Camera.ShutterCallback shutter=pendingShutter;
+
+                    lastPictureTimestamp=timestamp;
+
+                    if (shutter != null) {
+                        clientHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                shutter.onShutter();
+                            }
+                        });
+                    }
+                }
+
+                @Override
+                public void onCaptureFailed(CameraCaptureSession s,
+                                            CaptureRequest request,
+                                            CaptureFailure failure) {
+                    final Camera.PictureCallback jpeg=pendingJpeg;
+
+                    pendingJpeg=null;
+
+                    if (jpeg != null) {
+                        clientHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                jpeg.onPictureTaken(null, null);
+                            }
+                        });
+                    }
+                }
+            };
+
+    private final ImageReader.OnImageAvailableListener jpegListener=
+            new ImageReader.OnImageAvailableListener() {
+                @Override
+                public void onImageAvailable(ImageReader reader) {
+                    Image image=reader.acquireNextImage();
+
+                    if (image == null) {
+                        return;
+                    }
+
+                    final byte[] data;
+
+                    try {
+                        ByteBuffer buffer=image.getPlanes()[0].getBuffer();
+
+                        data=new byte[buffer.remaining()];
+                        buffer.get(data);
+                    }
+                    finally {
+                        image.close();
+                    }
+
+                    final Camera.PictureCallback raw=pendingRaw;
+                    final Camera.PictureCallback jpeg=pendingJpeg;
+
+                    pendingJpeg=null;
+                    pendingRaw=null;
+
+                    clientHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            // the preview stops with the picture, as
+                            // with a Camera
+
+                            stopRepeating();
+
+                            if (raw != null) {
+                                raw.onPictureTaken(null, null);
+                            }
+
+                            if (jpeg != null) {
+                                jpeg.onPictureTaken(data, null);
+                            }
+                        }
+                    });
+                }
+            };
+
+    private final ImageReader.OnImageAvailableListener yuvListener=
+            new ImageReader.OnImageAvailableListener() {
+                @Override
+                public void onImageAvailable(ImageReader reader) {
+                    Image image=reader.acquireLatestImage();
+
+                    if (image == null) {
+                        return;
+                    }
+
+                    final Camera.PreviewCallback cb=previewCallback;
+                    byte[] frame=null;
+
+                    try {
+                        int length=image.getWidth() * image.getHeight() * 3 / 2;
+
+                        if (cb != null) {
+                            if (withBuffer) {
+                                synchronized(buffers) {
+                                    frame=buffers.poll();
+                                }
+
+                                if (frame != null && frame.length < length) {
+                                    frame=null;
+                                }
+                            }
+                            else {
+                                frame=new byte[length];
+                            }
+                        }
+
+                        if (frame != null) {
+                            toNV21(image, frame);
+                        }
+                    }
+                    finally {
+                        image.close();
+                    }
+
+                    if (frame != null) {
+                        final byte[] delivered=frame;
+
+                        clientHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                cb.onPreviewFrame(delivered, null);
+                            }
+                        });
+                    }
+                }
+            };
+
+    private void stopRepeating() {
+        if (session != null && repeating) {
+            try {
+                session.stopRepeating();
+            }
+            catch (CameraAccessException | IllegalStateException e) {
+                Log.e(CameraView.TAG, "Could not stop preview", e);
+            }
+
+            repeating=false;
+        }
+    }
+
+    // YUV_420_888 planes may be padded and the chroma planes
+    // interleaved or not; NV21 is a tight luma plane followed
+    // by interleaved V and U
+
+    private static void toNV21(Image image, byte[] out) {
+        int width=image.getWidth();
+        int height=image.getHeight();
+        Image.Plane[] planes=image.getPlanes();
+        ByteBuffer y=planes[0].getBuffer();
+        int yRowStride=planes[0].getRowStride();
+
+        for (int row=0; row < height; row++) {
+            y.position(row * yRowStride);
+            y.get(out, row * width, width);
+        }
+
+        ByteBuffer u=planes[1].getBuffer();
+        ByteBuffer v=planes[2].getBuffer();
+        int uvRowStride=planes[1].getRowStride();
+        int uvPixelStride=planes[1].getPixelStride();
+        int offset=width * height;
+
+        for (int row=0; row < height / 2; row++) {
+            for (int col=0; col < width / 2; col++) {
+                int index=row * uvRowStride + col * uvPixelStride;
+
+                out[offset++]=v.get(index);
+                out[offset++]=u.get(index);
+            }
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            if (!latch.await(OPEN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                throw new RuntimeException("Timed out waiting for the camera");
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting for the camera", e);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.example.cameralibrary;
+
+import android.hardware.Camera;
+import android.media.MediaRecorder;
+
+import java.io.IOException;
+
+/**
+ * The camera operations CameraView needs, so the rest of
+ * the library does not call android.hardware.Camera
+ * directly. The methods mirror those of Camera, with the
+ * same threading rules: call them on the thread that opened
+ * the backend, and expect callbacks on that thread's Looper.
+ *
+ * LegacyCameraBackend wraps a real Camera and is the
+ * default. SimulatedCameraBackend stands in for one where
+ * there is no camera hardware, such as in tests.
+ *
+ * Callbacks are the standard Camera ones. Their Camera
+ * argument is whatever getCamera() returns, which is null
+ * for backends that are not built on a Camera.
+ */
+interface CameraBackend {
+    interface Factory {
+        int getNumberOfCameras();
+
+        void getCameraInfo(int cameraId, Camera.CameraInfo info);
+
+        CameraBackend open(int cameraId);
+    }
+
+    /**
+     * Creates empty Camera.Parameters, for backends that are
+     * not built on a Camera, as the SDK offers no way to
+     * create them.
+     */
+    interface ParametersSupplier {
+        Camera.Parameters newParameters();
+    }
+
+    /**
+     * @return the Camera behind this backend, if there is one,
+     *         or null
+     */
+    Camera getCamera();
+
+    Camera.Parameters getParameters();
+
+    void setParameters(Camera.Parameters params);
+
+    /**
+     * Registers for errors that end the camera's use, such as
+     * another client taking it over; after one, the backend
+     * can only be released.
+     */
+    void setErrorCallback(Camera.ErrorCallback cb);
+
+    void setDisplayOrientation(int degrees);
+
+    /**
+     * Directs the preview to the strategy's widget, as
+     * PreviewStrategy.attach() does for a Camera.
+     */
+    void attachPreview(PreviewStrategy strategy) throws IOException;
+
+    void startPreview();
+
+    void stopPreview();
+
+    void setPreviewCallback(Camera.PreviewCallback cb);
+
+    void setPreviewCallbackWithBuffer(Camera.PreviewCallback cb);
+
+    void addCallbackBuffer(byte[] buffer);
+
+    void autoFocus(Camera.AutoFocusCallback cb);
+
+    void cancelAutoFocus();
+
+    void setAutoFocusMoveCallback(Camera.AutoFocusMoveCallback cb);
+
+    void takePicture(Camera.ShutterCallback shutter,
+                     Camera.PictureCallback raw,
+                     Camera.PictureCallback jpeg);
+
+    void setFaceDetectionListener(Camera.FaceDetectionListener listener);
+
+    void startFaceDetection();
+
+    void stopFaceDetection();
+
+    void setZoomChangeListener(Camera.OnZoomChangeListener listener);
+
+    void startSmoothZoom(int value);
+
+    void stopSmoothZoom();
+
+    /**
+     * @return true if attachRecorder() can hand the camera to
+     *         a MediaRecorder; CameraView checks this before it
+     *         stops the preview or unlocks the camera
+     */
+    boolean canRecord();
+
+    /**
+     * Hands the camera to a MediaRecorder, as
+     * MediaRecorder.setCamera() does.
+     *
+     * @throws UnsupportedOperationException
+     *           if this backend cannot record
+     */
+    void attachRecorder(MediaRecorder recorder);
+
+    void lock();
+
+    void unlock();
+
+    void reconnect() throws IOException;
+
+    void release();
+}
@@ -2,6 +2,7 @@ package com.example.cameralibrary;
 
 
 import android.annotation.TargetApi;
+import android.hardware.Camera;
 import android.os.Build;
 import android.os.Bundle;
 import android.util.Log;
@@ -9,6 +10,7 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import java.io.IOException;
+import java.util.List;
 
 import androidx.fragment.app.Fragment;
 
@@ -114,9 +116,11 @@ public class CameraFragment extends Fragment {
     /**
      * Call this to take a picture and get access to a byte
      * array of data as a result (e.g., to save or stream).
+     *
+     * @return a PictureFuture to track or cancel the picture
      */
-    public void takePicture() {
-        takePicture(false, true);
+    public PictureFuture takePicture() {
+        return(takePicture(false, true));
     }
 
     /**
@@ -128,9 +132,10 @@ public class CameraFragment extends Fragment {
      * @param needByteArray
      *          true if you need to be passed a byte array
      *          result, false otherwise
+     * @return a PictureFuture to track or cancel the picture
      */
-    public void takePicture(boolean needBitmap, boolean needByteArray) {
-        cameraView.takePicture(needBitmap, needByteArray);
+    public PictureFuture takePicture(boolean needBitmap, boolean needByteArray) {
+        return(cameraView.takePicture(needBitmap, needByteArray));
     }
 
     /**
@@ -139,9 +144,10 @@ public class CameraFragment extends Fragment {
      * @param xact
      *          PictureTransaction with configuration data for
      *          the picture to be taken
+     * @return a PictureFuture to track or cancel the picture
      */
-    public void takePicture(PictureTransaction xact) {
-        cameraView.takePicture(xact);
+    public PictureFuture takePicture(PictureTransaction xact) {
+        return(cameraView.takePicture(xact));
     }
 
     /**
@@ -162,6 +168,40 @@ public class CameraFragment extends Fragment {
         cameraView.record();
     }
 
+    /**
+     * Call this to begin recording video, split into
+     * segments.
+     *
+     * @param policy
+     *          when to roll to a new segment, and how many
+     *          segments to keep
+     * @throws Exception
+     *           all sorts of things could go wrong
+     */
+    public void record(VideoSegmentPolicy policy) throws Exception {
+        cameraView.record(policy);
+    }
+
+    /**
+     * Call this while the preview is running to set up the
+     * MediaRecorder ahead of time, so that a later call to
+     * record() starts recording with minimal delay.
+     *
+     * @throws Exception
+     *           all sorts of things could go wrong
+     */
+    public void prepareRecording() throws Exception {
+        cameraView.prepareRecording();
+    }
+
+    /**
+     * Call this to release a MediaRecorder set up by
+     * prepareRecording() without recording.
+     */
+    public void cancelPreparedRecording() {
+        cameraView.cancelPreparedRecording();
+    }
+
     /**
      * Call this to stop the recording triggered earlier by a
      * call to record()
@@ -181,6 +221,15 @@ public class CameraFragment extends Fragment {
         return(cameraView.getDisplayOrientation());
     }
 
+    /**
+     * Call this to choose how display rotations are applied
+     * while the preview is running. See
+     * CameraView.setRotationMode().
+     */
+    public void setRotationMode(CameraView.RotationMode mode) {
+        cameraView.setRotationMode(mode);
+    }
+
     /**
      * Call this to lock the camera to landscape mode (with a
      * parameter of true), regardless of what the actual
@@ -254,6 +303,16 @@ public class CameraFragment extends Fragment {
         return(cameraView.zoomTo(level));
     }
 
+    /**
+     * @param ratio
+     *          the desired magnification (e.g., 2.0 for 2x)
+     * @return the zoom level, for use with zoomTo(), whose
+     *         zoom ratio is closest to the requested one
+     */
+    public int getZoomLevelForRatio(float ratio) {
+        return(cameraView.getZoomLevelForRatio(ratio));
+    }
+
     /**
      * Calls startFaceDetection() on the CameraView, which in
      * turn calls startFaceDetection() on the underlying
@@ -272,6 +331,30 @@ public class CameraFragment extends Fragment {
         cameraView.stopFaceDetection();
     }
 
+    /**
+     * Sets the focus areas, given in the coordinates of the
+     * CameraView.
+     *
+     * @param viewAreas
+     *          the areas to focus on, or null to let the
+     *          camera choose
+     */
+    public void setFocusAreas(List<Camera.Area> viewAreas) {
+        cameraView.setFocusAreas(viewAreas);
+    }
+
+    /**
+     * Sets the metering areas, given in the coordinates of
+     * the CameraView.
+     *
+     * @param viewAreas
+     *          the areas to meter, or null to let the camera
+     *          choose
+     */
+    public void setMeteringAreas(List<Camera.Area> viewAreas) {
+        cameraView.setMeteringAreas(viewAreas);
+    }
+
     public boolean doesZoomReallyWork() {
         return(cameraView.doesZoomReallyWork());
     }
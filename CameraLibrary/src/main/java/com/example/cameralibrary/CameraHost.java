@@ -5,6 +5,8 @@ package com.example.cameralibrary;
 import android.graphics.Bitmap;
 import android.hardware.Camera;
 import android.media.MediaRecorder;
+import java.io.File;
+import java.nio.ByteBuffer;
 
 
 public interface CameraHost extends Camera.AutoFocusCallback {
@@ -98,6 +100,20 @@ public interface CameraHost extends Camera.AutoFocusCallback {
      */
     void configureRecorderProfile(int cameraId, MediaRecorder recorder);
 
+    /**
+     * Called instead of configureRecorderOutput() when
+     * recording in segments, each time a new segment file is
+     * needed.
+     *
+     * @param cameraId
+     *          the camera that is being used for recording
+     * @param segment
+     *          the zero-based index of the segment within the
+     *          recording
+     * @return the file to write the segment to
+     */
+    File getVideoSegmentFile(int cameraId, int segment);
+
     /**
      * @return the ID of the camera that you want to use for
      *         previews and picture/video taking with the
@@ -204,11 +220,58 @@ public interface CameraHost extends Camera.AutoFocusCallback {
      *
      * passes image orientation
      *
+     * Not called for hosts that also implement CaptureSink;
+     * those receive the picture through that interface.
+     *
      * @param image
      *          byte array of the picture data (e.g., JPEG)
      */
     void saveImage(PictureTransaction xact, byte[] image, int imageOrientation);
 
+    /**
+     * Called when a picture has been taken and the
+     * PictureTransaction asked for a result via needResult(),
+     * before any Bitmap or byte[] output is produced. This
+     * will be called on a background thread.
+     *
+     * @param result
+     *          handle on the picture, which decodes only what
+     *          you ask it for; you own it and must close() it,
+     *          though you may do so later, on any thread
+     */
+    void saveImage(PictureTransaction xact, CaptureResult result);
+
+    /**
+     * Called when a picture has been taken and the
+     * PictureTransaction asked for a thumbnail, before the
+     * picture itself is processed. This will be called on a
+     * background thread.
+     *
+     * @param thumbnail
+     *          small Bitmap of the picture, taken from the
+     *          EXIF thumbnail where available; it is not
+     *          rotated
+     * @param imageOrientation
+     *          the orientation of the picture, in degrees
+     */
+    void onThumbnailReady(PictureTransaction xact, Bitmap thumbnail,
+                          int imageOrientation);
+
+    /**
+     * Called once for each Rendition added to the
+     * PictureTransaction, smallest first. This will be called
+     * on a background thread, one rendition at a time, though
+     * not always on the same thread.
+     *
+     * @param rendition
+     *          the Rendition that was produced
+     * @param image
+     *          read-only view of the encoded rendition, only
+     *          valid for the duration of this call
+     */
+    void saveRendition(PictureTransaction xact, Rendition rendition,
+                       ByteBuffer image);
+
     /**
      * @return true if you want the camera to keep the preview
      *         disabled after taking a picture (e.g., you want
@@ -236,6 +299,15 @@ public interface CameraHost extends Camera.AutoFocusCallback {
 
     boolean useFullBleedPreview();
 
+    /**
+     * @return the fraction of the heap (0.0-1.0) that the
+     *         cleanup of a single picture may use for its
+     *         decoded Bitmaps; pictures that would need more
+     *         are decoded with a coarser sample size, and
+     *         their byte[] output is rotated in stripes at full
+     *         size. See CaptureMemoryBudget for the
+     *         process-wide limit.
+     */
     float maxPictureCleanupHeapUsage();
 }
 
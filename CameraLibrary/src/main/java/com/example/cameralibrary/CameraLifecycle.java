@@ -0,0 +1,162 @@
+package com.example.cameralibrary;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tracks where a CameraView's camera is in its lifecycle.
+ * The state is held in an atomic, so any thread can read it
+ * cheaply and see a consistent value; transitions use
+ * compare-and-set where a transition is only valid from a
+ * particular state. Transitions are made by the camera
+ * thread, which also locks and unlocks the camera for
+ * recording. The exception is the move from
+ * PREPARED_RECORDING into RECORDING, made by whichever
+ * thread calls record(), as it follows MediaRecorder.start()
+ * there; no deferred command waits on RECORDING, so it never
+ * runs one.
+ *
+ * Commands that need a state the camera is not yet in (e.g.,
+ * autofocus before the preview has started) are deferred,
+ * and run on the camera thread by the transition into that
+ * state. Deferred commands are dropped when the camera
+ * closes.
+ *
+ * PREPARED_RECORDING means a MediaRecorder has been
+ * prepared and the camera unlocked for it, though the
+ * preview keeps running; the camera cannot take pictures,
+ * focus, or accept parameters until record() starts the
+ * recording or the prepared recording is cancelled.
+ */
+public class CameraLifecycle {
+    public enum State {
+        CLOSED, OPENING, OPEN, PREVIEWING, CAPTURING, PREPARED_RECORDING,
+        RECORDING
+    }
+
+    private final AtomicReference<State> state=
+            new AtomicReference<State>(State.CLOSED);
+    private final ConcurrentLinkedQueue<Deferred> deferred=
+            new ConcurrentLinkedQueue<Deferred>();
+
+    /**
+     * @return the current state
+     */
+    public State getState() {
+        return(state.get());
+    }
+
+    /**
+     * @return true if the camera is in the given state
+     */
+    public boolean is(State candidate) {
+        return(state.get() == candidate);
+    }
+
+    /**
+     * @return true if the camera has been opened and not yet
+     *         closed
+     */
+    public boolean isOpen() {
+        State current=state.get();
+
+        return(current != State.CLOSED && current != State.OPENING);
+    }
+
+    /**
+     * Moves from one state to another, only if the camera is
+     * still in the expected state.
+     *
+     * @return true if the transition was made
+     */
+    boolean transition(State from, State to) {
+        if (state.compareAndSet(from, to)) {
+            onEntered(to);
+
+            return(true);
+        }
+
+        return(false);
+    }
+
+    /**
+     * Moves to a state unconditionally.
+     *
+     * @return the state that was replaced
+     */
+    State moveTo(State to) {
+        State previous=state.getAndSet(to);
+
+        if (previous != to) {
+            onEntered(to);
+        }
+
+        return(previous);
+    }
+
+    /**
+     * Runs the command now if the camera is in the given
+     * state, otherwise on entry to that state. If the camera
+     * is closed, the command is dropped. Call only on the
+     * camera thread.
+     *
+     * @return false if the command was dropped
+     */
+    boolean runWhen(State target, Runnable command) {
+        State current=state.get();
+
+        if (current == target) {
+            command.run();
+        }
+        else if (current == State.CLOSED) {
+            return(false);
+        }
+        else {
+            deferred.add(new Deferred(target, command));
+        }
+
+        return(true);
+    }
+
+    /**
+     * @return the number of commands waiting for a state
+     */
+    public int getDeferredCount() {
+        return(deferred.size());
+    }
+
+    private void onEntered(State entered) {
+        if (entered == State.CLOSED) {
+            deferred.clear();
+
+            return;
+        }
+
+        for (Iterator<Deferred> i=deferred.iterator(); i.hasNext();) {
+            Deferred candidate=i.next();
+
+            // a command may itself change the state, in which
+            // case the rest wait for their turn
+
+            if (state.get() != entered) {
+                break;
+            }
+
+            if (candidate.target == entered) {
+                i.remove();
+                candidate.command.run();
+            }
+        }
+    }
+
+    private static class Deferred {
+        final State target;
+        final Runnable command;
+
+        Deferred(State target, Runnable command) {
+            this.target=target;
+            this.command=command;
+        }
+    }
+}
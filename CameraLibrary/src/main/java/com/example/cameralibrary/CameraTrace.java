@@ -0,0 +1,81 @@
+package com.example.cameralibrary;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Trace;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Named sections for system traces (systrace, Perfetto),
+ * so the CWAC_CAMERA thread and picture cleanup show up as
+ * the operations they are rather than as opaque work.
+ *
+ * Tracing is off by default. While off, each call is a
+ * single volatile read and nothing else, so the calls may
+ * stay in place in production; call setEnabled(true) to
+ * turn them on. Sections need API Level 18, and async
+ * sections (which link a capture request to its completion
+ * across threads) need API Level 29; on older devices those
+ * calls do nothing.
+ */
+public final class CameraTrace {
+    private static volatile boolean isEnabled=false;
+    private static final AtomicInteger cookies=new AtomicInteger();
+
+    private CameraTrace() {
+    }
+
+    public static void setEnabled(boolean enabled) {
+        isEnabled=enabled;
+    }
+
+    public static boolean isEnabled() {
+        return(isEnabled);
+    }
+
+    /**
+     * Opens a section on the current thread. Every begin()
+     * must be matched by an end() on the same thread, so
+     * call end() from a finally block.
+     *
+     * @param name
+     *          a constant string; do not build one per call
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    static void begin(String name) {
+        if (isEnabled
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.beginSection(name);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    static void end() {
+        if (isEnabled
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.endSection();
+        }
+    }
+
+    /**
+     * @return a cookie identifying one async section
+     */
+    static int nextCookie() {
+        return(cookies.incrementAndGet());
+    }
+
+    @TargetApi(Build.VERSION_CODES.Q)
+    static void beginAsync(String name, int cookie) {
+        if (isEnabled && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.beginAsyncSection(name, cookie);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.Q)
+    static void endAsync(String name, int cookie) {
+        if (isEnabled && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.endAsyncSection(name, cookie);
+        }
+    }
+}
@@ -4,55 +4,122 @@ import android.annotation.TargetApi;
 import android.app.Activity;
 import android.content.Context;
 import android.content.pm.ActivityInfo;
+import android.graphics.Rect;
+import android.graphics.RectF;
 import android.hardware.Camera;
 import android.hardware.Camera.AutoFocusCallback;
 import android.hardware.Camera.CameraInfo;
-import android.hardware.SensorManager;
 import android.media.MediaRecorder;
 import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.util.DisplayMetrics;
 import android.util.Log;
-import android.view.Display;
 import android.view.OrientationEventListener;
 import android.view.Surface;
 import android.view.View;
 import android.view.ViewGroup;
-import android.view.WindowManager;
 
 import com.example.cameralibrary.CameraHost.FailureReason;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
 
 public class CameraView extends ViewGroup implements AutoFocusCallback {
 
-    private static final int[] ROTATION_DEGREES = {0, 90, 180, 270};
-    private static final int UPDATE_RATE_US = 200 * 1000;
+    private static final int MAX_QUEUED_PICTURES = 8;
+    private static final long MEASURE_SETTLE_MS = 150;
+    private static final int MAX_COMMAND_DEPTH = 64;
+    private static final Rect DRIVER_BOUNDS = new Rect(-1000, -1000, 1000, 1000);
 
     static final String TAG = "CWAC-Camera";
     private PreviewStrategy previewStrategy;
     private Camera.Size previewSize;
-    private Camera camera = null;
-    private boolean inPreview = false;
+    private volatile CameraBackend camera = null;
+    private volatile CameraBackend.Factory backendFactory = null;
+    private volatile CameraBackend.ParametersSupplier parametersSupplier = null;
+    private final CameraLifecycle lifecycle = new CameraLifecycle();
     private CameraHost host = null;
-    private OnOrientationChange onOrientationChange = null;
+    private final OrientationEngine orientationEngine;
+    private volatile boolean trackPictureRotation = false;
     private int displayOrientation = -1;
+    private int cameraDisplayOrientation = 0;
+    private volatile RotationMode rotationMode = RotationMode.RESTART;
     private int outputOrientation = -1;
     private int cameraId = -1;
-    private MediaRecorder recorder = null;
-    private Camera.Parameters previewParams = null;
+    private volatile MediaRecorder recorder = null;
+    private SegmentedRecording segmentedRecording = null;
+    private volatile MediaRecorder preparedRecorder = null;
+    private CameraLifecycle.State stateBeforePrepare = null;
+    private boolean previewStoppedForRecorder = false;
+    private long recordStartLatency = -1;
+    private volatile Camera.Parameters previewParams = null;
     private boolean isDetectingFaces = false;
-    private boolean isAutoFocusing = false;
+    private volatile FaceTracker faceTracker = null;
+    private final ZoomController zoomController = new ZoomController(this);
+    private final FocusStateMachine focusState = new FocusStateMachine();
+    private PictureTransaction pendingFocusPicture = null;
+    private boolean unlockFocusAfterPicture = false;
     private Camera.PreviewCallback previewCallback;
+    private final PreviewCallbackTracker previewTracker = new PreviewCallbackTracker();
+    private final PreviewLatencyMonitor previewLatency = new PreviewLatencyMonitor();
+    private final PriorityQueue<PictureTransaction> pictureQueue =
+            new PriorityQueue<PictureTransaction>(MAX_QUEUED_PICTURES,
+                    new Comparator<PictureTransaction>() {
+                        @Override
+                        public int compare(PictureTransaction lhs, PictureTransaction rhs) {
+                            if (lhs.priority != rhs.priority) {
+                                return (lhs.priority > rhs.priority ? -1 : 1);
+                            }
+
+                            return (lhs.sequence < rhs.sequence ? -1
+                                    : (lhs.sequence == rhs.sequence ? 0 : 1));
+                        }
+                    });
+    private long pictureSequence = 0;
+    private final PreviewTransform previewTransform = new PreviewTransform();
+    private final OrientationEngine.Listener orientationListener =
+            new OrientationEngine.Listener() {
+                @Override
+                public void onDeviceOrientationChanged(int degrees) {
+                    if (trackPictureRotation) {
+                        applyPictureRotation(degrees);
+                    }
+                }
+
+                @Override
+                public void onDisplayRotationChanged(int rotation) {
+                    setCameraDisplayOrientationAsync();
+                }
+            };
+    private final LinkedHashMap<String, ParameterEdit> pendingEdits =
+            new LinkedHashMap<String, ParameterEdit>();
+    private final List<Runnable> pendingEditCallbacks = new ArrayList<Runnable>();
+    private boolean editsScheduled = false;
+    private final Object measureLock = new Object();
+    private int pendingMeasureWidth = 0;
+    private int pendingMeasureHeight = 0;
+    private int evaluatedWidth = 0;
+    private int evaluatedHeight = 0;
+    private int measureCount = 0;
+    private int measureEvaluationCount = 0;
+    private volatile int measureRestartCount = 0;
     private static HandlerThread thread;
     private static Handler handler;
 
-    private OrientationEventListener orientationEventListener;
-    private int lastRotation;
-    private WindowManager windowManager;
-
     private boolean isOrientationLocked = false;
     private boolean isOrientationHardLocked = false;
 
@@ -62,9 +129,59 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
         handler = new Handler(thread.getLooper());
     }
 
+    private final CommandDispatcher.Target commandTarget =
+            new CommandDispatcher.Target() {
+                @Override
+                public void onCommand(CommandDispatcher.Command command,
+                                      Object payload) {
+                    switch (command) {
+                        case AUTO_FOCUS:
+                            lifecycle.runWhen(CameraLifecycle.State.PREVIEWING,
+                                    autoFocusTask);
+                            break;
+
+                        case CANCEL_AUTO_FOCUS:
+                            cancelAutoFocusSync();
+                            takePendingFocusPicture();
+                            break;
+
+                        case START_PREVIEW:
+                            startPreviewSync();
+                            break;
+
+                        case STOP_PREVIEW:
+                            stopPreviewSync();
+                            break;
+
+                        case SET_PARAMETERS:
+                            setCameraParametersSync((Camera.Parameters) payload);
+                            break;
+
+                        case SET_FLASH_MODE:
+                            if (camera != null) {
+                                Camera.Parameters params = getCameraParameters();
+                                params.setFlashMode((String) payload);
+                                setCameraParametersSync(params);
+                            }
+                            break;
+
+                        case SET_PREVIEW_CALLBACK:
+                            setPreviewCallbackSync((Camera.PreviewCallback) payload);
+                            break;
+
+                        case ADD_CALLBACK_BUFFER:
+                            addPreviewCallbackBufferSync((byte[]) payload);
+                            break;
+                    }
+                }
+            };
+    private final CommandDispatcher commands =
+            new CommandDispatcher(thread.getLooper(), commandTarget,
+                    MAX_COMMAND_DEPTH);
+
     public CameraView(Context context) {
         super(context);
-        onOrientationChange = new OnOrientationChange(context);
+        orientationEngine = new OrientationEngine(context, orientationListener);
     }
 
     public CameraView(Context context, AttributeSet attrs) {
@@ -73,7 +190,7 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
 
     public CameraView(Context context, AttributeSet attrs, int defStyle) {
         super(context, attrs, defStyle);
-        onOrientationChange = new OnOrientationChange(context);
+        orientationEngine = new OrientationEngine(context, orientationListener);
 
         if (context instanceof CameraHostProvider) {
             setCameraHost(((CameraHostProvider) context).getCameraHost());
@@ -96,15 +213,34 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
 
         if (host.getDeviceProfile().useTextureView()) {
             previewStrategy = new TexturePreviewStrategy(this);
+            previewTracker.setLatencyMonitor(null);
         } else {
             previewStrategy = new SurfacePreviewStrategy(this);
+            previewTracker.setLatencyMonitor(previewLatency);
         }
+
+        previewLatency.setSource(previewStrategy.getClass().getSimpleName());
     }
 
-    public synchronized Camera.Parameters getCameraParameters() {
-        if (camera != null && previewParams == null) {
+    /**
+     * @return the PreviewLatencyMonitor with time-to-first-frame,
+     *         frame pacing, and (with a TextureView) sensor-to-
+     *         display latency for this view's preview
+     */
+    public PreviewLatencyMonitor getPreviewLatencyMonitor() {
+        return (previewLatency);
+    }
+
+    // no lock needed: previewParams is filled in on the
+    // camera thread when the camera opens, so a racing lazy
+    // fill merely repeats that read
+
+    public Camera.Parameters getCameraParameters() {
+        CameraBackend current = camera;
+
+        if (current != null && previewParams == null) {
             try {
-                previewParams = camera.getParameters();
+                previewParams = current.getParameters();
             } catch (RuntimeException e) {
                 android.util.Log.v(getClass().getSimpleName(), "getCameraParameters(). Could not work with camera parameters.");
             }
@@ -113,23 +249,228 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
         return previewParams;
     }
 
-    public void setCameraParameters(final Camera.Parameters parameters) {
-        handler.post(new Runnable() {
+    /**
+     * Applies a change to the camera parameters on the
+     * camera thread. Edits made in quick succession are
+     * batched into a single setParameters() call, and an
+     * edit replaces any pending edit with the same key, so
+     * only the latest value is sent to the driver.
+     *
+     * @param key
+     *          identifies what the edit changes
+     * @param edit
+     *          the change to apply
+     */
+    public void updateCameraParameters(String key, ParameterEdit edit) {
+        updateCameraParameters(key, edit, null);
+    }
+
+    // onApplied runs on the camera thread, after the batch
+    // holding this edit has been handed to setParameters()
+
+    void updateCameraParameters(String key, ParameterEdit edit,
+                                Runnable onApplied) {
+        synchronized (pendingEdits) {
+            pendingEdits.put(key, edit);
+
+            if (onApplied != null) {
+                pendingEditCallbacks.add(onApplied);
+            }
+
+            if (editsScheduled) {
+                return;
+            }
+
+            editsScheduled = true;
+        }
+
+        handler.post(applyEditsTask);
+    }
+
+    private final Runnable applyEditsTask = new Runnable() {
+        @Override
+        public void run() {
+            applyPendingEdits();
+        }
+    };
+
+    private void applyPendingEdits() {
+        ParameterEdit[] edits;
+        Runnable[] callbacks;
+
+        synchronized (pendingEdits) {
+            edits = pendingEdits.values().toArray(new ParameterEdit[pendingEdits.size()]);
+            callbacks = pendingEditCallbacks.toArray(new Runnable[pendingEditCallbacks.size()]);
+            pendingEdits.clear();
+            pendingEditCallbacks.clear();
+            editsScheduled = false;
+        }
+
+        Camera.Parameters params = getCameraParameters();
+
+        if (params != null) {
+            for (ParameterEdit edit : edits) {
+                edit.apply(params);
+            }
+
+            setCameraParametersSync(params);
+        }
+
+        for (Runnable callback : callbacks) {
+            callback.run();
+        }
+    }
+
+    /**
+     * Sets the focus areas, given in CameraView coordinates
+     * (e.g., a rectangle around where the user tapped). The
+     * areas are clipped to the sensor and applied via
+     * updateCameraParameters(). Pass null to let the camera
+     * choose.
+     */
+    public void setFocusAreas(List<Camera.Area> viewAreas) {
+        final List<Camera.Area> areas = toDriverAreas(viewAreas);
+
+        updateCameraParameters("focusAreas", new ParameterEdit() {
             @Override
-            public void run() {
-                setCameraParametersSync(parameters);
+            public void apply(Camera.Parameters params) {
+                if (params.getMaxNumFocusAreas() > 0) {
+                    params.setFocusAreas(truncate(areas, params.getMaxNumFocusAreas()));
+                }
             }
         });
     }
 
+    /**
+     * Sets the metering areas, given in CameraView
+     * coordinates. Pass null to let the camera choose.
+     */
+    public void setMeteringAreas(List<Camera.Area> viewAreas) {
+        final List<Camera.Area> areas = toDriverAreas(viewAreas);
+
+        updateCameraParameters("meteringAreas", new ParameterEdit() {
+            @Override
+            public void apply(Camera.Parameters params) {
+                if (params.getMaxNumMeteringAreas() > 0) {
+                    params.setMeteringAreas(truncate(areas, params.getMaxNumMeteringAreas()));
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the cached transform between CameraView and
+     *         camera driver coordinates
+     */
+    public PreviewTransform getPreviewTransform() {
+        return (previewTransform);
+    }
+
+    private List<Camera.Area> toDriverAreas(List<Camera.Area> viewAreas) {
+        if (viewAreas == null || !previewTransform.isValid()) {
+            return (null);
+        }
+
+        List<Camera.Area> result = new ArrayList<Camera.Area>(viewAreas.size());
+        RectF mapped = new RectF();
+
+        for (Camera.Area area : viewAreas) {
+            mapped.set(area.rect);
+            previewTransform.mapViewToDriver(mapped);
+
+            Rect rect = new Rect();
+
+            mapped.round(rect);
+
+            if (rect.intersect(DRIVER_BOUNDS)) {
+                result.add(new Camera.Area(rect, area.weight));
+            }
+        }
+
+        return (result.isEmpty() ? null : result);
+    }
+
+    private static List<Camera.Area> truncate(List<Camera.Area> areas, int max) {
+        if (areas != null && areas.size() > max) {
+            return (areas.subList(0, max));
+        }
+
+        return (areas);
+    }
+
+    public void setCameraParameters(final Camera.Parameters parameters) {
+        commands.send(CommandDispatcher.Command.SET_PARAMETERS, parameters);
+    }
+
+    /**
+     * @return the CommandDispatcher that carries this view's
+     *         commands to the camera thread, for its
+     *         per-command counters
+     */
+    public CommandDispatcher getCommandDispatcher() {
+        return (commands);
+    }
+
+    /**
+     * @return the CameraLifecycle tracking this view's camera,
+     *         for its current state
+     */
+    public CameraLifecycle getCameraLifecycle() {
+        return (lifecycle);
+    }
+
+    /**
+     * Replaces the android.hardware.Camera backend, e.g., with
+     * a SimulatedCameraBackend.Factory for tests. Takes effect
+     * the next time the camera is opened, so call it before
+     * onResume().
+     */
+    void setCameraBackendFactory(CameraBackend.Factory factory) {
+        backendFactory = factory;
+    }
+
+    /**
+     * Supplies the Camera.Parameters for backends not built on
+     * a Camera. The Camera2 backend is only used with one, as
+     * the SDK cannot create them. Call before onResume().
+     */
+    void setParametersSupplier(CameraBackend.ParametersSupplier supplier) {
+        parametersSupplier = supplier;
+    }
+
+    // chosen on first use: Camera2 if the DeviceProfile asks
+    // for it and it can be given parameters, otherwise
+    // android.hardware.Camera
+
+    private CameraBackend.Factory getBackendFactory() {
+        if (backendFactory == null) {
+            if (getCameraHost().getDeviceProfile().useCamera2()
+                    && parametersSupplier != null) {
+                backendFactory = new Camera2Backend.Factory(getContext(),
+                        parametersSupplier);
+            } else {
+                backendFactory = LegacyCameraBackend.FACTORY;
+            }
+        }
+
+        return (backendFactory);
+    }
+
     /**
      * Run only in executor
      *
      * @param parameters
      */
     protected void setCameraParametersSync(Camera.Parameters parameters) {
+        CameraTrace.begin("setCameraParametersSync");
+
         try {
-            if (camera != null && parameters != null) {
+            if (isCameraUnlocked()) {
+                // kept in previewParams, and applied once the
+                // MediaRecorder hands the camera back
+                android.util.Log.v(getClass().getSimpleName(),
+                        "setCameraParametersSync(). Camera is unlocked for recording.");
+            } else if (camera != null && parameters != null) {
 
                 camera.setParameters(parameters);
 
@@ -138,6 +479,8 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
         } catch (RuntimeException e) {
             android.util.Log.v(getClass().getSimpleName(),
                     "setCameraParametersSync(). Could not set camera parameters.");
+        } finally {
+            CameraTrace.end();
         }
     }
 
@@ -145,42 +488,31 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
      * You must call {@code super.onCameraOpen} first
      *
      * @param camera
+     *          the opened Camera, or null if the camera backend
+     *          is not built on one
      */
     public void onCameraOpen(Camera camera) throws RuntimeException {
         if (getActivity().getRequestedOrientation() != ActivityInfo.SCREEN_ORIENTATION_UNSPECIFIED
                 && !isOrientationHardLocked) {
-            onOrientationChange.enable();
+            trackPictureRotation = true;
         }
 
         setCameraDisplayOrientation();
 
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH
-                && getCameraHost() instanceof Camera.FaceDetectionListener) {
-            camera.setFaceDetectionListener((Camera.FaceDetectionListener) getCameraHost());
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            this.camera.setFaceDetectionListener(getFaceDetectionListener());
         }
 
-        setPreviewCallback(previewCallback);
-
-        if (orientationEventListener == null) {
-            windowManager = (WindowManager) getContext().getSystemService(Context.WINDOW_SERVICE);
-            orientationEventListener = new OrientationEventListener(getContext(),
-                    SensorManager.SENSOR_DELAY_NORMAL) {
-                @Override
-                public void onOrientationChanged(int orientation) {
+        this.camera.setAutoFocusMoveCallback(focusState);
 
-                    Display display = windowManager.getDefaultDisplay();
-                    int rotation = display.getRotation();
-                    if (rotation != lastRotation) {
-                        setCameraDisplayOrientation();
+        setPreviewCallback(previewCallback);
 
-                        lastRotation = rotation;
-                    }
-                }
-            };
-        }
-        if (orientationEventListener.canDetectOrientation()) {
-            orientationEventListener.enable();
-        }
+        getActivity().runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                orientationEngine.enable();
+            }
+        });
 
         if (this.isOrientationLocked) {
             lockOrientation();
@@ -189,7 +521,7 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
 
     @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
     public void onResume() {
-        onOrientationChange.resetOrientation();
+        orientationEngine.reset();
         ViewGroup parent = (ViewGroup) previewStrategy.getWidget().getParent();
         if (parent != null) {
             parent.removeAllViews();
@@ -200,7 +532,13 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
         handler.post(new Runnable() {
             @Override
             public void run() {
-                if (camera == null) {
+                if (lifecycle.transition(CameraLifecycle.State.CLOSED,
+                        CameraLifecycle.State.OPENING)) {
+                    if (getCameraHost() instanceof SimpleCameraHost) {
+                        ((SimpleCameraHost) getCameraHost())
+                                .setCameraBackendFactory(getBackendFactory());
+                    }
+
                     try {
                         cameraId = getCameraHost().getCameraId();
                     } catch (RuntimeException e) {
@@ -209,29 +547,57 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
 
                     if (cameraId >= 0) {
                         try {
-                            camera = Camera.open(cameraId);
+                            CameraTrace.begin("Camera.open");
+
+                            try {
+                                camera = getBackendFactory().open(cameraId);
+                            } finally {
+                                CameraTrace.end();
+                            }
+
+                            camera.setErrorCallback(errorCallback);
                             getCameraParameters(); //sets previewParams
-                            onCameraOpen(camera);
+                            zoomController.attach(camera, previewParams);
+                            onCameraOpen(camera.getCamera());
+                            lifecycle.transition(CameraLifecycle.State.OPENING,
+                                    CameraLifecycle.State.OPEN);
                         } catch (Exception e) {
+                            // opened but not set up, so nothing else
+                            // will ever release it
+                            zoomController.detach();
+
+                            if (camera != null) {
+                                try {
+                                    camera.release();
+                                } catch (RuntimeException re) {
+                                    android.util.Log.e(getClass().getSimpleName(),
+                                            "Could not release camera.",
+                                            re);
+                                }
+                                camera = null;
+                            }
+
                             getCameraHost().onCameraFail(FailureReason.UNKNOWN);
                         }
                     } else {
                         getCameraHost().onCameraFail(FailureReason.NO_CAMERAS_REPORTED);
                     }
+
+                    if (camera == null) {
+                        lifecycle.moveTo(CameraLifecycle.State.CLOSED);
+                    }
                 }
             }
         });
     }
 
     public void onPause() {
+        cancelPreparedRecording();
         previewDestroyed();
         if (previewStrategy.getWidget() != null) {
             removeView(previewStrategy.getWidget());
         }
-        this.onOrientationChange.disable();
-        if (orientationEventListener != null) {
-            orientationEventListener.disable();
-        }
+        orientationEngine.disable();
     }
 
     // based on CameraPreview.java from ApiDemos
@@ -245,60 +611,172 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
         setMeasuredDimension(width, height);
 
         if (width > 0 && height > 0) {
-            handler.post(new Runnable() {
-                @Override
-                public void run() {
-                    if (camera != null && getCameraParameters() != null) {
-                        Camera.Size newSize = null;
+            synchronized (measureLock) {
+                measureCount++;
 
-                        try {
-                            if (getCameraHost().getRecordingHint() != CameraHost.RecordingHint.STILL_ONLY) {
-                                newSize =
-                                        getCameraHost().getPreferredPreviewSizeForVideo(getDisplayOrientation(),
-                                                width,
-                                                height,
-                                                getCameraParameters(),
-                                                null);
-                            }
+                if (width == pendingMeasureWidth && height == pendingMeasureHeight) {
+                    return;
+                }
 
-                            if (newSize == null || newSize.width * newSize.height < 65536) {
-                                newSize =
-                                        getCameraHost().getPreviewSize(getDisplayOrientation(),
-                                                width, height,
-                                                getCameraParameters());
-                            }
-                        } catch (Exception e) {
-                            android.util.Log.v(getClass().getSimpleName(),
-                                    "onMeasure(). Could not work with camera parameters.");
-                        }
+                pendingMeasureWidth = width;
+                pendingMeasureHeight = height;
+            }
 
-                        if (newSize != null) {
-                            if (previewSize == null) {
-                                previewSize = newSize;
-                            } else if (previewSize.width != newSize.width
-                                    || previewSize.height != newSize.height) {
-                                if (inPreview) {
-                                    stopPreview();
-                                }
+            // restart the settle delay, so a run of layout passes
+            // (keyboard, animation, multi-window resize) costs
+            // one evaluation once it stops
 
-                                previewSize = newSize;
-                                initPreview(width, height, false);
-                            }
-                        }
-                        post(
-                                new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        invalidate();
-                                    }
-                                }
-                        );
-                    }
-                }
-            });
+            handler.removeCallbacks(measureTask);
+
+            if (previewSize == null) {
+                handler.post(measureTask);
+            } else {
+                handler.postDelayed(measureTask, MEASURE_SETTLE_MS);
+            }
+        }
+    }
+
+    // the camera is gone, e.g., taken by another client, so
+    // close it as onPause() would and tell the host
+
+    private final Camera.ErrorCallback errorCallback = new Camera.ErrorCallback() {
+        @Override
+        public void onError(int error, Camera ignored) {
+            android.util.Log.e(TAG, "Camera error " + error);
+            previewDestroyed();
+            getCameraHost().onCameraFail(FailureReason.UNKNOWN);
+        }
+    };
+
+    private final Runnable measureTask = new Runnable() {
+        @Override
+        public void run() {
+            evaluateMeasuredSize();
+        }
+    };
+
+    private void evaluateMeasuredSize() {
+        final int width;
+        final int height;
+
+        synchronized (measureLock) {
+            width = pendingMeasureWidth;
+            height = pendingMeasureHeight;
+
+            if (width == evaluatedWidth && height == evaluatedHeight) {
+                return;
+            }
+        }
+
+        if (camera == null || getCameraParameters() == null) {
+            // nothing to reconfigure yet; forget the pending size,
+            // so the next onMeasure() once the camera is open is
+            // evaluated rather than treated as a repeat
+
+            synchronized (measureLock) {
+                pendingMeasureWidth = 0;
+                pendingMeasureHeight = 0;
+            }
+
+            return;
+        }
+
+        synchronized (measureLock) {
+            evaluatedWidth = width;
+            evaluatedHeight = height;
+            measureEvaluationCount++;
+        }
+
+        Camera.Size newSize = null;
+
+        try {
+            if (getCameraHost().getRecordingHint() != CameraHost.RecordingHint.STILL_ONLY) {
+                newSize =
+                        getCameraHost().getPreferredPreviewSizeForVideo(getDisplayOrientation(),
+                                width,
+                                height,
+                                getCameraParameters(),
+                                null);
+            }
+
+            if (newSize == null || newSize.width * newSize.height < 65536) {
+                newSize =
+                        getCameraHost().getPreviewSize(getDisplayOrientation(),
+                                width, height,
+                                getCameraParameters());
+            }
+        } catch (Exception e) {
+            android.util.Log.v(getClass().getSimpleName(),
+                    "onMeasure(). Could not work with camera parameters.");
+        }
+
+        if (newSize == null) {
+            return;
+        }
+
+        if (previewSize == null) {
+            previewSize = newSize;
+        } else if (previewSize.width != newSize.width
+                || previewSize.height != newSize.height) {
+            if (isInPreview()) {
+                stopPreview();
+            }
+
+            previewSize = newSize;
+            measureRestartCount++;
+            initPreview(width, height, false);
+        } else {
+            return;
+        }
+
+        post(new Runnable() {
+            @Override
+            public void run() {
+                invalidate();
+            }
+        });
+    }
+
+    private void resetMeasuredSize() {
+        handler.removeCallbacks(measureTask);
+
+        synchronized (measureLock) {
+            pendingMeasureWidth = 0;
+            pendingMeasureHeight = 0;
+            evaluatedWidth = 0;
+            evaluatedHeight = 0;
+        }
+    }
+
+    /**
+     * @return the number of onMeasure() passes seen with a
+     *         non-zero size
+     */
+    public int getMeasureCount() {
+        synchronized (measureLock) {
+            return (measureCount);
         }
     }
 
+    /**
+     * @return the number of measured sizes that were
+     *         evaluated against the camera's preview sizes,
+     *         after coalescing and the settle delay
+     */
+    public int getMeasureEvaluationCount() {
+        synchronized (measureLock) {
+            return (measureEvaluationCount);
+        }
+    }
+
+    /**
+     * @return the number of preview restarts caused by a
+     *         measured size change
+     */
+    public int getMeasureRestartCount() {
+        return (measureRestartCount);
+    }
+
     public Camera.Size getPreviewSize() {
         return previewSize;
     }
@@ -347,6 +825,9 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
                 child.layout(0, (height - scaledChildHeight) / 2, width,
                         (height + scaledChildHeight) / 2);
             }
+
+            previewTransform.setBounds(child.getLeft(), child.getTop(),
+                    child.getRight(), child.getBottom());
         }
     }
 
@@ -354,6 +835,27 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
         return (displayOrientation);
     }
 
+    /**
+     * Chooses how display rotations are applied while the
+     * preview is running. RESTART, the default, stops and
+     * restarts the preview around every change. LIVE calls
+     * setDisplayOrientation() without stopping the preview,
+     * unless the DeviceProfile says the device needs a
+     * restart. TRANSFORM leaves the camera alone and rotates
+     * the TextureView instead, falling back to LIVE when
+     * using a SurfaceView.
+     *
+     * @param mode
+     *          the RotationMode to use
+     */
+    public void setRotationMode(RotationMode mode) {
+        rotationMode = mode;
+    }
+
+    public RotationMode getRotationMode() {
+        return (rotationMode);
+    }
+
     @Deprecated
     public void lockToLandscape() {
         getActivity().setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_SENSOR_LANDSCAPE);
@@ -388,7 +890,8 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
             public void run() {
                 setCameraDisplayOrientationAsync();
                 if (!isOrientationHardLocked) {
-                    onOrientationChange.enable();
+                    trackPictureRotation = true;
+                    applyPictureRotation(orientationEngine.getOrientation());
                 } else {
                     setPictureOrientationAsync();
                 }
@@ -400,7 +903,7 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
         this.isOrientationLocked = false;
         this.isOrientationHardLocked = false;
         getActivity().setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_UNSPECIFIED);
-        onOrientationChange.disable();
+        trackPictureRotation = false;
 
         post(new Runnable() {
             @Override
@@ -411,106 +914,487 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
     }
 
     public void restartPreview() {
-        if (!inPreview) {
+        if (!isInPreview()) {
             startPreview();
         }
     }
 
-    public void takePicture(boolean needBitmap, boolean needByteArray) {
+    public PictureFuture takePicture(boolean needBitmap, boolean needByteArray) {
         PictureTransaction xact = new PictureTransaction(getCameraHost());
 
-        takePicture(xact.needBitmap(needBitmap)
-                .needByteArray(needByteArray));
+        return (takePicture(xact.needBitmap(needBitmap)
+                .needByteArray(needByteArray)));
     }
 
-    public void takePicture(final PictureTransaction xact) {
+    /**
+     * Queues a picture to be taken as soon as the preview is
+     * ready. Up to MAX_QUEUED_PICTURES requests may wait at
+     * once; beyond that, the returned PictureFuture fails
+     * with a RejectedExecutionException.
+     *
+     * @return a PictureFuture to track, wait for, or cancel
+     *         the picture
+     */
+    public PictureFuture takePicture(final PictureTransaction xact) {
+        final PictureFuture future = new PictureFuture(xact);
+
+        xact.future = future;
         takePictureAsync(xact);
+
+        return (future);
     }
 
     private void takePictureAsync(final PictureTransaction xact) {
         handler.post(new Runnable() {
             @Override
             public void run() {
-                if (inPreview) {
-                    if (isAutoFocusing) {
-                        Log.e(getClass().getSimpleName(),
-                                "Camera cannot take a picture while auto-focusing");
-                    } else {
-                        xact.cameraView = CameraView.this;
-                        tryTakePicture(xact);
-                    }
-                } else {
-                    Log.e(getClass().getSimpleName(),
-                            "Preview mode must have started before you can take a picture");
+                if (pictureQueue.size() >= MAX_QUEUED_PICTURES) {
+                    xact.future.fail(new RejectedExecutionException(
+                            "Too many pictures waiting to be taken"));
+                    return;
                 }
+
+                xact.sequence = pictureSequence++;
+                pictureQueue.add(xact);
+
+                if (xact.timeoutMs > 0) {
+                    handler.postDelayed(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (xact.future.fail(new TimeoutException(
+                                    "Picture not taken within " + xact.timeoutMs + "ms"))) {
+                                pictureQueue.remove(xact);
+                            }
+                        }
+                    }, xact.timeoutMs);
+                }
+
+                drainPictureQueue();
             }
         });
     }
 
+    // run only on the camera thread, whenever the preview
+    // may have become ready for a picture
+
+    private void drainPictureQueue() {
+        while (isInPreview() && !focusState.isScanning()
+                && pendingFocusPicture == null && camera != null) {
+            PictureTransaction xact = pictureQueue.poll();
+
+            if (xact == null) {
+                break;
+            }
+
+            if (xact.future.start()) {
+                xact.cameraView = CameraView.this;
+
+                if (xact.lockFocus && !focusState.tryLockWithoutScan()) {
+                    pendingFocusPicture = xact;
+                    unlockFocusAfterPicture = true;
+                    startAutoFocusSync();
+                } else {
+                    tryTakePicture(xact);
+                }
+            }
+        }
+    }
+
+    private void failQueuedPictures() {
+        PictureTransaction xact;
+
+        while ((xact = pictureQueue.poll()) != null) {
+            xact.future.fail(new IllegalStateException("Camera was closed"));
+        }
+    }
+
     private void tryTakePicture(PictureTransaction xact) {
-        if (camera != null) {
-            try {
-                inPreview = false;
+        CameraTrace.begin("takePicture");
 
+        try {
+            takePictureSync(xact);
+        } finally {
+            CameraTrace.end();
+        }
+    }
+
+    private void takePictureSync(PictureTransaction xact) {
+        if (camera != null
+                && lifecycle.transition(CameraLifecycle.State.PREVIEWING,
+                CameraLifecycle.State.CAPTURING)) {
+            try {
                 getCameraParameters();
 
                 Camera.Parameters pictureParams = camera.getParameters();
 
-                if (!onOrientationChange.isEnabled()) {
+                if (!trackPictureRotation) {
                     setCameraPictureOrientation(pictureParams);
                 }
 
                 camera.setParameters(xact.host.adjustPictureParameters(xact, pictureParams));
+                previewTracker.onBuffersDiscarded();
                 camera.takePicture(xact.host.getShutterCallback(), null,
                         new PictureTransactionCallback(xact));
             } catch (Exception e) {
                 Log.e(getClass().getSimpleName(),
                         "Exception taking a picture", e);
-                // TODO get this out to library clients
-
-                inPreview = true;
+                xact.future.fail(e);
+                lifecycle.transition(CameraLifecycle.State.CAPTURING,
+                        CameraLifecycle.State.PREVIEWING);
             }
+        } else {
+            xact.future.fail(new IllegalStateException("Camera was closed"));
         }
     }
 
     public boolean isRecording() {
-        return (recorder != null);
+        return (lifecycle.is(CameraLifecycle.State.RECORDING));
+    }
+
+    /**
+     * @return where the camera is in its lifecycle; safe to
+     *         call from any thread
+     */
+    public CameraLifecycle.State getCameraState() {
+        return (lifecycle.getState());
+    }
+
+    private boolean isInPreview() {
+        return (lifecycle.is(CameraLifecycle.State.PREVIEWING));
+    }
+
+    private boolean isCameraUnlocked() {
+        CameraLifecycle.State state = lifecycle.getState();
+
+        return (state == CameraLifecycle.State.PREPARED_RECORDING
+                || state == CameraLifecycle.State.RECORDING);
     }
 
     public void record() throws Exception {
+        record(null);
+    }
+
+    /**
+     * Begins recording video, split into segments per the
+     * supplied policy (or into a single file, if the policy
+     * is null). If prepareRecording() was called beforehand,
+     * the prepared MediaRecorder is simply started, and the
+     * policy passed to prepareRecording() applies.
+     *
+     * @throws IllegalStateException
+     *           if a policy is supplied when a recording is
+     *           already prepared
+     * @throws UnsupportedOperationException
+     *           if the camera backend cannot record, in which
+     *           case the preview is left alone
+     */
+    public void record(VideoSegmentPolicy policy) throws Exception {
+        long requested = SystemClock.uptimeMillis();
+
+        if (preparedRecorder == null) {
+            prepareRecorder(policy, true);
+        } else if (policy != null) {
+            throw new IllegalStateException(
+                    "Recording is already prepared; pass the policy to prepareRecording()");
+        }
+
+        recorder = preparedRecorder;
+        preparedRecorder = null;
+
+        try {
+            recorder.start();
+            lifecycle.transition(CameraLifecycle.State.PREPARED_RECORDING,
+                    CameraLifecycle.State.RECORDING);
+        } catch (RuntimeException e) {
+            recorder.release();
+            recorder = null;
+            segmentedRecording = null;
+            relockCameraQuietly();
+            throw e;
+        }
+
+        recordStartLatency = SystemClock.uptimeMillis() - requested;
+    }
+
+    /**
+     * Configures and prepares a MediaRecorder (including
+     * its output file) while the preview keeps running, so a
+     * later call to record() only has to start it. Until
+     * record() or cancelPreparedRecording() is called, the
+     * camera is unlocked for use by the MediaRecorder and is
+     * in the PREPARED_RECORDING state: pictures and
+     * autofocus wait for the preview to come back, and
+     * parameter changes are held until the camera is locked
+     * again.
+     */
+    public void prepareRecording() throws Exception {
+        prepareRecording(null);
+    }
+
+    public void prepareRecording(VideoSegmentPolicy policy) throws Exception {
+        cancelPreparedRecording();
+        prepareRecorder(policy, false);
+    }
+
+    /**
+     * Releases a MediaRecorder set up by prepareRecording()
+     * without recording anything, returning the camera to
+     * normal use.
+     */
+    public void cancelPreparedRecording() {
+        MediaRecorder tempRecorder = preparedRecorder;
+
+        if (tempRecorder != null) {
+            preparedRecorder = null;
+            segmentedRecording = null;
+            tempRecorder.release();
+            relockCameraQuietly();
+        }
+    }
+
+    public boolean isRecordingPrepared() {
+        return (preparedRecorder != null);
+    }
+
+    /**
+     * @return the time, in milliseconds, from the most recent
+     *         call to record() until the MediaRecorder had
+     *         started, or -1 if nothing has been recorded yet
+     */
+    public long getRecordStartLatency() {
+        return (recordStartLatency);
+    }
+
+    private void prepareRecorder(VideoSegmentPolicy policy,
+                                 final boolean stopPreview) throws Exception {
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
             throw new UnsupportedOperationException(
                     "Video recording supported only on API Level 11+");
         }
 
-        if (displayOrientation != 0 && displayOrientation != 180) {
-            throw new UnsupportedOperationException(
-                    "Video recording supported only in landscape");
+        if (displayOrientation != 0 && displayOrientation != 180) {
+            throw new UnsupportedOperationException(
+                    "Video recording supported only in landscape");
+        }
+
+        CameraBackend current = camera;
+
+        if (current != null && !current.canRecord()) {
+            throw new UnsupportedOperationException(
+                    "Video recording is not supported by this camera backend");
+        }
+
+        // on the camera thread, so the preview is really
+        // stopped, and nothing queued there touches the camera,
+        // by the time the MediaRecorder gets it
+
+        callOnCameraThread(new Callable<Void>() {
+            @Override
+            public Void call() {
+                if (camera == null) {
+                    throw new IllegalStateException("Camera is not open");
+                }
+
+                Camera.Parameters pictureParams = camera.getParameters();
+
+                setCameraPictureOrientation(pictureParams);
+                camera.setParameters(pictureParams);
+                previewStoppedForRecorder = false;
+
+                if (stopPreview && (isInPreview()
+                        || lifecycle.is(CameraLifecycle.State.CAPTURING))) {
+                    stopPreviewSync();
+                    previewStoppedForRecorder = true;
+                }
+
+                try {
+                    camera.unlock();
+                } catch (RuntimeException e) {
+                    if (previewStoppedForRecorder) {
+                        previewStoppedForRecorder = false;
+                        startPreviewSync();
+                    }
+
+                    throw e;
+                }
+
+                stateBeforePrepare =
+                        lifecycle.moveTo(CameraLifecycle.State.PREPARED_RECORDING);
+
+                return (null);
+            }
+        });
+
+        try {
+            if (policy != null) {
+                segmentedRecording =
+                        new SegmentedRecording(this, getCameraHost(), cameraId, policy);
+            }
+
+            preparedRecorder = buildRecorder();
+        } catch (Exception e) {
+            relockCameraQuietly();
+            throw e;
+        }
+    }
+
+    /**
+     * Takes the camera back from the MediaRecorder, on the
+     * camera thread. A prepared recording returns to the
+     * preview if it kept running under the recorder; a
+     * finished one leaves the camera OPEN. Any parameter
+     * changes held while the camera was unlocked are applied.
+     *
+     * @param restartPreview
+     *          true to start the preview again if it was
+     *          stopped for the recorder
+     */
+    private void relockCamera(final boolean restartPreview) throws IOException {
+        try {
+            callOnCameraThread(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    relockCameraSync(restartPreview);
+
+                    return (null);
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Could not lock camera", e);
+        }
+    }
+
+    // for failure paths, where the original exception is the
+    // one the caller needs to see
+
+    private void relockCameraQuietly() {
+        try {
+            relockCamera(true);
+        } catch (IOException | RuntimeException e) {
+            Log.e(getClass().getSimpleName(),
+                    "Could not lock camera after recording", e);
+        }
+    }
+
+    private void relockCameraSync(boolean restartPreview) throws IOException {
+        if (camera == null) {
+            return;
+        }
+
+        camera.reconnect();
+
+        // entering PREVIEWING runs the commands that were
+        // waiting for it
+
+        CameraLifecycle.State restored =
+                (stateBeforePrepare == CameraLifecycle.State.OPEN
+                        ? CameraLifecycle.State.OPEN
+                        : CameraLifecycle.State.PREVIEWING);
+
+        if (lifecycle.transition(CameraLifecycle.State.RECORDING,
+                CameraLifecycle.State.OPEN)) {
+            restored = CameraLifecycle.State.OPEN;
+        } else if (!lifecycle.transition(CameraLifecycle.State.PREPARED_RECORDING,
+                restored)) {
+            restored = null;
+        }
+
+        if (restored != null) {
+            if (previewParams != null) {
+                setCameraParametersSync(previewParams);
+            }
+
+            if (restored == CameraLifecycle.State.PREVIEWING) {
+                drainPictureQueue();
+            } else if (restartPreview && previewStoppedForRecorder) {
+                startPreviewSync();
+            }
+        }
+
+        previewStoppedForRecorder = false;
+    }
+
+    // runs the task on the camera thread, after whatever is
+    // already queued there, and waits for it
+
+    private <T> T callOnCameraThread(Callable<T> task) throws Exception {
+        FutureTask<T> future = new FutureTask<T>(task);
+
+        if (Looper.myLooper() == handler.getLooper()) {
+            future.run();
+        } else {
+            handler.post(future);
+        }
+
+        try {
+            return (future.get());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+
+            throw (Error) cause;
+        }
+    }
+
+    private MediaRecorder buildRecorder() throws IOException {
+        MediaRecorder result = new MediaRecorder();
+
+        try {
+            camera.attachRecorder(result);
+            getCameraHost().configureRecorderAudio(cameraId, result);
+            result.setVideoSource(MediaRecorder.VideoSource.CAMERA);
+            getCameraHost().configureRecorderProfile(cameraId, result);
+
+            if (segmentedRecording != null) {
+                segmentedRecording.configureOutput(result);
+            } else {
+                getCameraHost().configureRecorderOutput(cameraId, result);
+            }
+
+            result.setOrientationHint(outputOrientation);
+            previewStrategy.attach(result);
+            result.prepare();
+        } catch (IOException | RuntimeException e) {
+            result.release();
+            segmentedRecording = null;
+            throw e;
         }
 
-        Camera.Parameters pictureParams = camera.getParameters();
+        return (result);
+    }
 
-        setCameraPictureOrientation(pictureParams);
-        camera.setParameters(pictureParams);
+    // called by SegmentedRecording when a limit was reached
+    // and the MediaRecorder stopped itself; if the next
+    // segment cannot be started, the recording ends here
 
-        stopPreview();
-        camera.unlock();
+    void restartRecorder() throws IOException {
+        MediaRecorder tempRecorder = recorder;
 
-        try {
-            recorder = new MediaRecorder();
-            recorder.setCamera(camera);
-            getCameraHost().configureRecorderAudio(cameraId, recorder);
-            recorder.setVideoSource(MediaRecorder.VideoSource.CAMERA);
-            getCameraHost().configureRecorderProfile(cameraId, recorder);
-            getCameraHost().configureRecorderOutput(cameraId, recorder);
-            recorder.setOrientationHint(outputOrientation);
-            previewStrategy.attach(recorder);
-            recorder.prepare();
-            recorder.start();
-        } catch (IOException e) {
-            recorder.release();
+        if (tempRecorder != null) {
             recorder = null;
-            throw e;
+            tempRecorder.release();
+
+            try {
+                MediaRecorder next = buildRecorder();
+
+                try {
+                    next.start();
+                } catch (RuntimeException e) {
+                    next.release();
+                    throw e;
+                }
+
+                recorder = next;
+            } catch (IOException | RuntimeException e) {
+                segmentedRecording = null;
+                relockCamera(false);
+                throw e;
+            }
         }
     }
 
@@ -522,52 +1406,95 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
 
         MediaRecorder tempRecorder = recorder;
 
+        if (tempRecorder == null) {
+            // a failed segment restart already ended it
+            return;
+        }
+
         recorder = null;
         tempRecorder.stop();
         tempRecorder.release();
-        camera.reconnect();
+
+        if (segmentedRecording != null) {
+            segmentedRecording.finish();
+            segmentedRecording = null;
+        }
+
+        relockCamera(false);
     }
 
+    /**
+     * Starts an auto-focus operation, waiting for the preview
+     * to start first if it has not yet.
+     */
     public void autoFocus() {
-        handler.post(new Runnable() {
-            @Override
-            public void run() {
-                if (inPreview && camera != null) {
-                    try {
-                        camera.autoFocus(CameraView.this);
-                        isAutoFocusing = true;
-                    } catch (RuntimeException e) {
-                        Log.e(getClass().getSimpleName(), "Could not auto focus?", e);
-                    }
+        commands.send(CommandDispatcher.Command.AUTO_FOCUS);
+    }
 
-                }
+    private final Runnable autoFocusTask = new Runnable() {
+        @Override
+        public void run() {
+            startAutoFocusSync();
+        }
+    };
+
+    private void startAutoFocusSync() {
+        if (isInPreview() && camera != null) {
+            try {
+                camera.autoFocus(CameraView.this);
+                focusState.onAutoFocusStarted();
+            } catch (RuntimeException e) {
+                Log.e(getClass().getSimpleName(), "Could not auto focus?", e);
+                takePendingFocusPicture();
             }
-        });
+        }
     }
 
     public void cancelAutoFocus() {
-        handler.post(new Runnable() {
-            @Override
-            public void run() {
-                if (camera != null) {
-                    try {
-                        isAutoFocusing = false;
-                        camera.cancelAutoFocus();
-                    } catch (RuntimeException e) {
-                        Log.e(getClass().getSimpleName(), "Could not cancel auto focus?", e);
-                    }
-                }
+        commands.send(CommandDispatcher.Command.CANCEL_AUTO_FOCUS);
+    }
+
+    private void cancelAutoFocusSync() {
+        if (camera != null) {
+            try {
+                focusState.onAutoFocusCancelled();
+                camera.cancelAutoFocus();
+            } catch (RuntimeException e) {
+                Log.e(getClass().getSimpleName(), "Could not cancel auto focus?", e);
             }
-        });
+        }
+    }
+
+    // a picture waiting on focus is taken once focus
+    // completes, even if it failed or was cancelled
+
+    private void takePendingFocusPicture() {
+        PictureTransaction xact = pendingFocusPicture;
+
+        if (xact != null) {
+            pendingFocusPicture = null;
+            tryTakePicture(xact);
+        }
+    }
+
+    /**
+     * @return the FocusStateMachine for this view's camera,
+     *         for inspecting focus state and how many focus
+     *         round trips have been skipped
+     */
+    public FocusStateMachine getFocusStateMachine() {
+        return (focusState);
     }
 
     public boolean isAutoFocusAvailable() {
-        return (inPreview);
+        return (isInPreview());
     }
 
     @Override
     public void onAutoFocus(boolean success, Camera camera) {
-        isAutoFocusing = false;
+        focusState.onAutoFocusFinished(success);
+        takePendingFocusPicture();
+        drainPictureQueue();
 
         if (getCameraHost() instanceof AutoFocusCallback) {
             getCameraHost().onAutoFocus(success, camera);
@@ -579,16 +1506,7 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
     }
 
     public void setFlashMode(final String mode) {
-        handler.post(new Runnable() {
-            @Override
-            public void run() {
-                if (camera != null) {
-                    Camera.Parameters params = getCameraParameters();
-                    params.setFlashMode(mode);
-                    setCameraParametersSync(params);
-                }
-            }
-        });
+        commands.send(CommandDispatcher.Command.SET_FLASH_MODE, mode);
     }
 
     public ZoomTransaction zoomTo(int level) {
@@ -596,10 +1514,8 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
             throw new IllegalStateException(
                     "Yes, we have no camera, we have no camera today");
         } else {
-            Camera.Parameters params = getCameraParameters();
-
-            if (level >= 0 && level <= params.getMaxZoom()) {
-                return (new ZoomTransaction(camera, level));
+            if (level >= 0 && level <= zoomController.getMaxZoom()) {
+                return (new ZoomTransaction(zoomController, level));
             } else {
                 throw new IllegalArgumentException(
                         String.format("Invalid zoom level: %d",
@@ -608,53 +1524,151 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
         }
     }
 
-    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    /**
+     * @param ratio
+     *          the desired magnification (e.g., 2.0 for 2x)
+     * @return the zoom level, for use with zoomTo(), whose
+     *         zoom ratio is closest to the requested one
+     */
+    public int getZoomLevelForRatio(float ratio) {
+        return (zoomController.getLevelForRatio(ratio));
+    }
+
+    void runOnCameraThread(Runnable r) {
+        handler.post(r);
+    }
+
+    /**
+     * Starts face detection on the camera thread, waiting for
+     * the preview to start first if it has not yet, as the
+     * camera requires.
+     */
     public void startFaceDetection() {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH
-                && camera != null && !isDetectingFaces
-                && getCameraParameters().getMaxNumDetectedFaces() > 0) {
-            camera.startFaceDetection();
-            isDetectingFaces = true;
-        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                lifecycle.runWhen(CameraLifecycle.State.PREVIEWING,
+                        startFaceDetectionTask);
+            }
+        });
     }
 
-    public void stopFaceDetection() {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH
-                && camera != null && isDetectingFaces) {
-            camera.stopFaceDetection();
-            isDetectingFaces = false;
+    private final Runnable startFaceDetectionTask = new Runnable() {
+        @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+        @Override
+        public void run() {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH
+                    && camera != null && !isDetectingFaces
+                    && getCameraParameters().getMaxNumDetectedFaces() > 0) {
+                camera.startFaceDetection();
+                isDetectingFaces = true;
+            }
         }
-    }
+    };
 
-    public void setPreviewCallback(final Camera.PreviewCallback callback) {
-        previewCallback = callback;
+    /**
+     * Routes face detection results through a FaceTracker,
+     * which assigns stable IDs, smooths the bounds, converts
+     * them to CameraView coordinates, and calls the listener
+     * at no more than maxRate times per second on the given
+     * Executor. Until this is called (or if it is called with
+     * a null listener), a CameraHost that implements
+     * Camera.FaceDetectionListener receives the raw results
+     * on the camera thread instead.
+     *
+     * @param listener
+     *          receives the tracked faces, or null to stop
+     *          tracking
+     * @param executor
+     *          where to call the listener, or null for the
+     *          main application thread
+     * @param maxRate
+     *          maximum number of calls per second, or 0 for
+     *          no limit
+     */
+    public void setFaceTracking(FaceTracker.Listener listener,
+                                Executor executor, int maxRate) {
+        if (listener == null) {
+            faceTracker = null;
+        } else {
+            if (executor == null) {
+                executor = new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        post(command);
+                    }
+                };
+            }
+
+            faceTracker = new FaceTracker(previewTransform, listener, executor, maxRate);
+        }
 
         handler.post(new Runnable() {
             @Override
             public void run() {
-                setPreviewCallbackSync(callback);
+                if (camera != null
+                        && Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+                    camera.setFaceDetectionListener(getFaceDetectionListener());
+                }
             }
         });
     }
 
-    public void addPreviewCallbackBuffer(final byte[] buffer) {
+    private Camera.FaceDetectionListener getFaceDetectionListener() {
+        if (faceTracker != null) {
+            return (faceTracker);
+        }
+
+        if (getCameraHost() instanceof Camera.FaceDetectionListener) {
+            return ((Camera.FaceDetectionListener) getCameraHost());
+        }
+
+        return (null);
+    }
+
+    public void stopFaceDetection() {
         handler.post(new Runnable() {
+            @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
             @Override
             public void run() {
-                addPreviewCallbackBufferSync(buffer);
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH
+                        && camera != null && isDetectingFaces) {
+                    camera.stopFaceDetection();
+                    isDetectingFaces = false;
+                }
             }
         });
     }
 
+    public void setPreviewCallback(final Camera.PreviewCallback callback) {
+        previewCallback = callback;
+        commands.send(CommandDispatcher.Command.SET_PREVIEW_CALLBACK, callback);
+    }
+
+    /**
+     * Hands a buffer back to the camera for preview frames.
+     * This does not allocate, so it is fine to call for every
+     * frame.
+     *
+     * @return false if the buffer was dropped because the
+     *         camera thread is too far behind
+     */
+    public boolean addPreviewCallbackBuffer(final byte[] buffer) {
+        return (commands.send(CommandDispatcher.Command.ADD_CALLBACK_BUFFER, buffer));
+    }
+
     protected void setPreviewCallbackSync(Camera.PreviewCallback callback) {
         previewCallback = callback;
+        previewTracker.setClient(callback);
+
+        Camera.PreviewCallback tracked = (callback == null ? null : previewTracker);
 
         if (camera != null) {
             try {
                 if (getCameraHost().getDeviceProfile().isCustomRom()) {
-                    camera.setPreviewCallback(previewCallback);
+                    camera.setPreviewCallback(tracked);
                 } else {
-                    camera.setPreviewCallbackWithBuffer(previewCallback);
+                    camera.setPreviewCallbackWithBuffer(tracked);
                 }
             } catch (RuntimeException e) {
                 android.util.Log.e(getClass().getSimpleName(),
@@ -664,14 +1678,36 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
     }
 
     protected void addPreviewCallbackBufferSync(final byte[] buffer) {
-        if (camera != null && buffer != null) {
-            camera.addCallbackBuffer(buffer);
+        if (buffer != null) {
+            byte[] tracked = previewTracker.onBufferAdded(buffer);
+
+            if (camera != null) {
+                camera.addCallbackBuffer(tracked);
+            }
         }
     }
 
+    /**
+     * @return the number of times the preview callback and
+     *         its buffers were restored after a preview
+     *         restart, without the application re-adding them
+     */
+    public int getPreviewBufferRestoreCount() {
+        return (previewTracker.getRestoreCount());
+    }
+
+    /**
+     * @return the number of preview callback buffers that had
+     *         to be reallocated because the preview size
+     *         changed
+     */
+    public int getPreviewBufferReallocationCount() {
+        return (previewTracker.getReallocationCount());
+    }
+
     public boolean doesZoomReallyWork() {
         Camera.CameraInfo info = new Camera.CameraInfo();
-        Camera.getCameraInfo(getCameraHost().getCameraId(), info);
+        getBackendFactory().getCameraInfo(getCameraHost().getCameraId(), info);
 
         return (getCameraHost().getDeviceProfile().doesZoomActuallyWork(info.facing == CameraInfo.CAMERA_FACING_FRONT));
     }
@@ -682,7 +1718,7 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
             public void run() {
                 if (camera != null) {
                     try {
-                        previewStrategy.attach(camera);
+                        camera.attachPreview(previewStrategy);
                     } catch (IOException | RuntimeException e) {
                         getCameraHost().handleException(e);
                     }
@@ -697,11 +1733,12 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
             public void run() {
                 if (camera != null) {
                     try {
-                        if (inPreview) {
+                        if (isInPreview()) {
                             stopPreviewSync();
                         } else {
                             camera.setPreviewCallback(null);
                         }
+                        previewTracker.onBuffersDiscarded();
                         camera.release();
                     } catch (RuntimeException e) {
                         android.util.Log.e(getClass().getSimpleName(),
@@ -711,7 +1748,14 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
                     camera = null;
                 }
 
-                CameraView.this.onOrientationChange.disable();
+                lifecycle.moveTo(CameraLifecycle.State.CLOSED);
+                commands.clear();
+                isDetectingFaces = false;
+
+                zoomController.detach();
+                failQueuedPictures();
+                resetMeasuredSize();
+                trackPictureRotation = false;
             }
         });
     }
@@ -722,7 +1766,7 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
     }
 
     private void previewStopped() {
-        if (inPreview) {
+        if (isInPreview()) {
             stopPreview();
         }
     }
@@ -736,75 +1780,107 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
         handler.post(new Runnable() {
             @Override
             public void run() {
-                if (camera != null) {
-                    try {
-                        Camera.Parameters parameters = getCameraParameters();
-                        if (previewSize == null) {
-                            previewSize = getCameraHost().getPreviewSize(getDisplayOrientation(), w, h, parameters);
-                        }
-
-                        parameters.setPreviewSize(previewSize.width, previewSize.height);
+                CameraTrace.begin("initPreview");
 
-                        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
-                            parameters.setRecordingHint(getCameraHost().getRecordingHint() != CameraHost.RecordingHint.STILL_ONLY);
-                        }
+                try {
+                    initPreviewSync(w, h);
+                } finally {
+                    CameraTrace.end();
+                }
+            }
+        });
+    }
 
-                        setCameraParametersSync(getCameraHost().adjustPreviewParameters(parameters));
-                    } catch (Exception e) {
-                        android.util.Log.v(getClass().getSimpleName(),
-                                "initPreview(). Could not work with camera parameters.");
-                    }
+    private void initPreviewSync(int w, int h) {
+        if (camera != null) {
+            try {
+                Camera.Parameters parameters = getCameraParameters();
+                if (previewSize == null) {
+                    previewSize = getCameraHost().getPreviewSize(getDisplayOrientation(), w, h, parameters);
+                }
 
-                    post(new Runnable() {
-                        @Override
-                        public void run() {
-                            requestLayout();
-                        }
-                    });
+                parameters.setPreviewSize(previewSize.width, previewSize.height);
 
-                    startPreviewSync();
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+                    parameters.setRecordingHint(getCameraHost().getRecordingHint() != CameraHost.RecordingHint.STILL_ONLY);
                 }
+
+                setCameraParametersSync(getCameraHost().adjustPreviewParameters(parameters));
+            } catch (Exception e) {
+                android.util.Log.v(getClass().getSimpleName(),
+                        "initPreview(). Could not work with camera parameters.");
             }
-        });
+
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    requestLayout();
+                }
+            });
+
+            startPreviewSync();
+        }
     }
 
     public void startPreview() {
-        handler.post(new Runnable() {
-            @Override
-            public void run() {
-                startPreviewSync();
-            }
-        });
+        commands.send(CommandDispatcher.Command.START_PREVIEW);
     }
 
     protected void startPreviewSync() {
+        CameraTrace.begin("startPreviewSync");
+
         try {
             if (camera != null) {
+                previewTracker.restore(camera, getCameraParameters(),
+                        !getCameraHost().getDeviceProfile().isCustomRom());
+                previewLatency.onPreviewStarted(System.nanoTime());
                 camera.startPreview();
-                inPreview = true;
+                previewTracker.setBufferSize(getCameraParameters());
+
+                if (unlockFocusAfterPicture) {
+                    unlockFocusAfterPicture = false;
+                    cancelAutoFocusSync();
+                }
+
+                if (getCameraParameters() != null) {
+                    focusState.setFocusMode(getCameraParameters().getFocusMode());
+                }
+
                 getCameraHost().autoFocusAvailable();
+                lifecycle.moveTo(CameraLifecycle.State.PREVIEWING);
+                drainPictureQueue();
             }
         } catch (RuntimeException e) {
             android.util.Log.v(getClass().getSimpleName(),
                     "startPreviewSync(). Could not start preview.");
+        } finally {
+            CameraTrace.end();
         }
     }
 
     public void stopPreview() {
-        handler.post(new Runnable() {
-            @Override
-            public void run() {
-                stopPreviewSync();
-            }
-        });
+        commands.send(CommandDispatcher.Command.STOP_PREVIEW);
     }
 
     private void stopPreviewSync() {
+        if (isCameraUnlocked()) {
+            // the MediaRecorder owns the camera, and the preview
+            // belongs to it until the camera is locked again
+            return;
+        }
+
         try {
             if (camera != null) {
-                inPreview = false;
+                if (!lifecycle.transition(CameraLifecycle.State.PREVIEWING,
+                        CameraLifecycle.State.OPEN)) {
+                    lifecycle.transition(CameraLifecycle.State.CAPTURING,
+                            CameraLifecycle.State.OPEN);
+                }
+
+                isDetectingFaces = false;
                 getCameraHost().autoFocusUnavailable();
                 camera.setPreviewCallback(null);
+                previewTracker.onBuffersDiscarded();
                 camera.stopPreview();
             }
         } catch (RuntimeException e) {  //FIXME
@@ -822,6 +1898,28 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
         });
     }
 
+    /**
+     * Queues the picture rotation for the given device
+     * orientation as a single "rotation" parameter edit, so a
+     * burst of orientation changes costs at most one
+     * setParameters() call on the camera thread.
+     */
+    private void applyPictureRotation(final int degrees) {
+        if (degrees == OrientationEventListener.ORIENTATION_UNKNOWN) {
+            return;
+        }
+
+        updateCameraParameters("rotation", new ParameterEdit() {
+            @Override
+            public void apply(Camera.Parameters params) {
+                if (camera != null && trackPictureRotation) {
+                    outputOrientation = getCameraPictureRotation(degrees);
+                    params.setRotation(outputOrientation);
+                }
+            }
+        });
+    }
+
     private void setPictureOrientationAsync() {
         handler.post(new Runnable() {
             @Override
@@ -845,7 +1943,7 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
         int degrees = 0;
         DisplayMetrics dm = new DisplayMetrics();
 
-        Camera.getCameraInfo(cameraId, info);
+        getBackendFactory().getCameraInfo(cameraId, info);
         getActivity().getWindowManager().getDefaultDisplay().getMetrics(dm);
 
         switch (rotation) {
@@ -870,30 +1968,71 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
             displayOrientation = (info.orientation - degrees + 360) % 360;
         }
 
+        previewTransform.setOrientation(displayOrientation,
+                info.facing == Camera.CameraInfo.CAMERA_FACING_FRONT);
+
         if (camera != null) {
-            boolean wasInPreview = inPreview;
+            applyDisplayOrientation();
+        }
+    }
+
+    private void applyDisplayOrientation() {
+        TexturePreviewStrategy texture = null;
+        boolean isCameraUnlocked = isCameraUnlocked();
+
+        if (previewStrategy instanceof TexturePreviewStrategy) {
+            texture = (TexturePreviewStrategy) previewStrategy;
+        }
+
+        if (!isInPreview() && !isCameraUnlocked) {
+            // nothing to restart, so just hand it to the camera
+
+            setCameraDisplayOrientationSync();
 
-            if (inPreview) {
-                stopPreviewSync();
+            if (texture != null) {
+                texture.setRotation(0);
             }
+        } else if (texture != null
+                && (rotationMode == RotationMode.TRANSFORM || isCameraUnlocked)) {
+            texture.setRotation((displayOrientation - cameraDisplayOrientation + 360) % 360);
+        } else if (isCameraUnlocked) {
+            // MediaRecorder owns the camera; leave the preview as-is
+        } else if (rotationMode == RotationMode.RESTART
+                || Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH
+                || getCameraHost().getDeviceProfile().restartPreviewOnRotation()) {
+            stopPreviewSync();
+            setCameraDisplayOrientationSync();
+            startPreviewSync();
+        } else {
+            setCameraDisplayOrientationSync();
 
-            try {
-                camera.setDisplayOrientation(displayOrientation);
-            } catch (RuntimeException e) {
-                android.util.Log.v(getClass().getSimpleName(),
-                        "setCameraDisplayOrientation(). Could not set camera display orientation.");
+            if (texture != null) {
+                texture.setRotation(0);
             }
+        }
 
-            if (wasInPreview) {
-                startPreviewSync();
+        post(new Runnable() {
+            @Override
+            public void run() {
+                requestLayout();
             }
+        });
+    }
+
+    private void setCameraDisplayOrientationSync() {
+        try {
+            camera.setDisplayOrientation(displayOrientation);
+            cameraDisplayOrientation = displayOrientation;
+        } catch (RuntimeException e) {
+            android.util.Log.v(getClass().getSimpleName(),
+                    "setCameraDisplayOrientation(). Could not set camera display orientation.");
         }
     }
 
     private void setCameraPictureOrientation(Camera.Parameters params) {
         Camera.CameraInfo info = new Camera.CameraInfo();
 
-        Camera.getCameraInfo(cameraId, info);
+        getBackendFactory().getCameraInfo(cameraId, info);
 
         if (getActivity().getRequestedOrientation() != ActivityInfo.SCREEN_ORIENTATION_UNSPECIFIED
                 && !isOrientationHardLocked) {
@@ -915,7 +2054,7 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
 
     private int getCameraPictureRotation(int orientation) {
         Camera.CameraInfo info = new Camera.CameraInfo();
-        Camera.getCameraInfo(cameraId, info);
+        getBackendFactory().getCameraInfo(cameraId, info);
         int rotation = 0;
 
         orientation = (orientation + 45) / 90 * 90;
@@ -933,65 +2072,19 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
         return ((Activity) getContext());
     }
 
-    private class OnOrientationChange extends OrientationEventListener {
-
-        private int currentOrientation = ORIENTATION_UNKNOWN;
-        private boolean isEnabled = false;
-
-        public OnOrientationChange(Context context) {
-            super(context, UPDATE_RATE_US);
-            disable();
-        }
-
-        public void resetOrientation() {
-            currentOrientation = ORIENTATION_UNKNOWN;
-        }
-
-        @Override
-        public void onOrientationChanged(int orientation) {
-            if (camera == null || !canDetectOrientation() || orientation == ORIENTATION_UNKNOWN) {
-                return;
-            }
-
-            orientation = getClosestRotationDegree(orientation);
-
-            if (orientation != currentOrientation) {
-                outputOrientation = getCameraPictureRotation(orientation);
-
-                Camera.Parameters params = getCameraParameters();
-
-                params.setRotation(outputOrientation);
-                setCameraParametersSync(params);
-                currentOrientation = orientation;
-            }
-        }
-
-        private int getClosestRotationDegree(int rotation) {
-            for (int value : ROTATION_DEGREES) {
-                final int diff = Math.abs(rotation - value);
-
-                if (diff < 45) {
-                    return value;
-                }
-            }
-            return 0;
-        }
-
-        @Override
-        public void enable() {
-            isEnabled = true;
-            super.enable();
-        }
-
-        @Override
-        public void disable() {
-            isEnabled = false;
-            super.disable();
-        }
+    /**
+     * How setRotationMode() applies display rotations.
+     */
+    public enum RotationMode {
+        RESTART, LIVE, TRANSFORM
+    }
 
-        boolean isEnabled() {
-            return (isEnabled);
-        }
+    /**
+     * A change to the camera parameters, for use with
+     * updateCameraParameters().
+     */
+    public interface ParameterEdit {
+        void apply(Camera.Parameters params);
     }
 
     private class PictureTransactionCallback implements
@@ -1008,22 +2101,28 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
                 CameraView.this.setCameraParameters(previewParams);
             }
 
-            final byte[] finalizedData = data;
-            if (finalizedData != null) {
-                handler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        try {
-                            new ImageCleanupTask(getContext(), finalizedData, cameraId, xact).run();
-                        } catch (Throwable e) {
-                            Log.e("CameraView", "Error camera thread stopped", e);
-                        }
-                    }
-                });
+            // cleanup is queued on a worker of its own, so it
+            // never holds up the camera thread
+
+            if (data != null) {
+                try {
+                    Camera.CameraInfo info = new Camera.CameraInfo();
+
+                    getBackendFactory().getCameraInfo(cameraId, info);
+                    new ImageCleanupTask(getContext(), data, info, xact).start();
+                } catch (RuntimeException e) {
+                    Log.e("CameraView", "Could not queue picture cleanup", e);
+                    xact.future.fail(e);
+                }
+            } else {
+                xact.future.fail(new IllegalStateException("Camera returned no picture data"));
             }
 
             if (!xact.useSingleShotMode()) {
                 startPreview();
+            } else {
+                lifecycle.transition(CameraLifecycle.State.CAPTURING,
+                        CameraLifecycle.State.OPEN);
             }
         }
     }
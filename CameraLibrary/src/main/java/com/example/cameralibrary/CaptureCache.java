@@ -0,0 +1,348 @@
+package com.example.cameralibrary;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the most recent pictures in memory, keyed by
+ * PictureTransaction.getTag(), so a review or undo screen
+ * can show a picture that was just taken without reading it
+ * back from storage and decoding it again. Hand one to
+ * SimpleCameraHost.Builder.captureCache() and tag your
+ * PictureTransactions; pictures with no tag are not cached.
+ *
+ * Each entry holds the JPEG as it is saved, i.e., after any
+ * cleanup such as rotation, and, if a preview size was
+ * given, a Bitmap decoded from it no larger than that size.
+ * The preview is decoded on the first Entry.getPreview(),
+ * not as the picture is saved, with the decode's memory
+ * reserved from the CaptureMemoryBudget. Both count toward
+ * the byte budget once held, and the least-recently-used
+ * entries are evicted to stay within it. The cache
+ * registers for onTrimMemory(), giving up half its budget
+ * when the app goes to the background and everything when
+ * memory gets tight; call release() when done with it.
+ *
+ * Bitmaps are not recycled on eviction, as they may still
+ * be on screen.
+ */
+public class CaptureCache implements ComponentCallbacks2 {
+    private static final long RESERVE_TIMEOUT_MS=2000;
+    private final Context ctxt;
+    private final CaptureMemoryBudget budget;
+    private final long maxBytes;
+    private final int maxPreviewSize;
+    private final LinkedHashMap<Object, Entry> entries=
+            new LinkedHashMap<Object, Entry>(16, 0.75f, true);
+    private long size=0;
+    private int hitCount=0;
+    private int missCount=0;
+    private int evictionCount=0;
+
+    /**
+     * @param ctxt
+     *          any Context; the application one is used to
+     *          register for memory callbacks
+     * @param maxBytes
+     *          the most memory the cache may hold
+     * @param maxPreviewSize
+     *          the longest side of the decoded preview kept
+     *          with each picture, in pixels, or 0 to keep only
+     *          the JPEG
+     */
+    public CaptureCache(Context ctxt, long maxBytes, int maxPreviewSize) {
+        this(ctxt, maxBytes, maxPreviewSize,
+                CaptureMemoryBudget.getInstance(ctxt));
+    }
+
+    CaptureCache(Context ctxt, long maxBytes, int maxPreviewSize,
+                 CaptureMemoryBudget budget) {
+        this.ctxt=ctxt.getApplicationContext();
+        this.budget=budget;
+        this.maxBytes=maxBytes;
+        this.maxPreviewSize=maxPreviewSize;
+        this.ctxt.registerComponentCallbacks(this);
+    }
+
+    /**
+     * Adds a picture, evicting older ones as needed. A
+     * picture larger than the whole budget is not cached.
+     * The preview is not decoded here, so this is cheap
+     * enough to call ahead of saving the picture.
+     *
+     * @param jpeg
+     *          the picture; the cache keeps this array, so do
+     *          not modify it afterwards
+     */
+    synchronized public void put(Object tag, byte[] jpeg,
+                                 int imageOrientation) {
+        Entry entry=new Entry(this, tag, jpeg, imageOrientation);
+        Entry previous=entries.remove(tag);
+
+        if (previous != null) {
+            size-=previous.size;
+        }
+
+        if (entry.size > maxBytes) {
+            return;
+        }
+
+        entries.put(tag, entry);
+        size+=entry.size;
+        trimToSize(maxBytes);
+    }
+
+    /**
+     * @return the picture with this tag, or null if it was
+     *         never cached or has been evicted
+     */
+    synchronized public Entry get(Object tag) {
+        Entry result=entries.get(tag);
+
+        if (result == null) {
+            missCount++;
+        }
+        else {
+            hitCount++;
+        }
+
+        return(result);
+    }
+
+    /**
+     * Drops a picture, e.g., when the user undoes it.
+     *
+     * @return the picture that was removed, or null
+     */
+    synchronized public Entry remove(Object tag) {
+        Entry result=entries.remove(tag);
+
+        if (result != null) {
+            size-=result.size;
+        }
+
+        return(result);
+    }
+
+    synchronized public void clear() {
+        trimToSize(0);
+    }
+
+    /**
+     * Clears the cache and stops listening for memory
+     * callbacks.
+     */
+    public void release() {
+        ctxt.unregisterComponentCallbacks(this);
+        clear();
+    }
+
+    /**
+     * @return the bytes currently held
+     */
+    synchronized public long getSize() {
+        return(size);
+    }
+
+    public long getMaxSize() {
+        return(maxBytes);
+    }
+
+    synchronized public int getHitCount() {
+        return(hitCount);
+    }
+
+    synchronized public int getMissCount() {
+        return(missCount);
+    }
+
+    /**
+     * @return the number of pictures dropped to stay within
+     *         the budget or in response to memory pressure
+     */
+    synchronized public int getEvictionCount() {
+        return(evictionCount);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_MODERATE
+                || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            clear();
+        }
+        else if (level >= TRIM_MEMORY_BACKGROUND
+                || level == TRIM_MEMORY_RUNNING_LOW) {
+            synchronized(this) {
+                trimToSize(maxBytes / 2);
+            }
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        clear();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        // no-op
+    }
+
+    // least-recently-used first, as the map is in access
+    // order
+
+    private void trimToSize(long target) {
+        Iterator<Map.Entry<Object, Entry>> i=entries.entrySet().iterator();
+
+        while (size > target && i.hasNext()) {
+            Entry eldest=i.next().getValue();
+
+            i.remove();
+            size-=eldest.size;
+            evictionCount++;
+        }
+    }
+
+    // the decode's memory is reserved until the Bitmap is
+    // counted against the cache's own budget instead
+    //
+    // @return the preview, or null if memory could not be
+    //         reserved in time
+
+    private Bitmap decodePreview(Entry entry) {
+        byte[] jpeg=entry.jpeg;
+        BitmapFactory.Options opts=new BitmapFactory.Options();
+
+        opts.inJustDecodeBounds=true;
+        BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, opts);
+
+        int longest=Math.max(opts.outWidth, opts.outHeight);
+        int sampleSize=1;
+
+        while (longest / (sampleSize * 2) >= maxPreviewSize) {
+            sampleSize*=2;
+        }
+
+        CaptureMemoryBudget.Reservation reservation;
+
+        try {
+            reservation=
+                    budget.reserve("preview",
+                            CaptureMemoryBudget.bitmapBytes(opts.outWidth / sampleSize,
+                                    opts.outHeight / sampleSize),
+                            RESERVE_TIMEOUT_MS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            return(null);
+        }
+
+        if (reservation == null) {
+            return(null);
+        }
+
+        try {
+            opts=new BitmapFactory.Options();
+            opts.inSampleSize=sampleSize;
+
+            Bitmap result=
+                    BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, opts);
+
+            if (result != null) {
+                onPreviewDecoded(entry, result.getByteCount());
+            }
+
+            return(result);
+        }
+        finally {
+            reservation.release();
+        }
+    }
+
+    // the entry may have been evicted while decoding, in
+    // which case it is no longer counted
+
+    synchronized private void onPreviewDecoded(Entry entry, long bytes) {
+        entry.size+=bytes;
+
+        if (entries.get(entry.tag) == entry) {
+            size+=bytes;
+            trimToSize(maxBytes);
+        }
+    }
+
+    /**
+     * A cached picture.
+     */
+    public static class Entry {
+        private final Object tag;
+        private final byte[] jpeg;
+        private final int imageOrientation;
+        private final CaptureCache cache;
+        private Bitmap preview=null;
+        private long size; // guarded by the cache
+
+        Entry(CaptureCache cache, Object tag, byte[] jpeg,
+              int imageOrientation) {
+            this.cache=cache;
+            this.tag=tag;
+            this.jpeg=jpeg;
+            this.imageOrientation=imageOrientation;
+            this.size=jpeg.length;
+        }
+
+        public Object getTag() {
+            return(tag);
+        }
+
+        /**
+         * @return the picture as it was saved; do not modify
+         *         it
+         */
+        public byte[] getJpeg() {
+            return(jpeg);
+        }
+
+        /**
+         * @return the orientation of the image, in degrees,
+         *         which applies to the preview too
+         */
+        public int getImageOrientation() {
+            return(imageOrientation);
+        }
+
+        /**
+         * Decodes the preview on the first call, so call this
+         * off the main thread.
+         *
+         * @return the decoded preview, or null if the cache
+         *         keeps none or there was not the memory to
+         *         decode it
+         */
+        synchronized public Bitmap getPreview() {
+            if (preview == null && cache.maxPreviewSize > 0) {
+                preview=cache.decodePreview(this);
+            }
+
+            return(preview);
+        }
+
+        /**
+         * @return the bytes this entry counts against the
+         *         budget
+         */
+        public long getSize() {
+            synchronized(cache) {
+                return(size);
+            }
+        }
+    }
+}
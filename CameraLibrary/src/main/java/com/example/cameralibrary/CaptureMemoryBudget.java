@@ -0,0 +1,209 @@
+package com.example.cameralibrary;
+
+import android.annotation.TargetApi;
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.os.Build;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Process-wide accounting of the heap used by picture
+ * cleanup work. Each stage of ImageCleanupTask reserves the
+ * bytes it is about to allocate (e.g., the decoded Bitmap,
+ * which is 4 x width x height, not the JPEG length) before
+ * doing so, and releases them when done.
+ *
+ * ImageCleanupTask takes pictures one at a time, in order,
+ * on a worker of its own, and uses tryReserve(), which
+ * never waits: if other in-flight work holds the memory, it
+ * decodes or encodes a sampled copy instead. Hosts working
+ * with a CaptureResult off that worker may use reserve(),
+ * which waits until memory is released.
+ */
+public class CaptureMemoryBudget {
+    private static volatile CaptureMemoryBudget SINGLETON=null;
+    private final long capacity;
+    private long reserved=0;
+    private final List<Reservation> reservations=new ArrayList<Reservation>();
+
+    synchronized public static CaptureMemoryBudget getInstance(Context ctxt) {
+        if (SINGLETON == null) {
+            SINGLETON=new CaptureMemoryBudget(calculateHeapSize(ctxt));
+        }
+
+        return(SINGLETON);
+    }
+
+    CaptureMemoryBudget(long capacity) {
+        this.capacity=capacity;
+    }
+
+    /**
+     * @return the total number of bytes that may be reserved
+     *         at once, across all captures
+     */
+    public long getCapacity() {
+        return(capacity);
+    }
+
+    /**
+     * @return the number of bytes currently reserved
+     */
+    synchronized public long getReservedBytes() {
+        return(reserved);
+    }
+
+    /**
+     * @return a snapshot of the outstanding reservations
+     */
+    synchronized public List<Reservation> getReservations() {
+        return(new ArrayList<Reservation>(reservations));
+    }
+
+    /**
+     * Reserves bytes if enough of the budget is free now,
+     * without waiting. As with reserve(), a reservation is
+     * always granted when nothing else is outstanding.
+     *
+     * @return the Reservation, or null if the memory is held
+     *         by other work
+     */
+    synchronized public Reservation tryReserve(String label, long bytes) {
+        if (reserved > 0 && reserved + bytes > capacity) {
+            return(null);
+        }
+
+        return(grant(label, bytes));
+    }
+
+    /**
+     * Reserves bytes, blocking until enough of the budget is
+     * free or until the timeout elapses. A reservation is
+     * always granted when nothing else is outstanding, so a
+     * single oversized request cannot wait forever; callers
+     * are expected to have sized their work with
+     * getCapacity() beforehand.
+     *
+     * @param label
+     *          a description of the stage, for diagnostics
+     * @param bytes
+     *          the number of bytes to reserve
+     * @param timeoutMs
+     *          how long to wait for memory to free up
+     * @return the Reservation, or null if the timeout
+     *         elapsed first
+     * @throws InterruptedException
+     *           if the waiting thread was interrupted
+     */
+    synchronized public Reservation reserve(String label, long bytes,
+                                            long timeoutMs)
+            throws InterruptedException {
+        long deadline=SystemClock.uptimeMillis() + timeoutMs;
+
+        while (reserved > 0 && reserved + bytes > capacity) {
+            long remaining=deadline - SystemClock.uptimeMillis();
+
+            if (remaining <= 0) {
+                return(null);
+            }
+
+            wait(remaining);
+        }
+
+        return(grant(label, bytes));
+    }
+
+    private Reservation grant(String label, long bytes) {
+        Reservation result=new Reservation(label, bytes);
+
+        reserved+=bytes;
+        reservations.add(result);
+
+        return(result);
+    }
+
+    synchronized private void release(Reservation reservation) {
+        if (reservations.remove(reservation)) {
+            reserved-=reservation.bytes;
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return the number of bytes needed to hold a decoded
+     *         ARGB_8888 Bitmap of the given dimensions
+     */
+    static long bitmapBytes(int width, int height) {
+        return((long)width * height * 4);
+    }
+
+    /**
+     * Finds the smallest power-of-two sample size for which
+     * the decoded image (times the number of copies that the
+     * caller will hold at once) fits within the limit.
+     *
+     * @return the inSampleSize to use for BitmapFactory
+     */
+    static int sampleSizeFor(int width, int height, int copies,
+                             long limit) {
+        int sampleSize=1;
+
+        while (sampleSize < 64
+                && bitmapBytes(width / sampleSize, height / sampleSize)
+                * copies > limit) {
+            sampleSize*=2;
+        }
+
+        return(sampleSize);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static long calculateHeapSize(Context ctxt) {
+        ActivityManager am=
+                (ActivityManager)ctxt.getSystemService(Context.ACTIVITY_SERVICE);
+        int memoryClass=am.getMemoryClass();
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            if ((ctxt.getApplicationInfo().flags & ApplicationInfo.FLAG_LARGE_HEAP) != 0) {
+                memoryClass=am.getLargeMemoryClass();
+            }
+        }
+
+        return(memoryClass * 1048576L); // MB * bytes in MB
+    }
+
+    /**
+     * An outstanding claim on the budget. Call release()
+     * once the memory it covers has been freed.
+     */
+    public class Reservation {
+        private final String label;
+        private final long bytes;
+
+        private Reservation(String label, long bytes) {
+            this.label=label;
+            this.bytes=bytes;
+        }
+
+        public String getLabel() {
+            return(label);
+        }
+
+        public long getBytes() {
+            return(bytes);
+        }
+
+        public void release() {
+            CaptureMemoryBudget.this.release(this);
+        }
+
+        @Override
+        public String toString() {
+            return(String.format("%s: %d bytes", label, bytes));
+        }
+    }
+}
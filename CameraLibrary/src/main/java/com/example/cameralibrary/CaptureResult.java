@@ -0,0 +1,297 @@
+package com.example.cameralibrary;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Matrix;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A handle on a captured picture, passed to
+ * CameraHost.saveImage(PictureTransaction, CaptureResult)
+ * when the PictureTransaction asked for one via
+ * needResult(). The compressed bytes are available right
+ * away; pixels are decoded only when asked for, at the size
+ * or region asked for, already rotated and mirrored as the
+ * cleanup rules require.
+ *
+ * The most recent decode is cached, so asking twice for the
+ * same thing decodes once. Asking for something else
+ * replaces (and recycles) the cached Bitmap, so do not hold
+ * on to a Bitmap from this handle past your next request.
+ * Call close() when done, which recycles the cache and
+ * releases its memory from the CaptureMemoryBudget.
+ */
+public class CaptureResult implements Closeable {
+    private static final long RESERVE_TIMEOUT_MS=2000;
+    private final byte[] data;
+    private final Matrix matrix;
+    private final int imageOrientation;
+    private final CaptureMemoryBudget budget;
+    private int sourceWidth=-1;
+    private int sourceHeight=-1;
+    private int width=-1;
+    private int height=-1;
+    private Bitmap cached=null;
+    private String cachedKey=null;
+    private CaptureMemoryBudget.Reservation reservation=null;
+    private boolean isClosed=false;
+
+    CaptureResult(byte[] data, Matrix matrix, int imageOrientation,
+                  CaptureMemoryBudget budget) {
+        this.data=data;
+        this.matrix=(matrix == null ? null : new Matrix(matrix));
+        this.imageOrientation=imageOrientation;
+        this.budget=budget;
+    }
+
+    /**
+     * @return read-only view of the picture as delivered by
+     *         the camera (e.g., JPEG), without any cleanup
+     *         applied
+     */
+    public ByteBuffer getBytes() {
+        return(ByteBuffer.wrap(data).asReadOnlyBuffer());
+    }
+
+    /**
+     * @return the orientation of the picture data, in
+     *         degrees, as with saveImage(xact, byte[], int)
+     */
+    public int getImageOrientation() {
+        return(imageOrientation);
+    }
+
+    /**
+     * @return the width of the cleaned-up picture, in pixels,
+     *         found without decoding it
+     */
+    synchronized public int getWidth() {
+        readBounds();
+
+        return(width);
+    }
+
+    /**
+     * @return the height of the cleaned-up picture, in
+     *         pixels, found without decoding it
+     */
+    synchronized public int getHeight() {
+        readBounds();
+
+        return(height);
+    }
+
+    /**
+     * @return the full-size, cleaned-up picture
+     */
+    public Bitmap getBitmap() throws IOException {
+        return(getBitmap(0));
+    }
+
+    /**
+     * Decodes the picture with the largest power-of-two
+     * sample size that keeps its longest side at or above
+     * maxSize, so it is no smaller than what was asked for.
+     *
+     * @param maxSize
+     *          the longest side wanted, in pixels, or 0 for
+     *          full size
+     * @return the cleaned-up picture
+     */
+    synchronized public Bitmap getBitmap(int maxSize) throws IOException {
+        readBounds();
+
+        int sampleSize=1;
+
+        if (maxSize > 0) {
+            while (Math.max(width, height) / (sampleSize * 2) >= maxSize) {
+                sampleSize*=2;
+            }
+        }
+
+        String key="sampled:" + sampleSize;
+
+        if (key.equals(cachedKey)) {
+            return(cached);
+        }
+
+        reserve(CaptureMemoryBudget.bitmapBytes(width / sampleSize,
+                height / sampleSize) * copies());
+
+        BitmapFactory.Options opts=new BitmapFactory.Options();
+
+        opts.inSampleSize=sampleSize;
+
+        return(cache(key,
+                BitmapFactory.decodeByteArray(data, 0, data.length, opts)));
+    }
+
+    /**
+     * Decodes just part of the picture, at full resolution.
+     *
+     * @param region
+     *          the part wanted, in the coordinates of the
+     *          cleaned-up picture (see getWidth() and
+     *          getHeight())
+     * @return the cleaned-up region
+     */
+    synchronized public Bitmap getRegion(Rect region) throws IOException {
+        readBounds();
+
+        String key="region:" + region.flattenToString();
+
+        if (key.equals(cachedKey)) {
+            return(cached);
+        }
+
+        Rect clipped=new Rect(region);
+
+        if (!clipped.intersect(0, 0, width, height)) {
+            throw new IllegalArgumentException("Region " + region
+                    + " is outside of the picture");
+        }
+
+        Rect source=toSource(clipped);
+
+        reserve(CaptureMemoryBudget.bitmapBytes(source.width(),
+                source.height()) * copies());
+
+        BitmapRegionDecoder decoder=
+                BitmapRegionDecoder.newInstance(data, 0, data.length, false);
+
+        try {
+            return(cache(key, decoder.decodeRegion(source, null)));
+        }
+        finally {
+            decoder.recycle();
+        }
+    }
+
+    /**
+     * Recycles any cached Bitmap and releases its memory.
+     * Safe to call more than once.
+     */
+    @Override
+    synchronized public void close() {
+        isClosed=true;
+        clearCache();
+    }
+
+    private Bitmap cache(String key, Bitmap decoded) throws IOException {
+        if (decoded == null) {
+            clearCache();
+
+            throw new IOException("Could not decode picture");
+        }
+
+        if (matrix != null) {
+            Bitmap transformed=
+                    Bitmap.createBitmap(decoded, 0, 0, decoded.getWidth(),
+                            decoded.getHeight(), matrix, true);
+
+            if (transformed != decoded) {
+                decoded.recycle();
+            }
+
+            decoded=transformed;
+        }
+
+        if (cached != null) {
+            cached.recycle();
+        }
+
+        cached=decoded;
+        cachedKey=key;
+
+        return(cached);
+    }
+
+    private void clearCache() {
+        if (cached != null) {
+            cached.recycle();
+            cached=null;
+        }
+
+        cachedKey=null;
+
+        if (reservation != null) {
+            reservation.release();
+            reservation=null;
+        }
+    }
+
+    // the previous decode is recycled before the next one,
+    // so only one is ever charged to the budget
+
+    private void reserve(long bytes) throws IOException {
+        if (isClosed) {
+            throw new IllegalStateException("CaptureResult is closed");
+        }
+
+        clearCache();
+
+        try {
+            reservation=
+                    budget.reserve("result", bytes, RESERVE_TIMEOUT_MS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            throw new IOException("Interrupted waiting for memory");
+        }
+    }
+
+    private int copies() {
+        return(matrix == null ? 1 : 2);
+    }
+
+    private void readBounds() {
+        if (width < 0) {
+            BitmapFactory.Options opts=new BitmapFactory.Options();
+
+            opts.inJustDecodeBounds=true;
+            BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+            sourceWidth=opts.outWidth;
+            sourceHeight=opts.outHeight;
+
+            RectF bounds=new RectF(0, 0, sourceWidth, sourceHeight);
+
+            if (matrix != null) {
+                matrix.mapRect(bounds);
+            }
+
+            width=Math.round(bounds.width());
+            height=Math.round(bounds.height());
+        }
+    }
+
+    // map a rectangle of the cleaned-up picture back onto the
+    // picture as the camera delivered it
+
+    private Rect toSource(Rect region) {
+        RectF result=new RectF(region);
+
+        if (matrix != null) {
+            RectF bounds=new RectF(0, 0, sourceWidth, sourceHeight);
+            Matrix placement=new Matrix(matrix);
+            Matrix inverse=new Matrix();
+
+            placement.mapRect(bounds);
+            placement.postTranslate(-bounds.left, -bounds.top);
+            placement.invert(inverse);
+            inverse.mapRect(result);
+        }
+
+        Rect source=new Rect();
+
+        result.round(source);
+
+        return(source);
+    }
+}
@@ -0,0 +1,54 @@
+package com.example.cameralibrary;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Implement this on your CameraHost to receive picture
+ * data without the intermediate byte[] copies of
+ * saveImage(PictureTransaction, byte[], int). Either hand
+ * back a channel (e.g., a FileChannel) from
+ * openCaptureChannel() and the JPEG will be written straight
+ * into it, or return null and receive a ByteBuffer in
+ * saveImage().
+ */
+public interface CaptureSink {
+    /**
+     * Called on a background thread when a picture is ready
+     * to be written. The library writes the JPEG to the
+     * returned channel and then closes it.
+     *
+     * @param xact
+     *          the PictureTransaction for this picture
+     * @param imageOrientation
+     *          the orientation of the image, in degrees
+     * @return the channel to write to, or null to have
+     *         saveImage(PictureTransaction, ByteBuffer, int)
+     *         called instead
+     * @throws IOException
+     *           if the channel could not be opened
+     */
+    WritableByteChannel openCaptureChannel(PictureTransaction xact,
+                                           int imageOrientation)
+            throws IOException;
+
+    /**
+     * Called on a background thread when a picture has been
+     * taken and openCaptureChannel() returned null. The
+     * buffer may be backed by a pooled direct buffer, so it
+     * is only valid for the duration of this call. If
+     * hasArray() is true, the array is the picture itself,
+     * and yours to keep without copying; either way, do not
+     * write to it.
+     *
+     * @param xact
+     *          the PictureTransaction for this picture
+     * @param image
+     *          the picture data (e.g., JPEG)
+     * @param imageOrientation
+     *          the orientation of the image, in degrees
+     */
+    void saveImage(PictureTransaction xact, ByteBuffer image,
+                   int imageOrientation);
+}
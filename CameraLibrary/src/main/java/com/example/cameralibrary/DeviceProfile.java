@@ -26,6 +26,24 @@ abstract public class DeviceProfile {
 
     abstract public RecordingHint getDefaultRecordingHint();
 
+    /**
+     * @return true if the preview must be restarted to apply
+     *         a display rotation, even in RotationMode.LIVE;
+     *         true unless overridden, as that always works
+     */
+    public boolean restartPreviewOnRotation() {
+        return(true);
+    }
+
+    /**
+     * @return true to drive the camera through Camera2 rather
+     *         than android.hardware.Camera; false unless
+     *         overridden
+     */
+    public boolean useCamera2() {
+        return(false);
+    }
+
     private static volatile DeviceProfile SINGLETON=null;
 
     synchronized public static DeviceProfile getInstance(Context ctxt) {
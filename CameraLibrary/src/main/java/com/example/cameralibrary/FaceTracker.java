@@ -0,0 +1,170 @@
+package com.example.cameralibrary;
+
+import android.graphics.RectF;
+import android.hardware.Camera;
+import android.os.SystemClock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Receives face detection results on the camera thread and
+ * hands them, at a limited rate, to a Listener on the
+ * Executor of your choice. The camera thread only copies the
+ * raw rectangles; matching faces across frames, smoothing,
+ * and conversion to CameraView coordinates happen on the
+ * Executor. Set one up via setFaceTracking() on a
+ * CameraView.
+ */
+public class FaceTracker implements Camera.FaceDetectionListener {
+    /**
+     * Implement this to receive tracked faces.
+     */
+    public interface Listener {
+        /**
+         * Called on the Executor supplied to
+         * setFaceTracking(), with the faces currently in
+         * view (possibly none).
+         */
+        void onFacesTracked(List<TrackedFace> faces);
+    }
+
+    private static final float MIN_OVERLAP=0.3f;
+    private static final float SMOOTHING=0.5f;
+    private static final int MAX_MISSED_FRAMES=2;
+
+    private final PreviewTransform transform;
+    private final Listener listener;
+    private final Executor executor;
+    private final long minIntervalMs;
+    private long lastDispatch=0;
+    private final List<Track> tracks=new ArrayList<Track>();
+    private int nextId=1;
+
+    FaceTracker(PreviewTransform transform, Listener listener,
+                Executor executor, int maxRate) {
+        this.transform=transform;
+        this.listener=listener;
+        this.executor=executor;
+        this.minIntervalMs=(maxRate > 0 ? 1000 / maxRate : 0);
+    }
+
+    @Override
+    public void onFaceDetection(Camera.Face[] faces, Camera camera) {
+        long now=SystemClock.uptimeMillis();
+
+        if (now - lastDispatch < minIntervalMs) {
+            return;
+        }
+
+        lastDispatch=now;
+
+        final int count=(faces == null ? 0 : faces.length);
+        final float[] rects=new float[count * 4];
+        final int[] scores=new int[count];
+
+        for (int i=0; i < count; i++) {
+            rects[i * 4]=faces[i].rect.left;
+            rects[i * 4 + 1]=faces[i].rect.top;
+            rects[i * 4 + 2]=faces[i].rect.right;
+            rects[i * 4 + 3]=faces[i].rect.bottom;
+            scores[i]=faces[i].score;
+        }
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onFacesTracked(track(rects, scores));
+            }
+        });
+    }
+
+    synchronized private List<TrackedFace> track(float[] rects, int[] scores) {
+        for (Track track : tracks) {
+            track.matched=false;
+        }
+
+        for (int i=0; i < scores.length; i++) {
+            RectF bounds=new RectF(rects[i * 4], rects[i * 4 + 1],
+                    rects[i * 4 + 2], rects[i * 4 + 3]);
+
+            transform.mapDriverToView(bounds);
+
+            Track best=null;
+            float bestOverlap=MIN_OVERLAP;
+
+            for (Track track : tracks) {
+                float overlap=overlap(track.bounds, bounds);
+
+                if (!track.matched && overlap >= bestOverlap) {
+                    best=track;
+                    bestOverlap=overlap;
+                }
+            }
+
+            if (best == null) {
+                best=new Track(nextId++, bounds);
+                tracks.add(best);
+            }
+            else {
+                best.bounds.left+=(bounds.left - best.bounds.left) * SMOOTHING;
+                best.bounds.top+=(bounds.top - best.bounds.top) * SMOOTHING;
+                best.bounds.right+=(bounds.right - best.bounds.right) * SMOOTHING;
+                best.bounds.bottom+=(bounds.bottom - best.bounds.bottom) * SMOOTHING;
+            }
+
+            best.matched=true;
+            best.missed=0;
+            best.score=scores[i];
+        }
+
+        List<TrackedFace> result=new ArrayList<TrackedFace>(scores.length);
+
+        for (int i=tracks.size() - 1; i >= 0; i--) {
+            Track track=tracks.get(i);
+
+            if (track.matched) {
+                result.add(new TrackedFace(track.id, new RectF(track.bounds),
+                        track.score));
+            }
+            else if (++track.missed > MAX_MISSED_FRAMES) {
+                tracks.remove(i);
+            }
+        }
+
+        Collections.reverse(result);
+
+        return(result);
+    }
+
+    // intersection over union
+
+    private static float overlap(RectF a, RectF b) {
+        float width=Math.min(a.right, b.right) - Math.max(a.left, b.left);
+        float height=Math.min(a.bottom, b.bottom) - Math.max(a.top, b.top);
+
+        if (width <= 0 || height <= 0) {
+            return(0);
+        }
+
+        float intersection=width * height;
+        float union=a.width() * a.height() + b.width() * b.height()
+                - intersection;
+
+        return(union > 0 ? intersection / union : 0);
+    }
+
+    private static class Track {
+        final int id;
+        final RectF bounds;
+        int score=0;
+        int missed=0;
+        boolean matched=false;
+
+        Track(int id, RectF bounds) {
+            this.id=id;
+            this.bounds=bounds;
+        }
+    }
+}
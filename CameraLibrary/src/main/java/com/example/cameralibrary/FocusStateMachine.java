@@ -0,0 +1,159 @@
+package com.example.cameralibrary;
+
+import android.hardware.Camera;
+import android.os.SystemClock;
+
+/**
+ * Tracks the focus state of a CameraView's camera, from
+ * both explicit autoFocus() calls and the moving callbacks
+ * of the continuous focus modes. It lets a picture that
+ * wants focus locked skip the autoFocus() round trip when
+ * continuous focus has recently converged, and counts how
+ * much time that saved. Get one from
+ * getFocusStateMachine() on a CameraView.
+ */
+public class FocusStateMachine implements Camera.AutoFocusMoveCallback {
+    public enum State {
+        INACTIVE, PASSIVE_SCAN, PASSIVE_FOCUSED, ACTIVE_SCAN,
+        FOCUSED_LOCKED, NOT_FOCUSED_LOCKED
+    }
+
+    // how long a converged continuous focus is trusted
+    // without another moving callback
+    private static final long PASSIVE_FOCUS_FRESHNESS_MS=3000;
+
+    private volatile State state=State.INACTIVE;
+    private volatile String focusMode=null;
+    private long passiveFocusedAt=0;
+    private long activeScanStartedAt=0;
+    private volatile long averageAutoFocusMs=0;
+    private volatile int autoFocusCount=0;
+    private volatile int skippedCount=0;
+    private volatile long timeSavedMs=0;
+
+    FocusStateMachine() {
+    }
+
+    public State getState() {
+        return(state);
+    }
+
+    /**
+     * @return the number of pictures taken without an
+     *         autoFocus() round trip that would otherwise
+     *         have needed one
+     */
+    public int getSkippedFocusCount() {
+        return(skippedCount);
+    }
+
+    /**
+     * @return the running average duration of explicit
+     *         autoFocus() round trips, in milliseconds
+     */
+    public long getAverageAutoFocusTime() {
+        return(averageAutoFocusMs);
+    }
+
+    /**
+     * @return the estimated tap-to-shutter time saved by
+     *         skipped focus round trips, in milliseconds,
+     *         based on the average autoFocus() duration
+     */
+    public long getEstimatedTimeSaved() {
+        return(timeSavedMs);
+    }
+
+    @Override
+    public void onAutoFocusMoving(boolean start, Camera camera) {
+        if (state == State.ACTIVE_SCAN || isLocked()) {
+            return;
+        }
+
+        if (start) {
+            state=State.PASSIVE_SCAN;
+        }
+        else {
+            state=State.PASSIVE_FOCUSED;
+            passiveFocusedAt=SystemClock.uptimeMillis();
+        }
+    }
+
+    void setFocusMode(String focusMode) {
+        if (focusMode == null || !focusMode.equals(this.focusMode)) {
+            this.focusMode=focusMode;
+            state=State.INACTIVE;
+        }
+    }
+
+    boolean isScanning() {
+        return(state == State.ACTIVE_SCAN);
+    }
+
+    void onAutoFocusStarted() {
+        state=State.ACTIVE_SCAN;
+        activeScanStartedAt=SystemClock.uptimeMillis();
+    }
+
+    void onAutoFocusFinished(boolean success) {
+        if (state == State.ACTIVE_SCAN) {
+            long elapsed=SystemClock.uptimeMillis() - activeScanStartedAt;
+
+            autoFocusCount++;
+            averageAutoFocusMs+=(elapsed - averageAutoFocusMs) / autoFocusCount;
+        }
+
+        state=(success ? State.FOCUSED_LOCKED : State.NOT_FOCUSED_LOCKED);
+    }
+
+    // cancelAutoFocus() unlocks focus, and resumes continuous
+    // focus if that is the mode
+
+    void onAutoFocusCancelled() {
+        state=State.INACTIVE;
+    }
+
+    /**
+     * Decides whether a picture that wants focus locked
+     * needs an autoFocus() call first, counting the skip if
+     * it does not.
+     *
+     * @return true if the picture can be taken right away
+     */
+    boolean tryLockWithoutScan() {
+        if (isLocked() && state == State.FOCUSED_LOCKED) {
+            return(true);
+        }
+
+        if (!needsFocus()) {
+            return(true);
+        }
+
+        if (isContinuous() && state == State.PASSIVE_FOCUSED
+                && SystemClock.uptimeMillis() - passiveFocusedAt <= PASSIVE_FOCUS_FRESHNESS_MS) {
+            skippedCount++;
+            timeSavedMs+=averageAutoFocusMs;
+
+            return(true);
+        }
+
+        return(false);
+    }
+
+    private boolean isLocked() {
+        return(state == State.FOCUSED_LOCKED
+                || state == State.NOT_FOCUSED_LOCKED);
+    }
+
+    private boolean isContinuous() {
+        return(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE.equals(focusMode)
+                || Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO.equals(focusMode));
+    }
+
+    private boolean needsFocus() {
+        return(focusMode != null
+                && !Camera.Parameters.FOCUS_MODE_FIXED.equals(focusMode)
+                && !Camera.Parameters.FOCUS_MODE_INFINITY.equals(focusMode)
+                && !Camera.Parameters.FOCUS_MODE_EDOF.equals(focusMode));
+    }
+}
@@ -1,162 +1,952 @@
 package com.example.cameralibrary;
 
-import android.annotation.TargetApi;
-import android.app.ActivityManager;
 import android.content.Context;
-import android.content.pm.ApplicationInfo;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
 import android.graphics.Matrix;
+import android.graphics.Rect;
+import android.graphics.RectF;
 import android.hardware.Camera;
 //import android.media.ExifInterface;
-import android.os.Build;
 import android.util.Log;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 //import com.android.mms.exif.ExifInterface;
 import androidx.exifinterface.media.ExifInterface;
 public class ImageCleanupTask  {
+    private static final int MAX_SAMPLE_SIZE=64;
+    private static final int THUMBNAIL_SIZE=320;
+    private static final int MAX_STRIPE_ROWS=256;
+    private static final int STRIPE_COPIES=3;
+    private static final int JPEG_QUALITY=100;
+    private static final long RENDITION_KEEP_ALIVE_SECONDS=30;
+    private static final long CLEANUP_KEEP_ALIVE_SECONDS=30;
     private byte[] data;
-    private int cameraId;
+    private Camera.CameraInfo info;
     private PictureTransaction xact=null;
-    private boolean applyMatrix=true;
-
-    ImageCleanupTask(Context ctxt, byte[] data, int cameraId,
+    private CaptureMemoryBudget budget;
+    private ByteBufferPool pool;
+    private File cacheDir;
+    private CaptureMemoryBudget.Reservation decodeReservation=null;
+    private CaptureMemoryBudget.Reservation encodeReservation=null;
+    private int decodedSampleSize=1;
+    private int encodeCapacity=0;
+    private final AtomicInteger pending=new AtomicInteger(1);
+    private static ExecutorService renditionPool=null;
+    private static ExecutorService cleanupWorker=null;
+
+    ImageCleanupTask(Context ctxt, byte[] data, Camera.CameraInfo info,
                      PictureTransaction xact) {
         this.data=data;
-        this.cameraId=cameraId;
+        this.info=info;
         this.xact=xact;
+        this.budget=CaptureMemoryBudget.getInstance(ctxt);
+        this.pool=ByteBufferPool.getInstance(ctxt);
+        this.cacheDir=ctxt.getCacheDir();
+    }
 
-        float heapPct=(float)data.length / calculateHeapSize(ctxt);
-
-        applyMatrix=(heapPct < xact.host.maxPictureCleanupHeapUsage());
+    /**
+     * Queues the cleanup behind any pictures taken before
+     * this one, on a worker thread, so the camera thread does
+     * not wait for it or for the memory it needs. A failure
+     * fails the PictureFuture.
+     */
+    void start() {
+        getCleanupWorker().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ImageCleanupTask.this.run();
+                }
+                catch (Throwable e) {
+                    Log.e(CameraView.TAG, "Exception cleaning up picture", e);
+                    releaseDecode();
+                    releaseEncode();
+                    xact.future.fail(e);
+                }
+            }
+        });
     }
 
     public void run() {
-        Camera.CameraInfo info=new Camera.CameraInfo();
-
-        Camera.getCameraInfo(cameraId, info);
-
         Matrix matrix=null;
         Bitmap cleaned=null;
         ExifInterface exif=null;
 
         int imageOrientation=0;
-        if (applyMatrix) {
-            if (info.facing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
-                if (xact.host.getDeviceProfile().portraitFFCFlipped()
-                        && (xact.displayOrientation == 90 || xact.displayOrientation == 270)) {
-                    matrix=flip(new Matrix());
-                }
-                else if (xact.mirrorFFC()) {
-                    matrix=mirror(new Matrix());
-                }
+
+        if (info.facing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
+            if (xact.host.getDeviceProfile().portraitFFCFlipped()
+                    && (xact.displayOrientation == 90 || xact.displayOrientation == 270)) {
+                matrix=flip(new Matrix());
             }
+            else if (xact.mirrorFFC()) {
+                matrix=mirror(new Matrix());
+            }
+        }
 
-            try {
-                if (xact.host.getDeviceProfile().useDeviceOrientation()) {
-                    imageOrientation=xact.displayOrientation;
-                }
-                else {
-                    ByteArrayInputStream bs = new ByteArrayInputStream(data);
-                    exif=new ExifInterface(bs);
-                   // exif.readExif(data);
+        try {
+            if (xact.host.getDeviceProfile().useDeviceOrientation()) {
+                imageOrientation=xact.displayOrientation;
+            }
+            else {
+                ByteArrayInputStream bs = new ByteArrayInputStream(data);
+                exif=new ExifInterface(bs);
+               // exif.readExif(data);
 
 //                    Integer exifOrientation=
 //                            exif.getTagIntValue(ExifInterface.TAG_ORIENTATION);
 
-                    Integer exifOrientation= exif.getAttributeInt(ExifInterface.TAG_ORIENTATION,0);
+                Integer exifOrientation= exif.getAttributeInt(ExifInterface.TAG_ORIENTATION,0);
 
-                    if (exifOrientation != null) {
-                        if (exifOrientation == 6) {
-                            imageOrientation=90;
-                        }
-                        else if (exifOrientation == 8) {
-                            imageOrientation=270;
-                        }
-                        else if (exifOrientation == 3) {
-                            imageOrientation=180;
-                        }
-                        else if (exifOrientation == 1) {
-                            imageOrientation=0;
-                        }
-                        else {
-                            // imageOrientation=
-                            // xact.host.getDeviceProfile().getDefaultOrientation();
-                            //
-                            // if (imageOrientation == -1) {
-                            // imageOrientation=xact.displayOrientation;
-                            // }
-                        }
+                if (exifOrientation != null) {
+                    if (exifOrientation == 6) {
+                        imageOrientation=90;
+                    }
+                    else if (exifOrientation == 8) {
+                        imageOrientation=270;
+                    }
+                    else if (exifOrientation == 3) {
+                        imageOrientation=180;
+                    }
+                    else if (exifOrientation == 1) {
+                        imageOrientation=0;
+                    }
+                    else {
+                        // imageOrientation=
+                        // xact.host.getDeviceProfile().getDefaultOrientation();
+                        //
+                        // if (imageOrientation == -1) {
+                        // imageOrientation=xact.displayOrientation;
+                        // }
                     }
-                }
-
-                if (imageOrientation != 0) {
-                    matrix=
-                            rotate((matrix == null ? new Matrix() : matrix),
-                                    imageOrientation);
                 }
             }
-            catch (IOException e) {
-                Log.e("CWAC-Camera", "Exception parsing JPEG", e);
-                // TODO: ripple to client
+
+            if (imageOrientation != 0) {
+                matrix=
+                        rotate((matrix == null ? new Matrix() : matrix),
+                                imageOrientation);
             }
+        }
+        catch (IOException e) {
+            Log.e("CWAC-Camera", "Exception parsing JPEG", e);
+            // TODO: ripple to client
+        }
 
-            if (matrix != null && xact.needBitmap) {
-                Bitmap original=
-                        BitmapFactory.decodeByteArray(data, 0, data.length);
+        if (xact.needThumbnail) {
+            Bitmap thumbnail=extractThumbnail(exif);
 
-                cleaned=
-                        Bitmap.createBitmap(original, 0, 0, original.getWidth(),
-                                original.getHeight(), matrix, true);
-                original.recycle();
+            if (thumbnail != null) {
+                xact.host.onThumbnailReady(xact, thumbnail, imageOrientation);
             }
         }
 
+        if (xact.needResult) {
+            xact.host.saveImage(xact,
+                    new CaptureResult(data, matrix, imageOrientation, budget));
+        }
+
+        if (!xact.renditions.isEmpty()) {
+            produceRenditions(matrix);
+        }
+
         if (xact.needBitmap) {
-            if (cleaned == null) {
-                cleaned=BitmapFactory.decodeByteArray(data, 0, data.length);
+            cleaned=decode(matrix == null ? 1 : 2, 0);
+
+            if (matrix != null && cleaned != null) {
+                Bitmap original=cleaned;
+
+                CameraTrace.begin("ImageCleanupTask.matrix");
+
+                try {
+                    cleaned=
+                            Bitmap.createBitmap(original, 0, 0,
+                                    original.getWidth(), original.getHeight(),
+                                    matrix, true);
+                }
+                finally {
+                    CameraTrace.end();
+                }
+
+                if (cleaned != original) {
+                    original.recycle();
+                }
             }
 
             xact.host.saveImage(xact, cleaned);
         }
 
         if (xact.needByteArray) {
-            if (cleaned != null) {
-                ByteArrayOutputStream out=new ByteArrayOutputStream();
-
-                // if (exif == null) {
-                cleaned.compress(Bitmap.CompressFormat.JPEG, 100, out);
-                // }
-                // else {
-                // exif.deleteTag(ExifInterface.TAG_ORIENTATION);
-                //
-                // try {
-                // exif.writeExif(cleaned, out);
-                // }
-                // catch (IOException e) {
-                // Log.e("CWAC-Camera", "Exception writing to JPEG",
-                // e);
-                // // TODO: ripple to client
-                // }
-                // }
-
-                data=out.toByteArray();
+            // if the Bitmap had to be sampled to fit, rotate the
+            // full-size image in stripes instead of re-encoding
+            // the smaller one
+
+            Matrix tiled=
+                    (matrix != null && cleaned != null && decodedSampleSize > 1
+                            ? matrix : null);
+
+            if (xact.host instanceof CaptureSink) {
+                deliverToSink((CaptureSink)xact.host, cleaned, tiled,
+                        imageOrientation);
+            }
+            else {
+                if (cleaned != null) {
+                    Bitmap encoded=reserveEncode(cleaned);
+                    ByteArrayOutputStream out=
+                            new ByteArrayOutputStream(encodeCapacity);
+
+                    try {
+                        writeJpeg(encoded, (encoded == cleaned ? tiled : null),
+                                out);
+                        data=out.toByteArray();
+                        out.close();
+                    }
+                    catch (IOException e) {
+                        Log.e(CameraView.TAG, "Exception encoding JPEG", e);
+                    }
+                    finally {
+                        if (encoded != cleaned) {
+                            encoded.recycle();
+                        }
+
+                        releaseEncode();
+                    }
+                }
+
+                xact.host.saveImage(xact, data, imageOrientation);
+            }
+        }
+
+        releaseDecode();
+        finish();
+
+        System.gc();
+    }
+
+    // the PictureFuture completes once run() and any
+    // renditions still being produced in the background have
+    // handed everything to the host
+
+    private void finish() {
+        if (pending.decrementAndGet() == 0) {
+            xact.future.complete();
+        }
+    }
+
+    // write the JPEG straight into the sink's channel, or
+    // into a pooled buffer that the sink gets a view of,
+    // rather than copying through byte arrays
+
+    private void deliverToSink(CaptureSink sink, Bitmap cleaned,
+                               Matrix tiled, int imageOrientation) {
+        WritableByteChannel channel=null;
+
+        try {
+            channel=sink.openCaptureChannel(xact, imageOrientation);
+
+            if (channel != null) {
+                if (cleaned != null) {
+                    writeJpeg(cleaned, tiled, Channels.newOutputStream(channel));
+                }
+                else {
+                    ByteBuffer buffer=ByteBuffer.wrap(data);
+
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                }
+            }
+            else if (cleaned != null) {
+                Bitmap encoded=reserveEncode(cleaned);
+                ByteBufferOutputStream out=
+                        new ByteBufferOutputStream(pool,
+                                encodeCapacity);
+
+                try {
+                    writeJpeg(encoded, (encoded == cleaned ? tiled : null), out);
+                    sink.saveImage(xact, out.toReadOnlyBuffer(),
+                            imageOrientation);
+                }
+                finally {
+                    out.release();
+
+                    if (encoded != cleaned) {
+                        encoded.recycle();
+                    }
+
+                    releaseEncode();
+                }
+            }
+            else {
+                // the array itself, so the sink can keep it
+                // without a copy
 
+                sink.saveImage(xact, ByteBuffer.wrap(data), imageOrientation);
+            }
+        }
+        catch (IOException e) {
+            xact.host.handleException(e);
+        }
+        finally {
+            if (channel != null) {
                 try {
-                    out.close();
+                    channel.close();
                 }
                 catch (IOException e) {
-                    Log.e(CameraView.TAG, "Exception in closing a BAOS???", e);
+                    xact.host.handleException(e);
                 }
             }
+        }
+    }
+
+    private void writeJpeg(Bitmap cleaned, Matrix tiled, OutputStream out)
+            throws IOException {
+        CameraTrace.begin("ImageCleanupTask.encode");
+
+        try {
+            if (tiled == null || !writeTiled(tiled, out)) {
+                cleaned.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+            }
+        }
+        finally {
+            CameraTrace.end();
+        }
+    }
+
+    // each output stripe is region-decoded from the matching
+    // part of the original, transformed, and streamed to the
+    // encoder, so peak memory is a few stripes rather than
+    // the whole image. Returns false, having written nothing,
+    // if the budget cannot spare even that, so the caller can
+    // fall back to the sampled Bitmap
+
+    private boolean writeTiled(Matrix matrix, OutputStream out)
+            throws IOException {
+        BitmapRegionDecoder decoder=
+                BitmapRegionDecoder.newInstance(data, 0, data.length, false);
+        CaptureMemoryBudget.Reservation reservation=null;
+
+        try {
+            RectF bounds=
+                    new RectF(0, 0, decoder.getWidth(), decoder.getHeight());
+            Matrix placement=new Matrix(matrix);
+            Matrix inverse=new Matrix();
+            float[] values=new float[9];
+
+            placement.mapRect(bounds);
+            placement.postTranslate(-bounds.left, -bounds.top);
+            placement.invert(inverse);
+            matrix.getValues(values);
+
+            int width=Math.round(bounds.width());
+            int height=Math.round(bounds.height());
+            long limit=
+                    (long)(budget.getCapacity() * xact.host.maxPictureCleanupHeapUsage());
+            long rowBytes=
+                    STRIPE_COPIES
+                            * CaptureMemoryBudget.bitmapBytes(Math.max(width, height), 1);
+            int stripeRows=(int)Math.min(MAX_STRIPE_ROWS, limit / rowBytes);
+
+            stripeRows=Math.max(8, stripeRows / 8 * 8);
+            reservation=tryReserve("stripes", rowBytes * stripeRows);
+
+            if (reservation == null) {
+                return(false);
+            }
+
+            int[] pixels=new int[Math.max(width, height) * stripeRows];
+            StripeJpegEncoder encoder=
+                    new StripeJpegEncoder(out, width, height, JPEG_QUALITY);
+
+            // a quarter turn makes output rows out of columns
+            // of the original
+
+            if (values[Matrix.MSKEW_X] != 0 || values[Matrix.MSKEW_Y] != 0) {
+                writeTurned(decoder, matrix, placement, width, height,
+                        stripeRows, pixels, encoder);
+            }
+            else {
+                writeStripes(decoder, matrix, inverse, width, height,
+                        stripeRows, pixels, encoder);
+            }
+
+            encoder.finish();
 
-            xact.host.saveImage(xact, data, imageOrientation);
+            return(true);
         }
+        finally {
+            decoder.recycle();
 
-        System.gc();
+            if (reservation != null) {
+                reservation.release();
+            }
+        }
+    }
+
+    private void writeStripes(BitmapRegionDecoder decoder, Matrix matrix,
+                              Matrix inverse, int width, int height,
+                              int stripeRows, int[] pixels,
+                              StripeJpegEncoder encoder)
+            throws IOException {
+        RectF region=new RectF();
+        Rect source=new Rect();
+
+        for (int top=0; top < height; top+=stripeRows) {
+            int rows=Math.min(stripeRows, height - top);
+
+            region.set(0, top, width, top + rows);
+            inverse.mapRect(region);
+            region.round(source);
+
+            Bitmap stripe=decodeTransformed(decoder, source, matrix);
+
+            stripe.getPixels(pixels, 0, width, 0, 0, width, rows);
+            stripe.recycle();
+            encoder.write(pixels, 0, width, rows);
+        }
+    }
+
+    // region-decoding a column of the original decodes all of
+    // its rows, so rather than doing that for every output
+    // stripe, decode the original once, a band of rows at a
+    // time, and park the turned bands in a scratch file that
+    // the output stripes are then read back from
+
+    private void writeTurned(BitmapRegionDecoder decoder, Matrix matrix,
+                             Matrix placement, int width, int height,
+                             int bandRows, int[] pixels,
+                             StripeJpegEncoder encoder)
+            throws IOException {
+        File scratch=File.createTempFile("stripes", ".argb", cacheDir);
+        RandomAccessFile file=new RandomAccessFile(scratch, "rw");
+
+        try {
+            IntBuffer turned=
+                    file.getChannel()
+                            .map(FileChannel.MapMode.READ_WRITE, 0,
+                                    CaptureMemoryBudget.bitmapBytes(width, height))
+                            .asIntBuffer();
+            int sourceWidth=decoder.getWidth();
+            int sourceHeight=decoder.getHeight();
+            RectF region=new RectF();
+            Rect source=new Rect();
+
+            for (int top=0; top < sourceHeight; top+=bandRows) {
+                source.set(0, top, sourceWidth,
+                        Math.min(sourceHeight, top + bandRows));
+                region.set(source);
+                placement.mapRect(region);
+
+                Bitmap band=decodeTransformed(decoder, source, matrix);
+                int left=Math.round(region.left);
+                int columns=Math.min(band.getWidth(), width - left);
+                int rows=Math.min(band.getHeight(), height);
+
+                band.getPixels(pixels, 0, columns, 0, 0, columns, rows);
+                band.recycle();
+
+                for (int y=0; y < rows; y++) {
+                    turned.position(y * width + left);
+                    turned.put(pixels, y * columns, columns);
+                }
+            }
+
+            for (int top=0; top < height; top+=bandRows) {
+                int rows=Math.min(bandRows, height - top);
+
+                turned.position(top * width);
+                turned.get(pixels, 0, width * rows);
+                encoder.write(pixels, 0, width, rows);
+            }
+        }
+        finally {
+            file.close();
+            scratch.delete();
+        }
+    }
+
+    private Bitmap decodeTransformed(BitmapRegionDecoder decoder, Rect source,
+                                     Matrix matrix) throws IOException {
+        Bitmap piece=decoder.decodeRegion(source, null);
+
+        if (piece == null) {
+            throw new IOException("Could not decode region " + source);
+        }
+
+        Bitmap result=
+                Bitmap.createBitmap(piece, 0, 0, piece.getWidth(),
+                        piece.getHeight(), matrix, false);
+
+        if (result != piece) {
+            piece.recycle();
+        }
+
+        return(result);
+    }
+
+    // reserve the decoded original plus any transformed
+    // copies the caller will make, dropping to a sampled
+    // decode rather than skipping the transform when the
+    // heap will not hold them all, or when other work holds
+    // the memory; the capture fails only if even the
+    // coarsest sample size does not fit
+
+    private Bitmap decode(int copies, int targetSize) {
+        BitmapFactory.Options opts=new BitmapFactory.Options();
+
+        opts.inJustDecodeBounds=true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+
+        long limit=
+                (long)(budget.getCapacity() * xact.host.maxPictureCleanupHeapUsage());
+        int sampleSize=
+                CaptureMemoryBudget.sampleSizeFor(opts.outWidth,
+                        opts.outHeight, copies, limit);
+
+        if (targetSize > 0) {
+            while (Math.max(opts.outWidth, opts.outHeight) / (sampleSize * 2) >= targetSize) {
+                sampleSize*=2;
+            }
+        }
+
+        releaseDecode();
+
+        while (decodeReservation == null) {
+            decodeReservation=
+                    tryReserve("decode", copies
+                            * CaptureMemoryBudget.bitmapBytes(opts.outWidth
+                            / sampleSize, opts.outHeight / sampleSize));
+
+            if (decodeReservation == null) {
+                if (sampleSize >= MAX_SAMPLE_SIZE) {
+                    throw new IllegalStateException(
+                            "No capture memory available to decode a "
+                                    + opts.outWidth + "x" + opts.outHeight
+                                    + " picture");
+                }
+
+                sampleSize*=2;
+            }
+        }
+
+        opts=new BitmapFactory.Options();
+        opts.inSampleSize=sampleSize;
+        decodedSampleSize=sampleSize;
+        CameraTrace.begin("ImageCleanupTask.decode");
+
+        try {
+            return(BitmapFactory.decodeByteArray(data, 0, data.length, opts));
+        }
+        finally {
+            CameraTrace.end();
+        }
+    }
+
+    private void releaseDecode() {
+        if (decodeReservation != null) {
+            decodeReservation.release();
+            decodeReservation=null;
+        }
+    }
+
+    // the JPEG is reserved at the size of the camera's; if
+    // other work holds that much, a sampled copy is encoded
+    // instead, with the copy and its smaller JPEG reserved,
+    // rather than encoding outside the budget
+    //
+    // @return the Bitmap to encode, which is cleaned itself
+    //         or a copy for the caller to recycle
+
+    private Bitmap reserveEncode(Bitmap cleaned) {
+        encodeCapacity=data.length;
+        encodeReservation=tryReserve("encode", encodeCapacity);
+
+        if (encodeReservation != null) {
+            return(cleaned);
+        }
+
+        for (int sampleSize=2; sampleSize <= MAX_SAMPLE_SIZE; sampleSize*=2) {
+            int width=Math.max(1, cleaned.getWidth() / sampleSize);
+            int height=Math.max(1, cleaned.getHeight() / sampleSize);
+
+            encodeCapacity=data.length / (sampleSize * sampleSize);
+            encodeReservation=
+                    tryReserve("encode",
+                            CaptureMemoryBudget.bitmapBytes(width, height)
+                                    + encodeCapacity);
+
+            if (encodeReservation != null) {
+                return(Bitmap.createScaledBitmap(cleaned, width, height, true));
+            }
+        }
+
+        throw new IllegalStateException(
+                "No capture memory available to encode a "
+                        + cleaned.getWidth() + "x" + cleaned.getHeight()
+                        + " picture");
+    }
+
+    private void releaseEncode() {
+        if (encodeReservation != null) {
+            encodeReservation.release();
+            encodeReservation=null;
+        }
+    }
+
+    // decode once, at the resolution of the largest
+    // rendition, then scale and encode each rendition on
+    // the worker pool. Encoding runs in parallel, but each
+    // rendition is handed to the host only after the smaller
+    // ones, and the camera thread does not wait for any of
+    // it
+
+    private void produceRenditions(final Matrix matrix) {
+        List<Rendition> renditions=new ArrayList<Rendition>(xact.renditions);
+        int targetSize=-1;
+        boolean needDecode=false;
+
+        Collections.sort(renditions, new Comparator<Rendition>() {
+            @Override
+            public int compare(Rendition lhs, Rendition rhs) {
+                return(sizeOf(lhs) - sizeOf(rhs));
+            }
+
+            private int sizeOf(Rendition rendition) {
+                return(rendition.isFullSize() ? Integer.MAX_VALUE
+                        : rendition.getMaxSize());
+            }
+        });
+
+        for (Rendition rendition : renditions) {
+            if (!isCameraJpeg(rendition, matrix)) {
+                needDecode=true;
+
+                if (targetSize != 0) {
+                    targetSize=
+                            (rendition.isFullSize() ? 0
+                                    : Math.max(targetSize, rendition.getMaxSize()));
+                }
+            }
+        }
+
+        final Bitmap source=(needDecode ? decode(1, targetSize) : null);
+        final RenditionBatch batch=
+                new RenditionBatch(renditions, source, decodeReservation);
+
+        // the batch releases the decode once every rendition
+        // has been delivered
+        decodeReservation=null;
+        pending.incrementAndGet();
+
+        for (int i=0; i < renditions.size(); i++) {
+            final Rendition rendition=renditions.get(i);
+            final int index=i;
+
+            if (isCameraJpeg(rendition, matrix)) {
+                // the camera's own JPEG already is this rendition
+                batch.onReady(index, ByteBuffer.wrap(data).asReadOnlyBuffer(),
+                        null);
+            }
+            else if (source == null) {
+                batch.onReady(index, null, null);
+            }
+            else {
+                getRenditionPool().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            produceRendition(batch, index, source, matrix,
+                                    rendition);
+                        }
+                        catch (RuntimeException e) {
+                            Log.e(CameraView.TAG, "Exception producing rendition",
+                                    e);
+                            batch.onReady(index, null, null);
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    private boolean isCameraJpeg(Rendition rendition, Matrix matrix) {
+        return(rendition.isFullSize() && matrix == null
+                && rendition.getFormat() == Bitmap.CompressFormat.JPEG);
+    }
+
+    private void produceRendition(RenditionBatch batch, int index,
+                                  Bitmap source, Matrix matrix,
+                                  Rendition rendition) {
+        Matrix transform=(matrix == null ? new Matrix() : new Matrix(matrix));
+        int longest=Math.max(source.getWidth(), source.getHeight());
+
+        if (!rendition.isFullSize() && rendition.getMaxSize() < longest) {
+            float scale=(float)rendition.getMaxSize() / longest;
+
+            transform.postScale(scale, scale);
+        }
+
+        CaptureMemoryBudget.Reservation reservation=null;
+        Bitmap scaled=source;
+
+        if (!transform.isIdentity()) {
+            float[] size={ source.getWidth(), source.getHeight() };
+
+            transform.mapVectors(size);
+            reservation=
+                    tryReserve("rendition " + rendition.getName(),
+                            CaptureMemoryBudget.bitmapBytes((int)Math.abs(size[0]),
+                                    (int)Math.abs(size[1])));
+
+            // the rendition is skipped rather than produced
+            // outside the budget
+
+            if (reservation == null) {
+                Log.w(CameraView.TAG, "No capture memory available for rendition "
+                        + rendition.getName());
+                batch.onReady(index, null, null);
+
+                return;
+            }
+
+            scaled=
+                    Bitmap.createBitmap(source, 0, 0, source.getWidth(),
+                            source.getHeight(), transform, true);
+        }
+
+        ByteBufferOutputStream out=null;
+
+        try {
+            out=
+                    new ByteBufferOutputStream(pool,
+                            scaled.getByteCount() / 8);
+            scaled.compress(rendition.getFormat(), rendition.getQuality(), out);
+            batch.onReady(index, out.toReadOnlyBuffer(), out);
+            out=null;
+        }
+        finally {
+            if (out != null) {
+                out.release();
+            }
+
+            if (scaled != source) {
+                scaled.recycle();
+            }
+
+            if (reservation != null) {
+                reservation.release();
+            }
+        }
+    }
+
+    // idle workers time out, so the pool holds no threads
+    // between pictures and needs no shutdown
+
+    private static synchronized ExecutorService getRenditionPool() {
+        if (renditionPool == null) {
+            int threads=
+                    Math.max(2, Runtime.getRuntime().availableProcessors() - 1);
+            ThreadPoolExecutor pool=
+                    new ThreadPoolExecutor(threads, threads,
+                            RENDITION_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                            new LinkedBlockingQueue<Runnable>());
+
+            pool.allowCoreThreadTimeOut(true);
+            renditionPool=pool;
+        }
+
+        return(renditionPool);
+    }
+
+    // one thread, so pictures are cleaned up in the order
+    // they were taken; it times out when idle, as the
+    // rendition pool does
+
+    private static synchronized ExecutorService getCleanupWorker() {
+        if (cleanupWorker == null) {
+            ThreadPoolExecutor worker=
+                    new ThreadPoolExecutor(1, 1, CLEANUP_KEEP_ALIVE_SECONDS,
+                            TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+            worker.allowCoreThreadTimeOut(true);
+            cleanupWorker=worker;
+        }
+
+        return(cleanupWorker);
+    }
+
+    // holds encoded renditions until every smaller one has
+    // been delivered, then hands them to the host in order;
+    // whichever thread completes the next rendition in line
+    // does the delivering, one thread at a time
+
+    private class RenditionBatch {
+        private final List<Rendition> renditions;
+        private final Bitmap source;
+        private final CaptureMemoryBudget.Reservation reservation;
+        private final ByteBuffer[] images;
+        private final ByteBufferOutputStream[] owners;
+        private final boolean[] ready;
+        private int next=0;
+        private boolean delivering=false;
+
+        RenditionBatch(List<Rendition> renditions, Bitmap source,
+                       CaptureMemoryBudget.Reservation reservation) {
+            this.renditions=renditions;
+            this.source=source;
+            this.reservation=reservation;
+            images=new ByteBuffer[renditions.size()];
+            owners=new ByteBufferOutputStream[renditions.size()];
+            ready=new boolean[renditions.size()];
+        }
+
+        // a null image means that rendition failed and is
+        // skipped
+
+        void onReady(int index, ByteBuffer image, ByteBufferOutputStream owner) {
+            synchronized(this) {
+                images[index]=image;
+                owners[index]=owner;
+                ready[index]=true;
+
+                if (delivering) {
+                    return;
+                }
+
+                delivering=true;
+            }
+
+            while (true) {
+                ByteBuffer nextImage=null;
+                ByteBufferOutputStream nextOwner=null;
+                Rendition rendition=null;
+                boolean done=false;
+
+                synchronized(this) {
+                    if (next == ready.length) {
+                        done=true;
+                    }
+                    else if (!ready[next]) {
+                        delivering=false;
+
+                        return;
+                    }
+                    else {
+                        nextImage=images[next];
+                        nextOwner=owners[next];
+                        rendition=renditions.get(next);
+                        images[next]=null;
+                        owners[next]=null;
+                        next++;
+                    }
+                }
+
+                if (done) {
+                    onDelivered();
+
+                    return;
+                }
+
+                if (nextImage != null) {
+                    try {
+                        xact.host.saveRendition(xact, rendition, nextImage);
+                    }
+                    catch (RuntimeException e) {
+                        Log.e(CameraView.TAG, "Exception saving rendition", e);
+                    }
+                    finally {
+                        if (nextOwner != null) {
+                            nextOwner.release();
+                        }
+                    }
+                }
+            }
+        }
+
+        private void onDelivered() {
+            if (source != null) {
+                source.recycle();
+            }
+
+            if (reservation != null) {
+                reservation.release();
+            }
+
+            finish();
+        }
+    }
+
+    // use the thumbnail the camera embedded in the EXIF
+    // data if there is one, as that avoids touching the main
+    // image; otherwise, decode it heavily sampled
+
+    private Bitmap extractThumbnail(ExifInterface exif) {
+        try {
+            if (exif == null) {
+                exif=new ExifInterface(new ByteArrayInputStream(data));
+            }
+
+            if (exif.hasThumbnail()) {
+                Bitmap result=exif.getThumbnailBitmap();
+
+                if (result != null) {
+                    return(result);
+                }
+            }
+        }
+        catch (IOException e) {
+            Log.e(CameraView.TAG, "Exception reading EXIF thumbnail", e);
+        }
+
+        BitmapFactory.Options opts=new BitmapFactory.Options();
+
+        opts.inJustDecodeBounds=true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+
+        int sampleSize=1;
+
+        while (Math.max(opts.outWidth, opts.outHeight) / (sampleSize * 2) >= THUMBNAIL_SIZE) {
+            sampleSize*=2;
+        }
+
+        opts=new BitmapFactory.Options();
+        opts.inSampleSize=sampleSize;
+
+        return(BitmapFactory.decodeByteArray(data, 0, data.length, opts));
+    }
+
+    // idle pooled buffers give way to the picture at hand
+
+    private CaptureMemoryBudget.Reservation tryReserve(String label,
+                                                      long bytes) {
+        CaptureMemoryBudget.Reservation result=budget.tryReserve(label, bytes);
+
+        if (result == null && pool.trim()) {
+            result=budget.tryReserve(label, bytes);
+        }
+
+        return(result);
     }
 
     // from http://stackoverflow.com/a/8347956/115145
@@ -187,19 +977,4 @@ public class ImageCleanupTask  {
 
         return(input);
     }
-
-    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
-    private static int calculateHeapSize(Context ctxt) {
-        ActivityManager am=
-                (ActivityManager)ctxt.getSystemService(Context.ACTIVITY_SERVICE);
-        int memoryClass=am.getMemoryClass();
-
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
-            if ((ctxt.getApplicationInfo().flags & ApplicationInfo.FLAG_LARGE_HEAP) != 0) {
-                memoryClass=am.getLargeMemoryClass();
-            }
-        }
-
-        return(memoryClass * 1048576); // MB * bytes in MB
-    }
 }
\ No newline at end of file
@@ -0,0 +1,178 @@
+package com.example.cameralibrary;
+
+import android.annotation.TargetApi;
+import android.hardware.Camera;
+import android.media.MediaRecorder;
+import android.os.Build;
+
+import java.io.IOException;
+
+/**
+ * The default CameraBackend, passing each call through to
+ * an android.hardware.Camera.
+ */
+class LegacyCameraBackend implements CameraBackend {
+    static final CameraBackend.Factory FACTORY=new CameraBackend.Factory() {
+        @Override
+        public int getNumberOfCameras() {
+            return(Camera.getNumberOfCameras());
+        }
+
+        @Override
+        public void getCameraInfo(int cameraId, Camera.CameraInfo info) {
+            Camera.getCameraInfo(cameraId, info);
+        }
+
+        @Override
+        public CameraBackend open(int cameraId) {
+            return(new LegacyCameraBackend(Camera.open(cameraId)));
+        }
+    };
+
+    private final Camera camera;
+
+    LegacyCameraBackend(Camera camera) {
+        this.camera=camera;
+    }
+
+    @Override
+    public Camera getCamera() {
+        return(camera);
+    }
+
+    @Override
+    public Camera.Parameters getParameters() {
+        return(camera.getParameters());
+    }
+
+    @Override
+    public void setParameters(Camera.Parameters params) {
+        camera.setParameters(params);
+    }
+
+    @Override
+    public void setErrorCallback(Camera.ErrorCallback cb) {
+        camera.setErrorCallback(cb);
+    }
+
+    @Override
+    public void setDisplayOrientation(int degrees) {
+        camera.setDisplayOrientation(degrees);
+    }
+
+    @Override
+    public void attachPreview(PreviewStrategy strategy) throws IOException {
+        strategy.attach(camera);
+    }
+
+    @Override
+    public void startPreview() {
+        camera.startPreview();
+    }
+
+    @Override
+    public void stopPreview() {
+        camera.stopPreview();
+    }
+
+    @Override
+    public void setPreviewCallback(Camera.PreviewCallback cb) {
+        camera.setPreviewCallback(cb);
+    }
+
+    @Override
+    public void setPreviewCallbackWithBuffer(Camera.PreviewCallback cb) {
+        camera.setPreviewCallbackWithBuffer(cb);
+    }
+
+    @Override
+    public void addCallbackBuffer(byte[] buffer) {
+        camera.addCallbackBuffer(buffer);
+    }
+
+    @Override
+    public void autoFocus(Camera.AutoFocusCallback cb) {
+        camera.autoFocus(cb);
+    }
+
+    @Override
+    public void cancelAutoFocus() {
+        camera.cancelAutoFocus();
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    @Override
+    public void setAutoFocusMoveCallback(Camera.AutoFocusMoveCallback cb) {
+        camera.setAutoFocusMoveCallback(cb);
+    }
+
+    @Override
+    public void takePicture(Camera.ShutterCallback shutter,
+                            Camera.PictureCallback raw,
+                            Camera.PictureCallback jpeg) {
+        camera.takePicture(shutter, raw, jpeg);
+    }
+
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    @Override
+    public void setFaceDetectionListener(Camera.FaceDetectionListener listener) {
+        camera.setFaceDetectionListener(listener);
+    }
+
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    @Override
+    public void startFaceDetection() {
+        camera.startFaceDetection();
+    }
+
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    @Override
+    public void stopFaceDetection() {
+        camera.stopFaceDetection();
+    }
+
+    @Override
+    public void setZoomChangeListener(Camera.OnZoomChangeListener listener) {
+        camera.setZoomChangeListener(listener);
+    }
+
+    @Override
+    public void startSmoothZoom(int value) {
+        camera.startSmoothZoom(value);
+    }
+
+    @Override
+    public void stopSmoothZoom() {
+        camera.stopSmoothZoom();
+    }
+
+    @Override
+    public boolean canRecord() {
+        return(true);
+    }
+
+    @Override
+    public void attachRecorder(MediaRecorder recorder) {
+        recorder.setCamera(camera);
+    }
+
+    @Override
+    public void lock() {
+        camera.lock();
+    }
+
+    @Override
+    public void unlock() {
+        camera.unlock();
+    }
+
+    @Override
+    public void reconnect() throws IOException {
+        camera.reconnect();
+    }
+
+    @Override
+    public void release() {
+        camera.release();
+    }
+}
@@ -0,0 +1,196 @@
+package com.example.cameralibrary;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.hardware.SensorManager;
+import android.hardware.display.DisplayManager;
+import android.os.Build;
+import android.os.SystemClock;
+import android.view.OrientationEventListener;
+import android.view.WindowManager;
+
+/**
+ * The single orientation sensor subscription for a
+ * CameraView. Raw readings are snapped to 0/90/180/270, but
+ * only after the device has moved past the 45-degree
+ * boundary by HYSTERESIS_DEGREES and stayed there for
+ * DEBOUNCE_MS, so holding the device near a diagonal does
+ * not make the output flap. Display rotation changes are
+ * reported separately, from DisplayManager where available.
+ */
+class OrientationEngine extends OrientationEventListener {
+    interface Listener {
+        /**
+         * Called on the main application thread when the
+         * settled device orientation changes.
+         *
+         * @param degrees
+         *          0, 90, 180, or 270
+         */
+        void onDeviceOrientationChanged(int degrees);
+
+        /**
+         * Called on the main application thread when the
+         * rotation of the display changes.
+         *
+         * @param rotation
+         *          a Surface.ROTATION_* value
+         */
+        void onDisplayRotationChanged(int rotation);
+    }
+
+    private static final int HYSTERESIS_DEGREES=15;
+    private static final long DEBOUNCE_MS=250;
+
+    private final Context ctxt;
+    private final Listener listener;
+    private final WindowManager windowManager;
+    private Object displayListener=null;
+    private int stableOrientation=ORIENTATION_UNKNOWN;
+    private int candidateOrientation=ORIENTATION_UNKNOWN;
+    private long candidateSince=0;
+    private int lastRotation=-1;
+    private boolean isEnabled=false;
+
+    OrientationEngine(Context ctxt, Listener listener) {
+        super(ctxt, SensorManager.SENSOR_DELAY_NORMAL);
+        this.ctxt=ctxt;
+        this.listener=listener;
+        this.windowManager=
+                (WindowManager)ctxt.getSystemService(Context.WINDOW_SERVICE);
+    }
+
+    /**
+     * Forgets the settled orientation, so the next reading
+     * is reported right away.
+     */
+    void reset() {
+        stableOrientation=ORIENTATION_UNKNOWN;
+        candidateOrientation=ORIENTATION_UNKNOWN;
+    }
+
+    /**
+     * @return the settled device orientation in degrees, or
+     *         ORIENTATION_UNKNOWN
+     */
+    int getOrientation() {
+        return(stableOrientation);
+    }
+
+    @Override
+    public void enable() {
+        if (isEnabled) {
+            return;
+        }
+
+        isEnabled=true;
+        lastRotation=windowManager.getDefaultDisplay().getRotation();
+
+        if (canDetectOrientation()) {
+            super.enable();
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            registerDisplayListener();
+        }
+    }
+
+    @Override
+    public void disable() {
+        isEnabled=false;
+        super.disable();
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            unregisterDisplayListener();
+        }
+    }
+
+    @Override
+    public void onOrientationChanged(int orientation) {
+        if (displayListener == null) {
+            checkDisplayRotation();
+        }
+
+        if (orientation == ORIENTATION_UNKNOWN) {
+            return;
+        }
+
+        if (stableOrientation == ORIENTATION_UNKNOWN) {
+            stableOrientation=snap(orientation);
+            listener.onDeviceOrientationChanged(stableOrientation);
+
+            return;
+        }
+
+        if (distance(orientation, stableOrientation) < 45 + HYSTERESIS_DEGREES) {
+            candidateOrientation=ORIENTATION_UNKNOWN;
+
+            return;
+        }
+
+        int snapped=snap(orientation);
+        long now=SystemClock.uptimeMillis();
+
+        if (snapped != candidateOrientation) {
+            candidateOrientation=snapped;
+            candidateSince=now;
+        }
+        else if (now - candidateSince >= DEBOUNCE_MS) {
+            stableOrientation=snapped;
+            candidateOrientation=ORIENTATION_UNKNOWN;
+            listener.onDeviceOrientationChanged(stableOrientation);
+        }
+    }
+
+    private void checkDisplayRotation() {
+        int rotation=windowManager.getDefaultDisplay().getRotation();
+
+        if (rotation != lastRotation) {
+            lastRotation=rotation;
+            listener.onDisplayRotationChanged(rotation);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
+    private void registerDisplayListener() {
+        DisplayManager.DisplayListener dl=new DisplayManager.DisplayListener() {
+            @Override
+            public void onDisplayAdded(int displayId) {
+                // no-op
+            }
+
+            @Override
+            public void onDisplayRemoved(int displayId) {
+                // no-op
+            }
+
+            @Override
+            public void onDisplayChanged(int displayId) {
+                checkDisplayRotation();
+            }
+        };
+
+        ((DisplayManager)ctxt.getSystemService(Context.DISPLAY_SERVICE))
+                .registerDisplayListener(dl, null);
+        displayListener=dl;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
+    private void unregisterDisplayListener() {
+        if (displayListener != null) {
+            ((DisplayManager)ctxt.getSystemService(Context.DISPLAY_SERVICE))
+                    .unregisterDisplayListener((DisplayManager.DisplayListener)displayListener);
+            displayListener=null;
+        }
+    }
+
+    private static int snap(int orientation) {
+        return(((orientation + 45) / 90 * 90) % 360);
+    }
+
+    private static int distance(int a, int b) {
+        int diff=Math.abs(a - b) % 360;
+
+        return(diff > 180 ? 360 - diff : diff);
+    }
+}
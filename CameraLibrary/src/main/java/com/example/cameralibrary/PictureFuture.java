@@ -0,0 +1,149 @@
+package com.example.cameralibrary;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Completion handle for a picture requested via
+ * takePicture(). The picture waits in a queue until the
+ * preview is ready; until the shutter fires, it can be
+ * cancelled, and it fails with a TimeoutException if the
+ * PictureTransaction's timeout elapses first. get() returns
+ * the PictureTransaction once the CameraHost has been handed
+ * the results.
+ */
+public final class PictureFuture implements Future<PictureTransaction> {
+    private static final int QUEUED=0;
+    private static final int TAKING=1;
+    private static final int DONE=2;
+    private static final int FAILED=3;
+    private static final int CANCELLED=4;
+
+    private static final String TRACE_SECTION="capture";
+
+    private final PictureTransaction xact;
+    private final int traceCookie=CameraTrace.nextCookie();
+    private int state=QUEUED;
+    private Throwable failure=null;
+
+    PictureFuture(PictureTransaction xact) {
+        this.xact=xact;
+        CameraTrace.beginAsync(TRACE_SECTION, traceCookie);
+    }
+
+    /**
+     * Cancels the picture, if the shutter has not yet fired.
+     *
+     * @param mayInterruptIfRunning
+     *          ignored; a picture in progress cannot be
+     *          interrupted
+     * @return true if the picture was cancelled
+     */
+    @Override
+    synchronized public boolean cancel(boolean mayInterruptIfRunning) {
+        if (state != QUEUED) {
+            return(false);
+        }
+
+        state=CANCELLED;
+        CameraTrace.endAsync(TRACE_SECTION, traceCookie);
+        notifyAll();
+
+        return(true);
+    }
+
+    @Override
+    synchronized public boolean isCancelled() {
+        return(state == CANCELLED);
+    }
+
+    @Override
+    synchronized public boolean isDone() {
+        return(state >= DONE);
+    }
+
+    /**
+     * @return true if the request is still waiting in the
+     *         queue
+     */
+    synchronized public boolean isQueued() {
+        return(state == QUEUED);
+    }
+
+    @Override
+    synchronized public PictureTransaction get()
+            throws InterruptedException, ExecutionException {
+        while (state < DONE) {
+            wait();
+        }
+
+        return(result());
+    }
+
+    @Override
+    synchronized public PictureTransaction get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline=System.nanoTime() + unit.toNanos(timeout);
+
+        while (state < DONE) {
+            long remaining=deadline - System.nanoTime();
+
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+
+        return(result());
+    }
+
+    private PictureTransaction result() throws ExecutionException {
+        if (state == CANCELLED) {
+            throw new CancellationException();
+        }
+
+        if (state == FAILED) {
+            throw new ExecutionException(failure);
+        }
+
+        return(xact);
+    }
+
+    // moves a queued request to in-progress, if it has not
+    // been cancelled or timed out in the meantime
+
+    synchronized boolean start() {
+        if (state != QUEUED) {
+            return(false);
+        }
+
+        state=TAKING;
+
+        return(true);
+    }
+
+    synchronized void complete() {
+        if (state < DONE) {
+            state=DONE;
+            CameraTrace.endAsync(TRACE_SECTION, traceCookie);
+            notifyAll();
+        }
+    }
+
+    synchronized boolean fail(Throwable t) {
+        if (state >= DONE) {
+            return(false);
+        }
+
+        state=FAILED;
+        failure=t;
+        CameraTrace.endAsync(TRACE_SECTION, traceCookie);
+        notifyAll();
+
+        return(true);
+    }
+}
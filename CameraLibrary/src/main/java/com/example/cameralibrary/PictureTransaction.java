@@ -1,11 +1,21 @@
 package com.example.cameralibrary;
 
 import android.hardware.Camera;
+import java.util.ArrayList;
+import java.util.List;
 
 public class PictureTransaction implements Camera.ShutterCallback {
     CameraHost host=null;
     boolean needBitmap=false;
     boolean needByteArray=true;
+    boolean needThumbnail=false;
+    boolean needResult=false;
+    final List<Rendition> renditions=new ArrayList<Rendition>();
+    boolean lockFocus=false;
+    int priority=0;
+    long timeoutMs=0;
+    long sequence=0;
+    PictureFuture future=null;
     private Object tag=null;
     boolean mirrorFFC=false;
     boolean useSingleShotMode=false;
@@ -29,6 +39,77 @@ public class PictureTransaction implements Camera.ShutterCallback {
         return(this);
     }
 
+    /**
+     * Call this to have saveImage() called on the CameraHost
+     * with a CaptureResult, which decodes the picture lazily,
+     * at the size or region the host asks for. Combine with
+     * needBitmap(false) and needByteArray(false) to skip the
+     * eager outputs entirely.
+     */
+    public PictureTransaction needResult(boolean needResult) {
+        this.needResult=needResult;
+
+        return(this);
+    }
+
+    /**
+     * Call this to have onThumbnailReady() called on the
+     * CameraHost with a small preview of the picture, before
+     * the full picture is processed.
+     */
+    public PictureTransaction needThumbnail(boolean needThumbnail) {
+        this.needThumbnail=needThumbnail;
+
+        return(this);
+    }
+
+    /**
+     * Call this to have an additional output produced from
+     * the picture and passed to saveRendition() on the
+     * CameraHost. All renditions are produced from a single
+     * decode of the picture and encoded in parallel, but are
+     * handed to the host smallest first.
+     */
+    public PictureTransaction rendition(Rendition rendition) {
+        renditions.add(rendition);
+
+        return(this);
+    }
+
+    /**
+     * When several pictures are waiting for the preview to
+     * be ready, the ones with higher priority are taken
+     * first; equal priorities are taken in request order.
+     */
+    public PictureTransaction priority(int priority) {
+        this.priority=priority;
+
+        return(this);
+    }
+
+    /**
+     * If the picture has not been started within this many
+     * milliseconds of the request, it is dropped and its
+     * PictureFuture fails with a TimeoutException.
+     */
+    public PictureTransaction timeout(long timeoutMs) {
+        this.timeoutMs=timeoutMs;
+
+        return(this);
+    }
+
+    /**
+     * Call this to have focus locked before the picture is
+     * taken. If continuous focus has just reported that it
+     * is in focus, the picture is taken right away;
+     * otherwise, autoFocus() is called first.
+     */
+    public PictureTransaction lockFocus(boolean lockFocus) {
+        this.lockFocus=lockFocus;
+
+        return(this);
+    }
+
     public Object getTag() {
         return(tag);
     }
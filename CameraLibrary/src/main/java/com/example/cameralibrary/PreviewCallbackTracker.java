@@ -0,0 +1,197 @@
+package com.example.cameralibrary;
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+
+/**
+ * Sits between the camera and the application's
+ * PreviewCallback, keeping track of which callback buffers
+ * the camera currently holds. Stopping the preview (which
+ * clears the preview callback) or closing the camera throws
+ * those buffers away; CameraView calls restore() on the
+ * next start to register the callback again and hand the
+ * same buffers back, so the application does not have to.
+ *
+ * Tracking is allocation-free once warmed up: buffers are
+ * matched by identity in an array that grows only when the
+ * camera holds more of them than it ever has before, so no
+ * buffer goes untracked. New buffers are allocated only if
+ * the preview size has changed, since the old ones would
+ * then be the wrong size.
+ */
+class PreviewCallbackTracker implements Camera.PreviewCallback {
+    private static final int INITIAL_BUFFERS=16;
+    private byte[][] queued=new byte[INITIAL_BUFFERS][];
+    private int queuedCount=0;
+    private int bufferSize=0;
+    private boolean needsRestore=false;
+    private int restoreCount=0;
+    private int reallocationCount=0;
+    private volatile Camera.PreviewCallback client=null;
+    private volatile PreviewLatencyMonitor monitor=null;
+
+    void setClient(Camera.PreviewCallback client) {
+        this.client=client;
+
+        if (client == null) {
+            clear();
+        }
+    }
+
+    /**
+     * Has each frame recorded with the monitor, for preview
+     * strategies with no display-side hook of their own.
+     */
+    void setLatencyMonitor(PreviewLatencyMonitor monitor) {
+        this.monitor=monitor;
+    }
+
+    @Override
+    public void onPreviewFrame(byte[] data, Camera camera) {
+        PreviewLatencyMonitor currentMonitor=monitor;
+
+        if (currentMonitor != null) {
+            currentMonitor.onFrame(0, System.nanoTime());
+        }
+
+        remove(data);
+
+        Camera.PreviewCallback current=client;
+
+        if (current != null) {
+            current.onPreviewFrame(data, camera);
+        }
+    }
+
+    /**
+     * Records a buffer being handed to the camera, swapping
+     * it for a correctly-sized one if it is left over from a
+     * different preview size.
+     *
+     * @return the buffer to give to the camera
+     */
+    byte[] onBufferAdded(byte[] buffer) {
+        if (bufferSize > 0 && buffer.length < bufferSize) {
+            buffer=new byte[bufferSize];
+            reallocationCount++;
+        }
+
+        if (queuedCount == queued.length) {
+            byte[][] grown=new byte[queued.length * 2][];
+
+            System.arraycopy(queued, 0, grown, 0, queuedCount);
+            queued=grown;
+        }
+
+        queued[queuedCount++]=buffer;
+
+        return(buffer);
+    }
+
+    /**
+     * Notes that the camera has discarded its queued
+     * buffers, e.g., via setPreviewCallback(null) or
+     * release().
+     */
+    void onBuffersDiscarded() {
+        needsRestore=true;
+    }
+
+    /**
+     * If the camera discarded its buffers since the last
+     * restore, registers this tracker as the preview callback
+     * again and gives the camera back the buffers it held,
+     * reallocating them only if the preview size changed.
+     * Call on the camera thread, before starting the preview.
+     */
+    void restore(CameraBackend camera, Camera.Parameters params,
+                 boolean withBuffer) {
+        if (!needsRestore || client == null) {
+            return;
+        }
+
+        needsRestore=false;
+
+        // start from an empty queue, so a buffer the camera
+        // did keep is not added twice
+
+        camera.setPreviewCallbackWithBuffer(null);
+
+        if (!withBuffer) {
+            camera.setPreviewCallback(this);
+
+            return;
+        }
+
+        int size=getBufferSize(params);
+
+        if (size != bufferSize) {
+            if (bufferSize > 0) {
+                for (int i=0; i < queuedCount; i++) {
+                    queued[i]=new byte[size];
+                    reallocationCount++;
+                }
+            }
+
+            bufferSize=size;
+        }
+
+        camera.setPreviewCallbackWithBuffer(this);
+
+        for (int i=0; i < queuedCount; i++) {
+            camera.addCallbackBuffer(queued[i]);
+        }
+
+        restoreCount++;
+    }
+
+    /**
+     * @return the number of times buffers were handed back to
+     *         the camera after a restart
+     */
+    int getRestoreCount() {
+        return(restoreCount);
+    }
+
+    /**
+     * @return the number of buffers allocated because the
+     *         preview size changed
+     */
+    int getReallocationCount() {
+        return(reallocationCount);
+    }
+
+    void setBufferSize(Camera.Parameters params) {
+        if (params != null) {
+            bufferSize=getBufferSize(params);
+        }
+    }
+
+    private void remove(byte[] buffer) {
+        for (int i=0; i < queuedCount; i++) {
+            if (queued[i] == buffer) {
+                queuedCount--;
+                queued[i]=queued[queuedCount];
+                queued[queuedCount]=null;
+
+                return;
+            }
+        }
+    }
+
+    private void clear() {
+        for (int i=0; i < queuedCount; i++) {
+            queued[i]=null;
+        }
+
+        queuedCount=0;
+        needsRestore=false;
+    }
+
+    private static int getBufferSize(Camera.Parameters params) {
+        Camera.Size size=params.getPreviewSize();
+        int bitsPerPixel=ImageFormat.getBitsPerPixel(params.getPreviewFormat());
+
+        return(size.width * size.height * bitsPerPixel / 8);
+    }
+}
@@ -0,0 +1,153 @@
+package com.example.cameralibrary;
+
+import java.util.Arrays;
+
+/**
+ * Collects preview frame timings for a CameraView: the time
+ * from starting the preview to the first frame, the interval
+ * between frames, and, where the preview strategy can supply
+ * the camera's own timestamp for a frame, the latency from
+ * the sensor to the frame being handed to the display.
+ *
+ * With TexturePreviewStrategy, frames are observed as the
+ * TextureView receives them, and the camera timestamp comes
+ * from SurfaceTexture.getTimestamp(). A SurfaceView offers
+ * no such hook, so with SurfacePreviewStrategy frames are
+ * observed through the preview callback, if one is
+ * registered, and no latency is available.
+ *
+ * Recording a frame does not allocate; the most recent
+ * SAMPLE_COUNT samples are kept in ring buffers, and
+ * percentiles are computed when asked for.
+ */
+public class PreviewLatencyMonitor {
+    private static final int SAMPLE_COUNT=256;
+    private final long[] latencies=new long[SAMPLE_COUNT];
+    private final long[] intervals=new long[SAMPLE_COUNT];
+    private int latencyCount=0;
+    private int latencyNext=0;
+    private int intervalCount=0;
+    private int intervalNext=0;
+    private long previewStartedAt=0;
+    private long timeToFirstFrame=-1;
+    private long lastFrameAt=0;
+    private long frameCount=0;
+    private String source=null;
+
+    /**
+     * Called on the camera thread when the preview starts, so
+     * the next frame counts as the first.
+     */
+    synchronized void onPreviewStarted(long now) {
+        previewStartedAt=now;
+        lastFrameAt=0;
+    }
+
+    /**
+     * Records a frame.
+     *
+     * @param cameraTimestamp
+     *          when the camera captured the frame, in
+     *          System.nanoTime() terms, or 0 if unknown
+     * @param now
+     *          System.nanoTime() when the frame was observed
+     */
+    synchronized void onFrame(long cameraTimestamp, long now) {
+        frameCount++;
+
+        if (previewStartedAt > 0) {
+            timeToFirstFrame=now - previewStartedAt;
+            previewStartedAt=0;
+        }
+
+        if (lastFrameAt > 0) {
+            intervals[intervalNext]=now - lastFrameAt;
+            intervalNext=(intervalNext + 1) % SAMPLE_COUNT;
+            intervalCount=Math.min(intervalCount + 1, SAMPLE_COUNT);
+        }
+
+        lastFrameAt=now;
+
+        if (cameraTimestamp > 0 && cameraTimestamp <= now) {
+            latencies[latencyNext]=now - cameraTimestamp;
+            latencyNext=(latencyNext + 1) % SAMPLE_COUNT;
+            latencyCount=Math.min(latencyCount + 1, SAMPLE_COUNT);
+        }
+    }
+
+    synchronized void setSource(String source) {
+        this.source=source;
+    }
+
+    /**
+     * @return the name of the preview strategy feeding this
+     *         monitor, for comparing results across strategies
+     */
+    synchronized public String getSource() {
+        return(source);
+    }
+
+    /**
+     * @return the number of frames observed
+     */
+    synchronized public long getFrameCount() {
+        return(frameCount);
+    }
+
+    /**
+     * @return nanoseconds from the most recent preview start
+     *         to its first frame, or -1 if not yet known
+     */
+    synchronized public long getTimeToFirstFrame() {
+        return(timeToFirstFrame);
+    }
+
+    /**
+     * @param percentile
+     *          0-100
+     * @return the sensor-to-display latency, in nanoseconds,
+     *         at the given percentile of recent frames, or -1
+     *         if the preview strategy cannot measure it
+     */
+    synchronized public long getLatencyPercentile(int percentile) {
+        return(percentile(latencies, latencyCount, percentile));
+    }
+
+    /**
+     * @param percentile
+     *          0-100
+     * @return the interval between frames, in nanoseconds, at
+     *         the given percentile of recent frames, or -1 if
+     *         there have not been two frames yet
+     */
+    synchronized public long getFrameIntervalPercentile(int percentile) {
+        return(percentile(intervals, intervalCount, percentile));
+    }
+
+    /**
+     * Discards all samples.
+     */
+    synchronized public void reset() {
+        latencyCount=0;
+        latencyNext=0;
+        intervalCount=0;
+        intervalNext=0;
+        frameCount=0;
+        timeToFirstFrame=-1;
+        lastFrameAt=0;
+    }
+
+    private static long percentile(long[] samples, int size, int percentile) {
+        if (size == 0) {
+            return(-1);
+        }
+
+        long[] sorted=Arrays.copyOf(samples, size);
+
+        Arrays.sort(sorted);
+
+        int index=(int)Math.ceil(percentile / 100.0 * size) - 1;
+
+        return(sorted[Math.max(0, Math.min(size - 1, index))]);
+    }
+}
@@ -0,0 +1,142 @@
+package com.example.cameralibrary;
+
+import android.graphics.Matrix;
+import android.graphics.RectF;
+
+/**
+ * Converts between CameraView coordinates and camera driver
+ * coordinates (-1000 to 1000 on each axis, in the sensor's
+ * orientation), as used for focus areas, metering areas, and
+ * face rectangles. The matrices are rebuilt only when the
+ * display orientation, mirroring, or the laid-out bounds of
+ * the preview change.
+ */
+public class PreviewTransform {
+    private final Matrix driverToView=new Matrix();
+    private final Matrix viewToDriver=new Matrix();
+    private int orientation=-1;
+    private boolean mirror=false;
+    private int left=0;
+    private int top=0;
+    private int right=0;
+    private int bottom=0;
+    private boolean valid=false;
+
+    PreviewTransform() {
+    }
+
+    synchronized void setOrientation(int orientation, boolean mirror) {
+        if (orientation != this.orientation || mirror != this.mirror) {
+            this.orientation=orientation;
+            this.mirror=mirror;
+            rebuild();
+        }
+    }
+
+    synchronized void setBounds(int left, int top, int right, int bottom) {
+        if (left != this.left || top != this.top || right != this.right
+                || bottom != this.bottom) {
+            this.left=left;
+            this.top=top;
+            this.right=right;
+            this.bottom=bottom;
+            rebuild();
+        }
+    }
+
+    /**
+     * @return true if the preview has been laid out and its
+     *         orientation is known, so mapping is possible
+     */
+    synchronized public boolean isValid() {
+        return(valid);
+    }
+
+    /**
+     * Maps a rectangle in driver coordinates (e.g., from a
+     * Camera.Face) to view coordinates, in place.
+     *
+     * @return false if the transform is not yet valid, in
+     *         which case the rectangle is left alone
+     */
+    synchronized public boolean mapDriverToView(RectF rect) {
+        if (valid) {
+            driverToView.mapRect(rect);
+        }
+
+        return(valid);
+    }
+
+    /**
+     * Maps a rectangle in view coordinates (e.g., around a
+     * tap) to driver coordinates, in place.
+     *
+     * @return false if the transform is not yet valid, in
+     *         which case the rectangle is left alone
+     */
+    synchronized public boolean mapViewToDriver(RectF rect) {
+        if (valid) {
+            viewToDriver.mapRect(rect);
+        }
+
+        return(valid);
+    }
+
+    /**
+     * Maps x/y pairs from driver to view coordinates, in
+     * place, without allocating.
+     */
+    synchronized public boolean mapDriverToView(float[] points) {
+        if (valid) {
+            driverToView.mapPoints(points);
+        }
+
+        return(valid);
+    }
+
+    /**
+     * Maps x/y pairs from view to driver coordinates, in
+     * place, without allocating.
+     */
+    synchronized public boolean mapViewToDriver(float[] points) {
+        if (valid) {
+            viewToDriver.mapPoints(points);
+        }
+
+        return(valid);
+    }
+
+    /**
+     * Copies the driver-to-view matrix into the supplied one.
+     */
+    synchronized public void getDriverToViewMatrix(Matrix out) {
+        out.set(driverToView);
+    }
+
+    /**
+     * Copies the view-to-driver matrix into the supplied one.
+     */
+    synchronized public void getViewToDriverMatrix(Matrix out) {
+        out.set(viewToDriver);
+    }
+
+    // based on the sample in the documentation for
+    // Camera.Face#rect, using the laid-out bounds of the
+    // preview widget, which may extend past the CameraView
+    // for a full-bleed preview
+
+    private void rebuild() {
+        int width=right - left;
+        int height=bottom - top;
+
+        valid=(orientation >= 0 && width > 0 && height > 0);
+
+        if (valid) {
+            driverToView.setScale(mirror ? -1 : 1, 1);
+            driverToView.postRotate(orientation);
+            driverToView.postScale(width / 2000f, height / 2000f);
+            driverToView.postTranslate(left + width / 2f, top + height / 2f);
+            valid=driverToView.invert(viewToDriver);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.example.cameralibrary;
+
+import android.graphics.Bitmap;
+
+/**
+ * Describes one output to be produced from a picture, such
+ * as a full-size original, an upload-sized copy, and a
+ * thumbnail. Add these to a PictureTransaction via
+ * rendition(); each is handed to saveRendition() on the
+ * CameraHost as soon as it is ready.
+ */
+public class Rendition {
+    private final String name;
+    private final int maxSize;
+    private Bitmap.CompressFormat format=Bitmap.CompressFormat.JPEG;
+    private int quality=90;
+
+    /**
+     * @param name
+     *          identifies the rendition to the CameraHost
+     * @param maxSize
+     *          the length of the longest edge, in pixels, or 0
+     *          for the full resolution of the picture
+     */
+    public Rendition(String name, int maxSize) {
+        this.name=name;
+        this.maxSize=maxSize;
+    }
+
+    public Rendition format(Bitmap.CompressFormat format) {
+        this.format=format;
+
+        return(this);
+    }
+
+    public Rendition quality(int quality) {
+        this.quality=quality;
+
+        return(this);
+    }
+
+    public String getName() {
+        return(name);
+    }
+
+    public int getMaxSize() {
+        return(maxSize);
+    }
+
+    public Bitmap.CompressFormat getFormat() {
+        return(format);
+    }
+
+    public int getQuality() {
+        return(quality);
+    }
+
+    boolean isFullSize() {
+        return(maxSize <= 0);
+    }
+}
@@ -0,0 +1,155 @@
+package com.example.cameralibrary;
+
+import android.annotation.TargetApi;
+import android.media.CamcorderProfile;
+import android.media.MediaRecorder;
+import android.os.Build;
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * Splits a recording into segment files per a
+ * VideoSegmentPolicy. On Android 8.0+, rollover uses
+ * setNextOutputFile(), so no footage is lost between
+ * segments. On older devices (or if no size limit can be
+ * derived from the policy), the MediaRecorder has to be
+ * restarted when a limit is reached.
+ */
+class SegmentedRecording implements MediaRecorder.OnInfoListener {
+    private final CameraView cameraView;
+    private final CameraHost host;
+    private final int cameraId;
+    private final VideoSegmentPolicy policy;
+    private final ArrayDeque<File> segments=new ArrayDeque<File>();
+    private int nextSegment=0;
+    private boolean seamless=false;
+
+    SegmentedRecording(CameraView cameraView, CameraHost host,
+                       int cameraId, VideoSegmentPolicy policy) {
+        this.cameraView=cameraView;
+        this.host=host;
+        this.cameraId=cameraId;
+        this.policy=policy;
+    }
+
+    /**
+     * Called in place of configureRecorderOutput() on the
+     * CameraHost, each time a MediaRecorder is set up.
+     */
+    void configureOutput(MediaRecorder recorder) {
+        recorder.setOutputFile(startSegment().getAbsolutePath());
+
+        long size=
+                (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O ? getRolloverSize() : 0);
+
+        seamless=(size > 0);
+
+        if (seamless) {
+            recorder.setMaxFileSize(size);
+        }
+        else {
+            if (policy.maxDurationMs > 0) {
+                recorder.setMaxDuration((int)policy.maxDurationMs);
+            }
+
+            if (policy.maxFileSize > 0) {
+                recorder.setMaxFileSize(policy.maxFileSize);
+            }
+        }
+
+        recorder.setOnInfoListener(this);
+    }
+
+    /**
+     * Called once the recording has been stopped, to apply
+     * the retention policy to the final segment.
+     */
+    void finish() {
+        trim();
+    }
+
+    @TargetApi(Build.VERSION_CODES.O)
+    @Override
+    public void onInfo(MediaRecorder recorder, int what, int extra) {
+        if (seamless
+                && what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_APPROACHING) {
+            try {
+                recorder.setNextOutputFile(startSegment());
+            }
+            catch (IOException e) {
+                host.handleException(e);
+            }
+        }
+        else if (seamless
+                && what == MediaRecorder.MEDIA_RECORDER_INFO_NEXT_OUTPUT_FILE_STARTED) {
+            trim();
+        }
+        else if (what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_DURATION_REACHED
+                || what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED) {
+            try {
+                cameraView.restartRecorder();
+            }
+            catch (Exception e) {
+                Log.e(CameraView.TAG, "Exception starting next segment", e);
+                host.handleException(e);
+            }
+
+            trim();
+        }
+    }
+
+    private File startSegment() {
+        File result=host.getVideoSegmentFile(cameraId, nextSegment++);
+
+        segments.addLast(result);
+
+        return(result);
+    }
+
+    // the newest entry in segments is the one being
+    // written (or about to be), so it counts toward the
+    // window but is never deleted here
+
+    private void trim() {
+        if (policy.keepSegments > 0) {
+            while (segments.size() > policy.keepSegments) {
+                File oldest=segments.removeFirst();
+
+                if (oldest.exists() && !oldest.delete()) {
+                    Log.w(CameraView.TAG,
+                            "Could not delete old segment " + oldest);
+                }
+            }
+        }
+    }
+
+    private long getRolloverSize() {
+        long result=policy.maxFileSize;
+
+        if (policy.maxDurationMs > 0) {
+            long bitRate=policy.bitRate;
+
+            if (bitRate <= 0
+                    && CamcorderProfile.hasProfile(cameraId,
+                    CamcorderProfile.QUALITY_HIGH)) {
+                CamcorderProfile profile=
+                        CamcorderProfile.get(cameraId,
+                                CamcorderProfile.QUALITY_HIGH);
+
+                bitRate=profile.videoBitRate + profile.audioBitRate;
+            }
+
+            if (bitRate > 0) {
+                long bySize=bitRate / 8 * policy.maxDurationMs / 1000;
+
+                if (result <= 0 || bySize < result) {
+                    result=bySize;
+                }
+            }
+        }
+
+        return(result);
+    }
+}
@@ -11,17 +11,22 @@ import android.media.MediaScannerConnection;
 import android.os.Build;
 import android.os.Environment;
 import android.util.Log;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
 
-public class SimpleCameraHost implements CameraHost {
+public class SimpleCameraHost implements CameraHost, CaptureSink {
     private static final String[] SCAN_TYPES= { "image/jpeg" };
     private Context ctxt=null;
     private int cameraId=-1;
+    private boolean cameraIdChosen=false;
+    private CameraBackend.Factory backendFactory=LegacyCameraBackend.FACTORY;
     private DeviceProfile profile=null;
     private File photoDirectory=null;
     private File videoDirectory=null;
@@ -31,6 +36,8 @@ public class SimpleCameraHost implements CameraHost {
     private boolean scanSavedImage=true;
     private boolean useFullBleedPreview=true;
     private boolean useSingleShotMode=false;
+    private boolean streamToFile=false;
+    private CaptureCache captureCache=null;
 
     public SimpleCameraHost(Context _ctxt) {
         this.ctxt=_ctxt.getApplicationContext();
@@ -82,7 +89,16 @@ public class SimpleCameraHost implements CameraHost {
     }
 
     @Override
-    public int getCameraId() {
+    public File getVideoSegmentFile(int cameraId, int segment) {
+        File dir=getVideoDirectory();
+
+        dir.mkdirs();
+
+        return(new File(dir, getVideoSegmentFilename(segment)));
+    }
+
+    @Override
+    synchronized public int getCameraId() {
         if (cameraId == -1) {
             initCameraId();
         }
@@ -90,8 +106,23 @@ public class SimpleCameraHost implements CameraHost {
         return(cameraId);
     }
 
+    // CameraView hands over the backend it opens cameras
+    // with, so that the camera chosen here is one of its
+    // cameras rather than one the platform reports
+
+    synchronized void setCameraBackendFactory(CameraBackend.Factory factory) {
+        if (factory != backendFactory) {
+            backendFactory=factory;
+
+            if (cameraIdChosen) {
+                cameraId=-1;
+                cameraIdChosen=false;
+            }
+        }
+    }
+
     private void initCameraId() {
-        int count=Camera.getNumberOfCameras();
+        int count=backendFactory.getNumberOfCameras();
         int result=-1;
 
         if (count > 0) {
@@ -100,7 +131,7 @@ public class SimpleCameraHost implements CameraHost {
             Camera.CameraInfo info=new Camera.CameraInfo();
 
             for (int i=0; i < count; i++) {
-                Camera.getCameraInfo(i, info);
+                backendFactory.getCameraInfo(i, info);
 
                 if (info.facing == Camera.CameraInfo.CAMERA_FACING_BACK
                         && !useFrontFacingCamera()) {
@@ -116,6 +147,7 @@ public class SimpleCameraHost implements CameraHost {
         }
 
         cameraId=result;
+        cameraIdChosen=true;
     }
 
     @Override
@@ -185,32 +217,170 @@ public class SimpleCameraHost implements CameraHost {
         // no-op
     }
 
+    @Override
+    public void saveImage(PictureTransaction xact, CaptureResult result) {
+        result.close();
+    }
+
+    @Override
+    public void onThumbnailReady(PictureTransaction xact, Bitmap thumbnail,
+                                 int imageOrientation) {
+        // no-op
+    }
+
     @Override
     public void saveImage(PictureTransaction xact, byte[] image, int imageOrientation) {
-        File photo=getPhotoPath();
+        if (captureCache != null && xact.getTag() != null) {
+            captureCache.put(xact.getTag(), image, imageOrientation);
+        }
+
+        writeImage(ByteBuffer.wrap(image));
+    }
+
+    @Override
+    public void saveRendition(PictureTransaction xact, Rendition rendition,
+                              ByteBuffer image) {
+        File photo=getRenditionPath(rendition);
 
         if (photo.exists()) {
             photo.delete();
         }
 
+        CameraTrace.begin("SimpleCameraHost.saveRendition");
+
         try {
-            FileOutputStream fos=new FileOutputStream(photo.getPath());
-            BufferedOutputStream bos=new BufferedOutputStream(fos);
-
-            bos.write(image);
-            bos.flush();
-            fos.getFD().sync();
-            bos.close();
-
-            if (scanSavedImage()) {
-                MediaScannerConnection.scanFile(ctxt,
-                        new String[] { photo.getPath() },
-                        SCAN_TYPES, null);
+            writeFile(photo, image);
+            scanPhoto(photo);
+        }
+        catch (IOException e) {
+            handleException(e);
+        }
+        finally {
+            CameraTrace.end();
+        }
+    }
+
+    /**
+     * Streams the picture straight into the photo file, if
+     * streamToFile() is true. Otherwise, returns null, so the
+     * picture is routed to
+     * saveImage(PictureTransaction, ByteBuffer, int).
+     */
+    @Override
+    public WritableByteChannel openCaptureChannel(PictureTransaction xact,
+                                                  int imageOrientation)
+            throws IOException {
+        if (!streamToFile()) {
+            return(null);
+        }
+
+        final File photo=getPhotoPath();
+
+        if (photo.exists()) {
+            photo.delete();
+        }
+
+        final FileChannel channel=new FileOutputStream(photo).getChannel();
+
+        return(new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                return(channel.write(src));
+            }
+
+            @Override
+            public boolean isOpen() {
+                return(channel.isOpen());
             }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    channel.force(true);
+                }
+                finally {
+                    channel.close();
+                }
+
+                scanPhoto(photo);
+            }
+        });
+    }
+
+    /**
+     * Every picture not streamed to a channel comes through
+     * here, and is handed on to
+     * saveImage(PictureTransaction, byte[], int), which puts
+     * it in the CaptureCache and writes the photo file. When
+     * the buffer wraps a whole array, as the camera's own
+     * JPEG does, that array is handed on without a copy;
+     * otherwise, e.g., for a re-encoded picture in a pooled
+     * direct buffer, the bytes are copied out. Override this
+     * to consume the buffer directly.
+     */
+    @Override
+    public void saveImage(PictureTransaction xact, ByteBuffer image,
+                          int imageOrientation) {
+        byte[] bytes;
+
+        if (image.hasArray() && image.arrayOffset() == 0
+                && image.position() == 0
+                && image.remaining() == image.array().length) {
+            bytes=image.array();
+        }
+        else {
+            bytes=new byte[image.remaining()];
+            image.duplicate().get(bytes);
+        }
+
+        saveImage(xact, bytes, imageOrientation);
+    }
+
+    private void writeImage(ByteBuffer image) {
+        File photo=getPhotoPath();
+
+        if (photo.exists()) {
+            photo.delete();
+        }
+
+        CameraTrace.begin("SimpleCameraHost.saveImage");
+
+        try {
+            writeFile(photo, image);
+            scanPhoto(photo);
         }
         catch (java.io.IOException e) {
             handleException(e);
         }
+        finally {
+            CameraTrace.end();
+        }
+    }
+
+    private static void writeFile(File photo, ByteBuffer image)
+            throws IOException {
+        FileOutputStream fos=new FileOutputStream(photo);
+
+        try {
+            FileChannel channel=fos.getChannel();
+
+            while (image.hasRemaining()) {
+                channel.write(image);
+            }
+
+            channel.force(true);
+        }
+        finally {
+            fos.close();
+        }
+    }
+
+    private void scanPhoto(File photo) {
+        if (scanSavedImage()) {
+            MediaScannerConnection.scanFile(ctxt,
+                    new String[] { photo.getPath() },
+                    SCAN_TYPES, null);
+        }
     }
 
     @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
@@ -298,6 +468,25 @@ public class SimpleCameraHost implements CameraHost {
         return("Photo_" + ts + ".jpg");
     }
 
+    protected File getRenditionPath(Rendition rendition) {
+        File dir=getPhotoDirectory();
+
+        dir.mkdirs();
+
+        return(new File(dir, getRenditionFilename(rendition)));
+    }
+
+    protected String getRenditionFilename(Rendition rendition) {
+        String ts=
+                new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
+        String ext=
+                (rendition.getFormat() == Bitmap.CompressFormat.PNG ? ".png"
+                        : (rendition.getFormat() == Bitmap.CompressFormat.JPEG ? ".jpg"
+                        : ".webp"));
+
+        return("Photo_" + ts + "_" + rendition.getName() + ext);
+    }
+
     protected File getVideoPath() {
         File dir=getVideoDirectory();
 
@@ -326,6 +515,13 @@ public class SimpleCameraHost implements CameraHost {
         return("Video_" + ts + ".mp4");
     }
 
+    protected String getVideoSegmentFilename(int segment) {
+        String ts=
+                new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
+
+        return(String.format(Locale.US, "Video_%s_%03d.mp4", ts, segment));
+    }
+
     protected boolean useFrontFacingCamera() {
         return(useFrontFacingCamera);
     }
@@ -334,6 +530,18 @@ public class SimpleCameraHost implements CameraHost {
         return(scanSavedImage);
     }
 
+    protected boolean streamToFile() {
+        return(streamToFile);
+    }
+
+    /**
+     * @return the cache of recent pictures, or null if there
+     *         is none
+     */
+    public CaptureCache getCaptureCache() {
+        return(captureCache);
+    }
+
     public static class Builder {
         private SimpleCameraHost host=null;
 
@@ -355,6 +563,17 @@ public class SimpleCameraHost implements CameraHost {
             return(this);
         }
 
+        /**
+         * Keeps each tagged picture in the cache as it is
+         * saved. Pictures streamed straight to the file (see
+         * streamToFile()) bypass the cache.
+         */
+        public Builder captureCache(CaptureCache captureCache) {
+            host.captureCache=captureCache;
+
+            return(this);
+        }
+
         public Builder deviceProfile(DeviceProfile profile) {
             host.profile=profile;
 
@@ -385,6 +604,12 @@ public class SimpleCameraHost implements CameraHost {
             return(this);
         }
 
+        public Builder streamToFile(boolean streamToFile) {
+            host.streamToFile=streamToFile;
+
+            return(this);
+        }
+
         public Builder useFrontFacingCamera(boolean useFrontFacingCamera) {
             host.useFrontFacingCamera=useFrontFacingCamera;
 
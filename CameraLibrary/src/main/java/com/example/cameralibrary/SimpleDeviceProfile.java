@@ -18,6 +18,9 @@ public class SimpleDeviceProfile extends DeviceProfile {
     private boolean useDeviceOrientation=false;
     private int pictureDelay=0;
     private RecordingHint recordingHint=RecordingHint.NONE;
+    private boolean restartPreviewOnRotation=
+            Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH;
+    private boolean useCamera2=false;
 
     SimpleDeviceProfile load(XmlPullParser xpp) {
         StringBuilder buf=null;
@@ -68,6 +71,12 @@ public class SimpleDeviceProfile extends DeviceProfile {
         else if ("useDeviceOrientation".equals(name)) {
             useDeviceOrientation=Boolean.parseBoolean(value);
         }
+        else if ("restartPreviewOnRotation".equals(name)) {
+            restartPreviewOnRotation=Boolean.parseBoolean(value);
+        }
+        else if ("useCamera2".equals(name)) {
+            useCamera2=Boolean.parseBoolean(value);
+        }
         else if ("minPictureHeight".equals(name)) {
             minPictureHeight=Integer.parseInt(value);
         }
@@ -150,6 +159,24 @@ public class SimpleDeviceProfile extends DeviceProfile {
         return(recordingHint);
     }
 
+    // for devices whose HAL mangles the preview when
+    // setDisplayOrientation() is called while the preview
+    // is running, even though API Level 14+ allows it
+
+    @Override
+    public boolean restartPreviewOnRotation() {
+        return(restartPreviewOnRotation);
+    }
+
+    // opt-in, as Camera2 cannot record video here, and
+    // LEGACY-level devices gain nothing from it
+
+    @Override
+    public boolean useCamera2() {
+        return(useCamera2
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP);
+    }
+
     static class MotorolaRazrI extends SimpleDeviceProfile {
         public boolean doesZoomActuallyWork(boolean isFFC) {
             return(!isFFC);
@@ -0,0 +1,599 @@
+package com.example.cameralibrary;
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+import android.media.MediaRecorder;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * A CameraBackend with no camera behind it, for running the
+ * preview and capture pipeline where there is no hardware,
+ * such as soak tests and benchmarks under Robolectric. Once
+ * the preview starts, it delivers synthetic NV21 frames at a
+ * fixed rate, and takePicture() returns a real JPEG of a
+ * chosen size, carrying an EXIF orientation tag. Opening,
+ * autofocus, and the shutter each take a configurable time,
+ * so their cost shows up in measurements as it would on a
+ * device.
+ *
+ * Everything is deterministic: frame contents depend only
+ * on the frame number, and every picture from one Factory
+ * is the same JPEG.
+ *
+ * Camera.Parameters cannot be created outside the framework,
+ * so the Factory needs a ParametersSupplier for CameraView
+ * to have parameters to work with. Under Robolectric, that
+ * means constructing one reflectively, with the default
+ * ShadowParameters replaced by an empty shadow, as the
+ * default one does not support flatten() and unflatten();
+ * see CameraViewSimulationTest.
+ * Parameters are kept in flattened form, so each
+ * getParameters() returns a fresh copy, as with a Camera.
+ */
+class SimulatedCameraBackend implements CameraBackend {
+    static class Factory implements CameraBackend.Factory {
+        private int facing=Camera.CameraInfo.CAMERA_FACING_BACK;
+        private int sensorOrientation=90;
+        private int previewWidth=640;
+        private int previewHeight=480;
+        private int fps=30;
+        private int pictureWidth=640;
+        private int pictureHeight=480;
+        private int exifOrientation=0;
+        private long openLatencyMs=0;
+        private long autoFocusLatencyMs=0;
+        private long shutterLatencyMs=0;
+        private ParametersSupplier parameters=null;
+        private boolean claimsRecording=false;
+        private byte[] jpeg=null;
+        private volatile SimulatedCameraBackend lastOpened=null;
+
+        Factory facing(int facing, int sensorOrientation) {
+            this.facing=facing;
+            this.sensorOrientation=sensorOrientation;
+
+            return(this);
+        }
+
+        /**
+         * @param width
+         *          the preview width, used if the parameters
+         *          do not name a preview size
+         * @param height
+         *          the preview height, likewise
+         * @param fps
+         *          frames per second to deliver
+         */
+        Factory preview(int width, int height, int fps) {
+            this.previewWidth=width;
+            this.previewHeight=height;
+            this.fps=fps;
+
+            return(this);
+        }
+
+        /**
+         * @param degrees
+         *          0, 90, 180, or 270, written to the JPEG's
+         *          EXIF orientation tag
+         */
+        synchronized Factory picture(int width, int height, int degrees) {
+            this.pictureWidth=width;
+            this.pictureHeight=height;
+            this.exifOrientation=degrees;
+            jpeg=null;
+
+            return(this);
+        }
+
+        Factory latencies(long openMs, long autoFocusMs, long shutterMs) {
+            this.openLatencyMs=openMs;
+            this.autoFocusLatencyMs=autoFocusMs;
+            this.shutterLatencyMs=shutterMs;
+
+            return(this);
+        }
+
+        Factory parameters(ParametersSupplier parameters) {
+            this.parameters=parameters;
+
+            return(this);
+        }
+
+        /**
+         * @param claimsRecording
+         *          true for canRecord() to say the camera can
+         *          record; attachRecorder() fails regardless,
+         *          as a camera lost mid-handoff would
+         */
+        Factory claimsRecording(boolean claimsRecording) {
+            this.claimsRecording=claimsRecording;
+
+            return(this);
+        }
+
+        /**
+         * @return the backend most recently opened, to read its
+         *         counters, or null
+         */
+        SimulatedCameraBackend getLastOpened() {
+            return(lastOpened);
+        }
+
+        @Override
+        public int getNumberOfCameras() {
+            return(1);
+        }
+
+        @Override
+        public void getCameraInfo(int cameraId, Camera.CameraInfo info) {
+            info.facing=facing;
+            info.orientation=sensorOrientation;
+        }
+
+        @Override
+        public CameraBackend open(int cameraId) {
+            if (openLatencyMs > 0) {
+                SystemClock.sleep(openLatencyMs);
+            }
+
+            lastOpened=new SimulatedCameraBackend(this);
+
+            return(lastOpened);
+        }
+
+        // encoded once, as encoding a large picture takes a
+        // while and every picture is the same
+
+        synchronized byte[] getJpeg() {
+            if (jpeg == null) {
+                try {
+                    jpeg=buildJpeg(pictureWidth, pictureHeight,
+                            exifOrientation);
+                }
+                catch (IOException e) {
+                    throw new IllegalStateException("Could not build JPEG", e);
+                }
+            }
+
+            return(jpeg);
+        }
+    }
+
+    private static final int MAX_QUEUED_BUFFERS=16;
+    private final Factory factory;
+    private final Handler handler;
+    private String flattened=null;
+    private int previewWidth;
+    private int previewHeight;
+    private volatile boolean previewing=false;
+    private boolean withBuffer=false;
+    private Camera.PreviewCallback previewCallback=null;
+    private final ArrayDeque<byte[]> buffers=new ArrayDeque<byte[]>();
+    private Camera.AutoFocusCallback autoFocusCallback=null;
+    private Camera.OnZoomChangeListener zoomListener=null;
+    private long frameNumber=0;
+    private long droppedFrames=0;
+    private int pictureCount=0;
+    private boolean released=false;
+
+    private final Runnable frameTask=new Runnable() {
+        @Override
+        public void run() {
+            deliverFrame();
+        }
+    };
+
+    private final Runnable autoFocusTask=new Runnable() {
+        @Override
+        public void run() {
+            Camera.AutoFocusCallback cb=autoFocusCallback;
+
+            autoFocusCallback=null;
+
+            if (cb != null) {
+                cb.onAutoFocus(true, null);
+            }
+        }
+    };
+
+    // like a Camera, callbacks arrive on the Looper of the
+    // thread that opened it, or on the main one
+
+    SimulatedCameraBackend(Factory factory) {
+        Looper looper=Looper.myLooper();
+
+        this.factory=factory;
+        this.handler=
+                new Handler(looper == null ? Looper.getMainLooper() : looper);
+        this.previewWidth=factory.previewWidth;
+        this.previewHeight=factory.previewHeight;
+
+        if (factory.parameters != null) {
+            Camera.Parameters params=factory.parameters.newParameters();
+
+            params.setPreviewSize(factory.previewWidth, factory.previewHeight);
+            params.setPreviewFormat(ImageFormat.NV21);
+            params.setPictureSize(factory.pictureWidth, factory.pictureHeight);
+            params.setPictureFormat(ImageFormat.JPEG);
+            flattened=params.flatten();
+        }
+    }
+
+    /**
+     * @return the number of preview frames delivered
+     */
+    long getFrameCount() {
+        return(frameNumber);
+    }
+
+    /**
+     * @return the number of frames skipped because no
+     *         callback buffer was queued
+     */
+    long getDroppedFrameCount() {
+        return(droppedFrames);
+    }
+
+    /**
+     * @return the number of pictures taken
+     */
+    int getPictureCount() {
+        return(pictureCount);
+    }
+
+    /**
+     * @return true if the preview has been started and not
+     *         stopped since
+     */
+    boolean isPreviewing() {
+        return(previewing);
+    }
+
+    @Override
+    public Camera getCamera() {
+        return(null);
+    }
+
+    @Override
+    public Camera.Parameters getParameters() {
+        checkReleased();
+
+        if (flattened == null) {
+            return(null);
+        }
+
+        Camera.Parameters result=factory.parameters.newParameters();
+
+        result.unflatten(flattened);
+
+        return(result);
+    }
+
+    @Override
+    public void setParameters(Camera.Parameters params) {
+        checkReleased();
+        flattened=params.flatten();
+
+        Camera.Size size=params.getPreviewSize();
+
+        if (size != null) {
+            previewWidth=size.width;
+            previewHeight=size.height;
+        }
+    }
+
+    @Override
+    public void setErrorCallback(Camera.ErrorCallback cb) {
+        // the simulated camera does not fail
+    }
+
+    @Override
+    public void setDisplayOrientation(int degrees) {
+        // frames are not rotated for display
+    }
+
+    @Override
+    public void attachPreview(PreviewStrategy strategy) {
+        // frames go only to the preview callback
+    }
+
+    @Override
+    public void startPreview() {
+        checkReleased();
+
+        if (!previewing) {
+            previewing=true;
+            handler.post(frameTask);
+        }
+    }
+
+    @Override
+    public void stopPreview() {
+        previewing=false;
+        handler.removeCallbacks(frameTask);
+        handler.removeCallbacks(autoFocusTask);
+        autoFocusCallback=null;
+    }
+
+    @Override
+    public void setPreviewCallback(Camera.PreviewCallback cb) {
+        previewCallback=cb;
+        withBuffer=false;
+        buffers.clear();
+    }
+
+    @Override
+    public void setPreviewCallbackWithBuffer(Camera.PreviewCallback cb) {
+        previewCallback=cb;
+        withBuffer=true;
+        buffers.clear();
+    }
+
+    @Override
+    public void addCallbackBuffer(byte[] buffer) {
+        if (buffers.size() < MAX_QUEUED_BUFFERS) {
+            buffers.add(buffer);
+        }
+    }
+
+    @Override
+    public void autoFocus(Camera.AutoFocusCallback cb) {
+        checkReleased();
+        autoFocusCallback=cb;
+        handler.removeCallbacks(autoFocusTask);
+        handler.postDelayed(autoFocusTask, factory.autoFocusLatencyMs);
+    }
+
+    @Override
+    public void cancelAutoFocus() {
+        handler.removeCallbacks(autoFocusTask);
+        autoFocusCallback=null;
+    }
+
+    @Override
+    public void setAutoFocusMoveCallback(Camera.AutoFocusMoveCallback cb) {
+        // continuous focus is not simulated
+    }
+
+    /**
+     * Stops the preview, as a Camera does, then fires the
+     * shutter after the shutter latency and hands back a copy
+     * of the Factory's JPEG.
+     */
+    @Override
+    public void takePicture(final Camera.ShutterCallback shutter,
+                            final Camera.PictureCallback raw,
+                            final Camera.PictureCallback jpeg) {
+        checkReleased();
+        stopPreview();
+
+        handler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (released) {
+                    return;
+                }
+
+                if (shutter != null) {
+                    shutter.onShutter();
+                }
+
+                if (raw != null) {
+                    raw.onPictureTaken(null, null);
+                }
+
+                pictureCount++;
+
+                if (jpeg != null) {
+                    byte[] picture=factory.getJpeg();
+
+                    jpeg.onPictureTaken(Arrays.copyOf(picture, picture.length),
+                            null);
+                }
+            }
+        }, factory.shutterLatencyMs);
+    }
+
+    @Override
+    public void setFaceDetectionListener(Camera.FaceDetectionListener listener) {
+        // face detection is not simulated
+    }
+
+    @Override
+    public void startFaceDetection() {
+        // face detection is not simulated
+    }
+
+    @Override
+    public void stopFaceDetection() {
+        // face detection is not simulated
+    }
+
+    @Override
+    public void setZoomChangeListener(Camera.OnZoomChangeListener listener) {
+        zoomListener=listener;
+    }
+
+    // zooms in one step
+
+    @Override
+    public void startSmoothZoom(final int value) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                Camera.OnZoomChangeListener listener=zoomListener;
+
+                if (listener != null && !released) {
+                    listener.onZoomChange(value, true, null);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void stopSmoothZoom() {
+        // the zoom has always finished already
+    }
+
+    @Override
+    public boolean canRecord() {
+        return(factory.claimsRecording);
+    }
+
+    @Override
+    public void attachRecorder(MediaRecorder recorder) {
+        throw new UnsupportedOperationException(
+                "Simulated cameras cannot record video");
+    }
+
+    @Override
+    public void lock() {
+        // nothing else uses the camera
+    }
+
+    @Override
+    public void unlock() {
+        // nothing else uses the camera
+    }
+
+    @Override
+    public void reconnect() {
+        // nothing else uses the camera
+    }
+
+    @Override
+    public void release() {
+        stopPreview();
+        handler.removeCallbacksAndMessages(null);
+        previewCallback=null;
+        zoomListener=null;
+        buffers.clear();
+        released=true;
+    }
+
+    private void checkReleased() {
+        if (released) {
+            throw new RuntimeException("Camera is being used after Camera.release() was called");
+        }
+    }
+
+    private void deliverFrame() {
+        if (!previewing) {
+            return;
+        }
+
+        handler.postDelayed(frameTask, 1000 / Math.max(1, factory.fps));
+
+        Camera.PreviewCallback cb=previewCallback;
+
+        if (cb == null) {
+            frameNumber++;
+
+            return;
+        }
+
+        int length=previewWidth * previewHeight * 3 / 2;
+        byte[] frame;
+
+        if (withBuffer) {
+            frame=buffers.poll();
+
+            if (frame == null || frame.length < length) {
+                droppedFrames++;
+
+                return;
+            }
+        }
+        else {
+            frame=new byte[length];
+        }
+
+        fillFrame(frame, previewWidth, previewHeight, frameNumber++);
+        cb.onPreviewFrame(frame, null);
+    }
+
+    // a luma ramp that scrolls one row per frame, over a
+    // neutral chroma plane
+
+    private static void fillFrame(byte[] frame, int width, int height,
+                                  long frameNumber) {
+        for (int row=0; row < height; row++) {
+            Arrays.fill(frame, row * width, (row + 1) * width,
+                    (byte)((row + frameNumber) & 0xFF));
+        }
+
+        Arrays.fill(frame, width * height, width * height * 3 / 2,
+                (byte)128);
+    }
+
+    private static byte[] buildJpeg(int width, int height, int degrees)
+            throws IOException {
+        ByteArrayOutputStream encoded=new ByteArrayOutputStream();
+        StripeJpegEncoder encoder=
+                new StripeJpegEncoder(encoded, width, height, 90);
+        int[] row=new int[width];
+
+        for (int y=0; y < height; y++) {
+            for (int x=0; x < width; x++) {
+                row[x]=0xFF000000 | ((x * 255 / width) << 16)
+                        | ((y * 255 / height) << 8) | 0x80;
+            }
+
+            encoder.write(row, 0, width, 1);
+        }
+
+        encoder.finish();
+
+        byte[] body=encoded.toByteArray();
+        byte[] exif=buildExif(degrees);
+        byte[] result=new byte[body.length + exif.length];
+
+        // the APP1 segment goes straight after the SOI marker
+
+        System.arraycopy(body, 0, result, 0, 2);
+        System.arraycopy(exif, 0, result, 2, exif.length);
+        System.arraycopy(body, 2, result, 2 + exif.length, body.length - 2);
+
+        return(result);
+    }
+
+    // an APP1 segment holding a big-endian TIFF header and
+    // one IFD with just the orientation tag
+
+    private static byte[] buildExif(int degrees) {
+        int orientation;
+
+        switch (degrees) {
+            case 90:
+                orientation=6;
+                break;
+
+            case 180:
+                orientation=3;
+                break;
+
+            case 270:
+                orientation=8;
+                break;
+
+            default:
+                orientation=1;
+        }
+
+        return(new byte[] {
+                (byte)0xFF, (byte)0xE1, 0, 34,
+                'E', 'x', 'i', 'f', 0, 0,
+                'M', 'M', 0, 42, 0, 0, 0, 8,
+                0, 1,
+                0x01, 0x12, 0, 3, 0, 0, 0, 1, 0, (byte)orientation, 0, 0,
+                0, 0, 0, 0 });
+    }
+}
@@ -0,0 +1,471 @@
+package com.example.cameralibrary;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A baseline JPEG encoder that accepts the image a few rows
+ * at a time, so the caller never needs the whole image in
+ * memory. Bitmap.compress() has no such mode, which is why
+ * this exists; it is only used when the full-size image will
+ * not fit in the capture memory budget.
+ *
+ * Output is YCbCr 4:4:4 with the standard Annex K tables.
+ * Only eight rows are buffered internally, regardless of how
+ * many rows are written at once.
+ */
+class StripeJpegEncoder {
+    private static final int[] ZIGZAG={
+            0, 1, 8, 16, 9, 2, 3, 10, 17, 24, 32, 25, 18, 11, 4, 5,
+            12, 19, 26, 33, 40, 48, 41, 34, 27, 20, 13, 6, 7, 14, 21, 28,
+            35, 42, 49, 56, 57, 50, 43, 36, 29, 22, 15, 23, 30, 37, 44, 51,
+            58, 59, 52, 45, 38, 31, 39, 46, 53, 60, 61, 54, 47, 55, 62, 63 };
+
+    private static final int[] LUMINANCE_QUANT={
+            16, 11, 10, 16, 24, 40, 51, 61,
+            12, 12, 14, 19, 26, 58, 60, 55,
+            14, 13, 16, 24, 40, 57, 69, 56,
+            14, 17, 22, 29, 51, 87, 80, 62,
+            18, 22, 37, 56, 68, 109, 103, 77,
+            24, 35, 55, 64, 81, 104, 113, 92,
+            49, 64, 78, 87, 103, 121, 120, 101,
+            72, 92, 95, 98, 112, 100, 103, 99 };
+
+    private static final int[] CHROMINANCE_QUANT={
+            17, 18, 24, 47, 99, 99, 99, 99,
+            18, 21, 26, 66, 99, 99, 99, 99,
+            24, 26, 56, 99, 99, 99, 99, 99,
+            47, 66, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99 };
+
+    private static final int[] DC_LUMINANCE_BITS={
+            0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0 };
+    private static final int[] DC_LUMINANCE_VALUES={
+            0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11 };
+    private static final int[] DC_CHROMINANCE_BITS={
+            0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0 };
+    private static final int[] DC_CHROMINANCE_VALUES=DC_LUMINANCE_VALUES;
+
+    private static final int[] AC_LUMINANCE_BITS={
+            0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d };
+    private static final int[] AC_LUMINANCE_VALUES={
+            0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12,
+            0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+            0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08,
+            0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0,
+            0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16,
+            0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+            0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39,
+            0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+            0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59,
+            0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+            0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79,
+            0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+            0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98,
+            0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+            0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6,
+            0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5,
+            0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4,
+            0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+            0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea,
+            0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa };
+    private static final int[] AC_CHROMINANCE_BITS={
+            0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77 };
+    private static final int[] AC_CHROMINANCE_VALUES={
+            0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21,
+            0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+            0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91,
+            0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0,
+            0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34,
+            0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
+            0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38,
+            0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+            0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58,
+            0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+            0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78,
+            0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+            0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96,
+            0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+            0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4,
+            0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+            0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2,
+            0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+            0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9,
+            0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa };
+
+    private static final float[][] COSINES=new float[8][8];
+
+    static {
+        for (int x=0; x < 8; x++) {
+            for (int u=0; u < 8; u++) {
+                double c=(u == 0 ? Math.sqrt(0.5) : 1.0);
+
+                COSINES[x][u]=
+                        (float)(c * Math.cos((2 * x + 1) * u * Math.PI / 16) / 2);
+            }
+        }
+    }
+
+    private final OutputStream out;
+    private final int width;
+    private final int height;
+    private final int[] lumaQuant=new int[64];
+    private final int[] chromaQuant=new int[64];
+    private final HuffmanTable dcLuma=
+            new HuffmanTable(DC_LUMINANCE_BITS, DC_LUMINANCE_VALUES);
+    private final HuffmanTable acLuma=
+            new HuffmanTable(AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES);
+    private final HuffmanTable dcChroma=
+            new HuffmanTable(DC_CHROMINANCE_BITS, DC_CHROMINANCE_VALUES);
+    private final HuffmanTable acChroma=
+            new HuffmanTable(AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES);
+    private final int[] rows;
+    private final float[][] planes=new float[3][64];
+    private final float[] scratch=new float[64];
+    private final int[] coefficients=new int[64];
+    private int bufferedRows=0;
+    private int writtenRows=0;
+    private int lastDcY=0;
+    private int lastDcCb=0;
+    private int lastDcCr=0;
+    private int bitBuffer=0;
+    private int bitCount=0;
+
+    /**
+     * Writes the JPEG headers and readies the encoder for
+     * pixel rows.
+     *
+     * @param out
+     *          where the JPEG goes; not closed by finish()
+     * @param width
+     *          the width of the image, in pixels
+     * @param height
+     *          the height of the image, in pixels
+     * @param quality
+     *          1-100, as with Bitmap.compress()
+     */
+    StripeJpegEncoder(OutputStream out, int width, int height,
+                      int quality) throws IOException {
+        if (width <= 0 || height <= 0 || width > 65535 || height > 65535) {
+            throw new IllegalArgumentException("Invalid JPEG dimensions: "
+                    + width + "x" + height);
+        }
+
+        this.out=new BufferedOutputStream(out, 8192);
+        this.width=width;
+        this.height=height;
+        this.rows=new int[width * 8];
+
+        scaleQuant(LUMINANCE_QUANT, lumaQuant, quality);
+        scaleQuant(CHROMINANCE_QUANT, chromaQuant, quality);
+        writeHeaders();
+    }
+
+    /**
+     * Encodes the next rows of the image.
+     *
+     * @param argb
+     *          pixels, as from Bitmap.getPixels()
+     * @param offset
+     *          the index of the first pixel of the first row
+     * @param stride
+     *          the distance between rows, in the array
+     * @param count
+     *          the number of rows to encode
+     */
+    void write(int[] argb, int offset, int stride, int count)
+            throws IOException {
+        if (writtenRows + bufferedRows + count > height) {
+            throw new IllegalStateException("More rows than the image height");
+        }
+
+        for (int i=0; i < count; i++) {
+            System.arraycopy(argb, offset + i * stride, rows,
+                    bufferedRows * width, width);
+            bufferedRows++;
+
+            if (bufferedRows == 8) {
+                encodeRows();
+            }
+        }
+    }
+
+    /**
+     * Encodes any buffered rows and writes the end-of-image
+     * marker. All rows of the image must have been written.
+     */
+    void finish() throws IOException {
+        if (writtenRows + bufferedRows != height) {
+            throw new IllegalStateException("Expected " + height
+                    + " rows, received " + (writtenRows + bufferedRows));
+        }
+
+        if (bufferedRows > 0) {
+            encodeRows();
+        }
+
+        // pad the final byte with 1-bits, per F.1.2.3
+
+        if (bitCount > 0) {
+            writeBits(0x7F, 7);
+        }
+
+        writeMarker(0xD9);
+        out.flush();
+    }
+
+    private void encodeRows() throws IOException {
+        for (int blockX=0; blockX < width; blockX+=8) {
+            for (int y=0; y < 8; y++) {
+                int row=Math.min(y, bufferedRows - 1) * width;
+
+                for (int x=0; x < 8; x++) {
+                    int pixel=rows[row + Math.min(blockX + x, width - 1)];
+                    int r=(pixel >> 16) & 0xFF;
+                    int g=(pixel >> 8) & 0xFF;
+                    int b=pixel & 0xFF;
+                    int i=y * 8 + x;
+
+                    planes[0][i]=0.299f * r + 0.587f * g + 0.114f * b - 128;
+                    planes[1][i]=-0.168736f * r - 0.331264f * g + 0.5f * b;
+                    planes[2][i]=0.5f * r - 0.418688f * g - 0.081312f * b;
+                }
+            }
+
+            lastDcY=encodeBlock(planes[0], lumaQuant, lastDcY, dcLuma, acLuma);
+            lastDcCb=
+                    encodeBlock(planes[1], chromaQuant, lastDcCb, dcChroma,
+                            acChroma);
+            lastDcCr=
+                    encodeBlock(planes[2], chromaQuant, lastDcCr, dcChroma,
+                            acChroma);
+        }
+
+        writtenRows+=bufferedRows;
+        bufferedRows=0;
+    }
+
+    private int encodeBlock(float[] block, int[] quant, int lastDc,
+                            HuffmanTable dc, HuffmanTable ac)
+            throws IOException {
+        // separable DCT: rows into scratch, then columns
+
+        for (int y=0; y < 8; y++) {
+            for (int u=0; u < 8; u++) {
+                float sum=0;
+
+                for (int x=0; x < 8; x++) {
+                    sum+=block[y * 8 + x] * COSINES[x][u];
+                }
+
+                scratch[y * 8 + u]=sum;
+            }
+        }
+
+        for (int u=0; u < 8; u++) {
+            for (int v=0; v < 8; v++) {
+                float sum=0;
+
+                for (int y=0; y < 8; y++) {
+                    sum+=scratch[y * 8 + u] * COSINES[y][v];
+                }
+
+                coefficients[v * 8 + u]=Math.round(sum / quant[v * 8 + u]);
+            }
+        }
+
+        int diff=coefficients[0] - lastDc;
+        int category=category(diff);
+
+        dc.write(this, category);
+        writeValue(diff, category);
+
+        int run=0;
+
+        for (int k=1; k < 64; k++) {
+            int value=coefficients[ZIGZAG[k]];
+
+            if (value == 0) {
+                run++;
+            }
+            else {
+                while (run > 15) {
+                    ac.write(this, 0xF0);
+                    run-=16;
+                }
+
+                category=category(value);
+                ac.write(this, (run << 4) | category);
+                writeValue(value, category);
+                run=0;
+            }
+        }
+
+        if (run > 0) {
+            ac.write(this, 0x00);
+        }
+
+        return(coefficients[0]);
+    }
+
+    private void writeValue(int value, int category) throws IOException {
+        if (category > 0) {
+            writeBits(value < 0 ? value - 1 : value, category);
+        }
+    }
+
+    private void writeBits(int bits, int count) throws IOException {
+        bitBuffer=(bitBuffer << count) | (bits & ((1 << count) - 1));
+        bitCount+=count;
+
+        while (bitCount >= 8) {
+            int b=(bitBuffer >> (bitCount - 8)) & 0xFF;
+
+            out.write(b);
+
+            if (b == 0xFF) {
+                out.write(0);
+            }
+
+            bitCount-=8;
+        }
+    }
+
+    private void writeHeaders() throws IOException {
+        writeMarker(0xD8);
+
+        // JFIF APP0
+
+        writeMarker(0xE0);
+        writeShort(16);
+        out.write(new byte[] { 'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0 });
+
+        writeMarker(0xDB);
+        writeShort(2 + 2 * 65);
+        writeQuant(0, lumaQuant);
+        writeQuant(1, chromaQuant);
+
+        writeMarker(0xC0);
+        writeShort(17);
+        out.write(8);
+        writeShort(height);
+        writeShort(width);
+        out.write(3);
+
+        for (int id=1; id <= 3; id++) {
+            out.write(id);
+            out.write(0x11);
+            out.write(id == 1 ? 0 : 1);
+        }
+
+        writeMarker(0xC4);
+        writeShort(2 + dcLuma.getLength() + acLuma.getLength()
+                + dcChroma.getLength() + acChroma.getLength());
+        dcLuma.writeTo(out, 0x00);
+        acLuma.writeTo(out, 0x10);
+        dcChroma.writeTo(out, 0x01);
+        acChroma.writeTo(out, 0x11);
+
+        writeMarker(0xDA);
+        writeShort(12);
+        out.write(3);
+
+        for (int id=1; id <= 3; id++) {
+            out.write(id);
+            out.write(id == 1 ? 0x00 : 0x11);
+        }
+
+        out.write(0);
+        out.write(63);
+        out.write(0);
+    }
+
+    private void writeQuant(int id, int[] quant) throws IOException {
+        out.write(id);
+
+        for (int k=0; k < 64; k++) {
+            out.write(quant[ZIGZAG[k]]);
+        }
+    }
+
+    private void writeMarker(int marker) throws IOException {
+        out.write(0xFF);
+        out.write(marker);
+    }
+
+    private void writeShort(int value) throws IOException {
+        out.write((value >> 8) & 0xFF);
+        out.write(value & 0xFF);
+    }
+
+    // same scaling as the IJG reference encoder
+
+    private static void scaleQuant(int[] base, int[] result, int quality) {
+        quality=Math.max(1, Math.min(100, quality));
+
+        int scale=(quality < 50 ? 5000 / quality : 200 - quality * 2);
+
+        for (int i=0; i < 64; i++) {
+            result[i]=Math.max(1, Math.min(255, (base[i] * scale + 50) / 100));
+        }
+    }
+
+    private static int category(int value) {
+        return(32 - Integer.numberOfLeadingZeros(Math.abs(value)));
+    }
+
+    private static class HuffmanTable {
+        private final int[] bits;
+        private final int[] values;
+        private final int[] codes=new int[256];
+        private final int[] sizes=new int[256];
+
+        HuffmanTable(int[] bits, int[] values) {
+            this.bits=bits;
+            this.values=values;
+
+            // Annex C: codes of each length are consecutive,
+            // and shift left by one for each longer length
+
+            int code=0;
+            int k=0;
+
+            for (int length=1; length <= 16; length++) {
+                for (int i=0; i < bits[length - 1]; i++) {
+                    codes[values[k]]=code;
+                    sizes[values[k]]=length;
+                    code++;
+                    k++;
+                }
+
+                code<<=1;
+            }
+        }
+
+        int getLength() {
+            return(1 + 16 + values.length);
+        }
+
+        void writeTo(OutputStream out, int classAndId) throws IOException {
+            out.write(classAndId);
+
+            for (int count : bits) {
+                out.write(count);
+            }
+
+            for (int value : values) {
+                out.write(value);
+            }
+        }
+
+        void write(StripeJpegEncoder encoder, int symbol) throws IOException {
+            encoder.writeBits(codes[symbol], sizes[symbol]);
+        }
+    }
+}
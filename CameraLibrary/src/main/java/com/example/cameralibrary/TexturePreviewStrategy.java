@@ -2,6 +2,8 @@ package com.example.cameralibrary;
 
 
 import android.annotation.TargetApi;
+import android.graphics.Matrix;
+import android.graphics.RectF;
 import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
 import android.media.MediaRecorder;
@@ -12,15 +14,82 @@ import java.io.IOException;
 
 @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
 class TexturePreviewStrategy implements PreviewStrategy,
-        TextureView.SurfaceTextureListener {
+        TextureView.SurfaceTextureListener, View.OnLayoutChangeListener {
     private final CameraView cameraView;
     private TextureView widget=null;
     private SurfaceTexture surface=null;
+    private volatile int rotation=0;
 
     TexturePreviewStrategy(CameraView cameraView) {
         this.cameraView=cameraView;
         widget=new TextureView(cameraView.getContext());
         widget.setSurfaceTextureListener(this);
+        widget.addOnLayoutChangeListener(this);
+    }
+
+    /**
+     * Rotates the displayed preview clockwise by the given
+     * amount, on top of whatever display orientation the
+     * camera itself is using. The camera is not involved, so
+     * this is safe while the preview is running or while
+     * recording. Safe to call from any thread.
+     *
+     * @param degrees
+     *          0, 90, 180, or 270
+     */
+    void setRotation(int degrees) {
+        rotation=degrees;
+
+        widget.post(new Runnable() {
+            @Override
+            public void run() {
+                applyTransform();
+            }
+        });
+    }
+
+    int getRotation() {
+        return(rotation);
+    }
+
+    @Override
+    public void onLayoutChange(View v, int left, int top, int right,
+                               int bottom, int oldLeft, int oldTop,
+                               int oldRight, int oldBottom) {
+        if (rotation != 0) {
+            applyTransform();
+        }
+    }
+
+    private void applyTransform() {
+        int width=widget.getWidth();
+        int height=widget.getHeight();
+
+        if (width == 0 || height == 0) {
+            return;
+        }
+
+        Matrix matrix=new Matrix();
+        float centerX=width / 2f;
+        float centerY=height / 2f;
+
+        if (rotation == 90 || rotation == 270) {
+            // the buffer was laid out for the other aspect ratio,
+            // so squeeze it into a rotated rectangle first
+
+            RectF view=new RectF(0, 0, width, height);
+            RectF rotated=new RectF(0, 0, height, width);
+
+            rotated.offset(centerX - rotated.centerX(),
+                    centerY - rotated.centerY());
+            matrix.setRectToRect(view, rotated, Matrix.ScaleToFit.FILL);
+        }
+
+        if (rotation != 0) {
+            matrix.postRotate(rotation, centerX, centerY);
+        }
+
+        widget.setTransform(matrix);
     }
 
     @Override
@@ -45,9 +114,13 @@ class TexturePreviewStrategy implements PreviewStrategy,
         return(true);
     }
 
+    // the SurfaceTexture timestamp is the camera's own, in
+    // the same monotonic clock as System.nanoTime()
+
     @Override
     public void onSurfaceTextureUpdated(SurfaceTexture surface) {
-        // no-op
+        cameraView.getPreviewLatencyMonitor().onFrame(surface.getTimestamp(),
+                System.nanoTime());
     }
 
     @Override
@@ -0,0 +1,39 @@
+package com.example.cameralibrary;
+
+import android.graphics.RectF;
+
+/**
+ * A face reported by a FaceTracker, with an ID that stays
+ * the same across frames and bounds that have been smoothed
+ * and converted to CameraView coordinates.
+ */
+public class TrackedFace {
+    private final int id;
+    private final RectF bounds;
+    private final int score;
+
+    TrackedFace(int id, RectF bounds, int score) {
+        this.id=id;
+        this.bounds=bounds;
+        this.score=score;
+    }
+
+    public int getId() {
+        return(id);
+    }
+
+    /**
+     * @return the bounds of the face, in CameraView
+     *         coordinates
+     */
+    public RectF getBounds() {
+        return(bounds);
+    }
+
+    /**
+     * @return the confidence of the detection, from 1 to 100
+     */
+    public int getScore() {
+        return(score);
+    }
+}
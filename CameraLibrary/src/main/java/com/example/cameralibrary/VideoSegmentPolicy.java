@@ -0,0 +1,68 @@
+package com.example.cameralibrary;
+
+/**
+ * Describes how CameraView should split a recording into
+ * segments. Pass one to record() on a CameraFragment or
+ * CameraView. Segment files are supplied by
+ * getVideoSegmentFile() on the CameraHost.
+ */
+public class VideoSegmentPolicy {
+    long maxDurationMs=0;
+    long maxFileSize=0;
+    int keepSegments=0;
+    int bitRate=0;
+
+    /**
+     * @param maxDurationMs
+     *          roll to a new segment after this many
+     *          milliseconds (0 for no time limit)
+     * @return the VideoSegmentPolicy itself
+     */
+    public VideoSegmentPolicy maxDuration(long maxDurationMs) {
+        this.maxDurationMs=maxDurationMs;
+
+        return(this);
+    }
+
+    /**
+     * @param maxFileSize
+     *          roll to a new segment once the current one
+     *          reaches this many bytes (0 for no size limit)
+     * @return the VideoSegmentPolicy itself
+     */
+    public VideoSegmentPolicy maxFileSize(long maxFileSize) {
+        this.maxFileSize=maxFileSize;
+
+        return(this);
+    }
+
+    /**
+     * @param keepSegments
+     *          the number of most-recent segments to keep,
+     *          including the one being recorded; older
+     *          segment files are deleted (0 to keep all)
+     * @return the VideoSegmentPolicy itself
+     */
+    public VideoSegmentPolicy keepSegments(int keepSegments) {
+        this.keepSegments=keepSegments;
+
+        return(this);
+    }
+
+    /**
+     * Gapless rollover on Android 8.0+ is driven by file
+     * size, so a duration limit is converted into bytes using
+     * this bit rate. If not supplied, the bit rates of the
+     * camera's QUALITY_HIGH CamcorderProfile are used.
+     *
+     * @param bitRate
+     *          combined audio and video bit rate, in bits per
+     *          second
+     * @return the VideoSegmentPolicy itself
+     */
+    public VideoSegmentPolicy bitRate(int bitRate) {
+        this.bitRate=bitRate;
+
+        return(this);
+    }
+}
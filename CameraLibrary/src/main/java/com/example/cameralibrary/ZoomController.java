@@ -0,0 +1,315 @@
+package com.example.cameralibrary;
+
+import android.hardware.Camera;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Serializes zoom requests for a CameraView. Requests made
+ * while one is pending are merged, so only the latest target
+ * level reaches the camera, and an in-flight smooth zoom is
+ * stopped and retargeted rather than having new ones stacked
+ * behind it. The zoom limits and ratios are cached when the
+ * camera is opened.
+ */
+class ZoomController implements Camera.OnZoomChangeListener {
+    private final CameraView cameraView;
+    private CameraBackend camera=null;
+    private int maxZoom=-1;
+    private boolean smoothZoomSupported=false;
+    private int[] ratios=null;
+    private int pendingLevel=-1;
+    private boolean dispatchScheduled=false;
+    private boolean cancelRequested=false;
+    private final List<ZoomTransaction> waiting=new ArrayList<ZoomTransaction>();
+
+    // only touched on the camera thread
+    private boolean smoothZoomInFlight=false;
+    private int inFlightLevel=-1;
+    private int currentLevel=0;
+
+    private final Runnable dispatchTask=new Runnable() {
+        @Override
+        public void run() {
+            dispatch();
+        }
+    };
+
+    ZoomController(CameraView cameraView) {
+        this.cameraView=cameraView;
+    }
+
+    // called on the camera thread when the camera is opened
+
+    synchronized void attach(CameraBackend camera, Camera.Parameters params) {
+        this.camera=camera;
+        smoothZoomInFlight=false;
+
+        if (params != null && params.isZoomSupported()) {
+            List<Integer> zoomRatios=params.getZoomRatios();
+
+            maxZoom=params.getMaxZoom();
+            smoothZoomSupported=params.isSmoothZoomSupported();
+            currentLevel=params.getZoom();
+            ratios=new int[zoomRatios.size()];
+
+            for (int i=0; i < ratios.length; i++) {
+                ratios[i]=zoomRatios.get(i);
+            }
+
+            camera.setZoomChangeListener(this);
+        }
+        else {
+            maxZoom=0;
+            smoothZoomSupported=false;
+            ratios=null;
+        }
+    }
+
+    synchronized void detach() {
+        camera=null;
+        maxZoom=-1;
+        ratios=null;
+        pendingLevel=-1;
+        waiting.clear();
+    }
+
+    synchronized int getMaxZoom() {
+        return(maxZoom);
+    }
+
+    /**
+     * @param ratio
+     *          the desired magnification (e.g., 2.0 for 2x)
+     * @return the zoom level whose ratio is closest to the
+     *         requested one, found by binary search of the
+     *         cached ratios, or 0 if zoom is not supported
+     */
+    synchronized int getLevelForRatio(float ratio) {
+        if (ratios == null || ratios.length == 0) {
+            return(0);
+        }
+
+        int target=Math.round(ratio * 100);
+        int low=0;
+        int high=ratios.length - 1;
+
+        while (low < high) {
+            int mid=(low + high) >>> 1;
+
+            if (ratios[mid] < target) {
+                low=mid + 1;
+            }
+            else {
+                high=mid;
+            }
+        }
+
+        if (low > 0 && target - ratios[low - 1] < ratios[low] - target) {
+            low--;
+        }
+
+        return(low);
+    }
+
+    void zoomTo(ZoomTransaction xact) {
+        synchronized(this) {
+            pendingLevel=xact.getLevel();
+            cancelRequested=false;
+            waiting.add(xact);
+
+            if (dispatchScheduled) {
+                return;
+            }
+
+            dispatchScheduled=true;
+        }
+
+        cameraView.runOnCameraThread(dispatchTask);
+    }
+
+    void cancel() {
+        synchronized(this) {
+            pendingLevel=-1;
+            cancelRequested=true;
+
+            if (dispatchScheduled) {
+                return;
+            }
+
+            dispatchScheduled=true;
+        }
+
+        cameraView.runOnCameraThread(dispatchTask);
+    }
+
+    private void dispatch() {
+        int target;
+        boolean cancel;
+        CameraBackend cam;
+        boolean smooth;
+
+        synchronized(this) {
+            dispatchScheduled=false;
+            target=pendingLevel;
+            cancel=cancelRequested;
+            cancelRequested=false;
+            cam=camera;
+            smooth=smoothZoomSupported;
+        }
+
+        if (cam == null) {
+            return;
+        }
+
+        if (smoothZoomInFlight) {
+            if (cancel || target != inFlightLevel) {
+                // onZoomChange() will report the stop, then
+                // start toward the latest target, if any
+                try {
+                    cam.stopSmoothZoom();
+                }
+                catch (RuntimeException e) {
+                    android.util.Log.e(CameraView.TAG, "Could not stop smooth zoom", e);
+                }
+            }
+        }
+        else if (target >= 0) {
+            if (smooth) {
+                startSmoothZoom(cam, target);
+            }
+            else {
+                final int level=target;
+                final ZoomTransaction[] batch;
+                final Camera owner=cam.getCamera();
+
+                synchronized(this) {
+                    batch=takeWaiting();
+
+                    if (pendingLevel == level) {
+                        pendingLevel=-1;
+                    }
+                }
+
+                // the transactions complete once the zoom has
+                // actually been sent to the camera, not when
+                // the edit is queued
+                cameraView.updateCameraParameters("zoom",
+                        new CameraView.ParameterEdit() {
+                            @Override
+                            public void apply(Camera.Parameters params) {
+                                params.setZoom(level);
+                            }
+                        },
+                        new Runnable() {
+                            @Override
+                            public void run() {
+                                currentLevel=level;
+                                complete(batch, level, owner);
+                            }
+                        });
+            }
+        }
+        else if (cancel) {
+            finish(currentLevel, cam.getCamera());
+        }
+    }
+
+    private void startSmoothZoom(CameraBackend cam, int target) {
+        if (target == currentLevel) {
+            synchronized(this) {
+                if (pendingLevel == target) {
+                    pendingLevel=-1;
+                }
+            }
+
+            finish(target, cam.getCamera());
+
+            return;
+        }
+
+        try {
+            cam.startSmoothZoom(target);
+            smoothZoomInFlight=true;
+            inFlightLevel=target;
+        }
+        catch (RuntimeException e) {
+            android.util.Log.e(CameraView.TAG, "Could not start smooth zoom", e);
+            finish(currentLevel, cam.getCamera());
+        }
+    }
+
+    @Override
+    public void onZoomChange(int zoomValue, boolean stopped, Camera camera) {
+        currentLevel=zoomValue;
+
+        if (!stopped) {
+            notify(zoomValue, false, camera);
+            return;
+        }
+
+        smoothZoomInFlight=false;
+
+        int next;
+        CameraBackend cam;
+
+        synchronized(this) {
+            next=pendingLevel;
+            cam=this.camera;
+
+            if (next == zoomValue) {
+                next=-1;
+                pendingLevel=-1;
+            }
+        }
+
+        if (next >= 0 && cam != null) {
+            notify(zoomValue, false, camera);
+            startSmoothZoom(cam, next);
+        }
+        else {
+            finish(zoomValue, camera);
+        }
+    }
+
+    private void notify(int zoomValue, boolean stopped, Camera camera) {
+        ZoomTransaction[] snapshot;
+
+        synchronized(this) {
+            snapshot=waiting.toArray(new ZoomTransaction[waiting.size()]);
+        }
+
+        for (ZoomTransaction xact : snapshot) {
+            xact.onZoomChange(zoomValue, stopped, camera);
+        }
+    }
+
+    // every transaction merged into this zoom completes
+    // together, at wherever the zoom ended up
+
+    private void finish(int zoomValue, Camera camera) {
+        ZoomTransaction[] batch;
+
+        synchronized(this) {
+            batch=takeWaiting();
+        }
+
+        complete(batch, zoomValue, camera);
+    }
+
+    private ZoomTransaction[] takeWaiting() {
+        ZoomTransaction[] result=
+                waiting.toArray(new ZoomTransaction[waiting.size()]);
+
+        waiting.clear();
+
+        return(result);
+    }
+
+    private void complete(ZoomTransaction[] batch, int zoomValue,
+                          Camera camera) {
+        for (ZoomTransaction xact : batch) {
+            xact.onZoomChange(zoomValue, true, camera);
+        }
+    }
+}
@@ -9,7 +9,7 @@ import android.hardware.Camera.OnZoomChangeListener;
  * CameraView.
  */
 final public class ZoomTransaction implements OnZoomChangeListener {
-    private Camera camera;
+    private ZoomController controller;
     private int level;
     private Runnable onComplete=null;
     private OnZoomChangeListener onChange=null;
@@ -19,14 +19,18 @@ final public class ZoomTransaction implements OnZoomChangeListener {
      * CameraFragment or CameraView to create your own
      * ZoomTransaction instances
      *
-     * @param camera
+     * @param controller
      * @param level
      */
-    ZoomTransaction(Camera camera, int level) {
-        this.camera=camera;
+    ZoomTransaction(ZoomController controller, int level) {
+        this.controller=controller;
         this.level=level;
     }
 
+    int getLevel() {
+        return(level);
+    }
+
     /**
      * Call this to specify a Runnable to be executed when the
      * zoom operation is complete.
@@ -59,34 +63,29 @@ final public class ZoomTransaction implements OnZoomChangeListener {
     }
 
     /**
-     * Actually performs the zoom. If smooth zooming is
-     * supported, the zoom begins but happens asynchronously.
-     * If smoooth zooming is not supported, the zoom happens
-     * immediately, and your callback objects
-     * (OnZoomChangedListener, Runnable) are immediately
-     * invoked.
+     * Actually performs the zoom, on the camera thread. If
+     * smooth zooming is supported, the zoom happens
+     * asynchronously. If smoooth zooming is not supported,
+     * the zoom level is applied in one step, and your callback
+     * objects (OnZoomChangedListener, Runnable) are invoked
+     * once it has been sent.
+     *
+     * If another ZoomTransaction is started before this one
+     * completes (e.g., during a pinch gesture), only the
+     * latest target level is zoomed to, and the callbacks of
+     * all the merged transactions are invoked when it is
+     * reached.
      */
     public void go() {
-        Camera.Parameters params=camera.getParameters();
-
-        if (params.isSmoothZoomSupported()) {
-            camera.setZoomChangeListener(this);
-            camera.startSmoothZoom(level);
-        }
-        else {
-            params.setZoom(level);
-            camera.setParameters(params);
-            onZoomChange(level, true, camera);
-        }
+        controller.zoomTo(this);
     }
 
     /**
-     * Cancels an outstanding smooth zoom request. Call this
-     * after go() and before your onCompleted Runnable is
-     * invoked.
+     * Cancels an outstanding zoom request. Call this after
+     * go() and before your onCompleted Runnable is invoked.
      */
     public void cancel() {
-        camera.stopSmoothZoom();
+        controller.cancel();
     }
 
     /*
@@ -0,0 +1,455 @@
+package com.example.cameralibrary;
+
+import android.app.Activity;
+import android.content.Context;
+import android.hardware.Camera;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.shadows.ShadowSystemClock;
+import org.robolectric.util.ReflectionHelpers;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Fails if the steady-state preview and capture paths
+ * allocate more than the budgets in
+ * allocation-budgets.properties, at the root of this module.
+ *
+ * Preview frames and captures go through a CameraView on a
+ * SimulatedCameraBackend, with the camera thread running for
+ * real: each frame is handed back with
+ * addPreviewCallbackBuffer(), through the CommandDispatcher,
+ * and each picture is taken, cleaned up, and saved by
+ * SimpleCameraHost. The preview callback chain and the
+ * stripe encoder are also measured on their own, so that a
+ * regression can be placed. Allocated bytes are read from
+ * the JVM's per-thread allocation counters, summed over the
+ * threads that do the work; JVMs without them skip these
+ * tests.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(shadows=CameraViewSimulationTest.ShadowRealParameters.class)
+public class AllocationBudgetTest {
+    private static final long TIMEOUT_MS=5000;
+    private static final int WARMUP_ROUNDS=3;
+    private static final int PREVIEW_FRAMES=500;
+    private static final int PREVIEW_WIDTH=320;
+    private static final int PREVIEW_HEIGHT=240;
+    private static final int FPS=100;
+    private static final int CAPTURES=4;
+    private static final int CAPTURE_WIDTH=1024;
+    private static final int CAPTURE_HEIGHT=768;
+    private static final int STRIPE_ROWS=256;
+    private static final Properties budgets=new Properties();
+    private static com.sun.management.ThreadMXBean threads=null;
+    private SimulatedCameraBackend.Factory factory;
+    private File dir;
+    private CameraView view;
+
+    @BeforeClass
+    public static void setUpClass() throws IOException {
+        java.lang.management.ThreadMXBean bean=
+                ManagementFactory.getThreadMXBean();
+
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            threads=(com.sun.management.ThreadMXBean)bean;
+
+            if (threads.isThreadAllocatedMemorySupported()) {
+                threads.setThreadAllocatedMemoryEnabled(true);
+            }
+            else {
+                threads=null;
+            }
+        }
+
+        String path=System.getProperty("allocationBudgets",
+                "allocation-budgets.properties");
+        InputStream in=new FileInputStream(new File(path));
+
+        try {
+            budgets.load(in);
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    @Before
+    public void setUp() {
+        Context ctxt=Robolectric.buildActivity(Activity.class).setup().get();
+
+        // a back-facing camera with an upright sensor, so the
+        // pictures need no rotation and are saved as taken
+        factory=
+                new SimulatedCameraBackend.Factory()
+                        .facing(Camera.CameraInfo.CAMERA_FACING_BACK, 0)
+                        .preview(PREVIEW_WIDTH, PREVIEW_HEIGHT, FPS)
+                        .picture(CAPTURE_WIDTH, CAPTURE_HEIGHT, 0)
+                        .parameters(new CameraBackend.ParametersSupplier() {
+                            @Override
+                            public Camera.Parameters newParameters() {
+                                return(newParametersWithSizes());
+                            }
+                        });
+        dir=new File(ctxt.getCacheDir(), "allocation-budget");
+
+        SimpleCameraHost host=
+                new SimpleCameraHost.Builder(ctxt)
+                        .deviceProfile(new OrientedDeviceProfile())
+                        .photoDirectory(dir)
+                        .scanSavedImage(false)
+                        .build();
+
+        view=new CameraView(ctxt);
+        view.setCameraHost(host);
+        view.setCameraBackendFactory(factory);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        view.onPause();
+        awaitState(CameraLifecycle.State.CLOSED);
+    }
+
+    @Test
+    public void previewFrame_staysWithinBudget() throws Exception {
+        final PreviewCallbackTracker tracker=new PreviewCallbackTracker();
+        final PreviewLatencyMonitor monitor=new PreviewLatencyMonitor();
+        final byte[][] buffers={ new byte[64], new byte[64], new byte[64] };
+
+        tracker.setLatencyMonitor(monitor);
+        tracker.setClient(new Camera.PreviewCallback() {
+            @Override
+            public void onPreviewFrame(byte[] data, Camera camera) {
+                tracker.onBufferAdded(data);
+            }
+        });
+        monitor.onPreviewStarted(System.nanoTime());
+
+        for (byte[] buffer : buffers) {
+            tracker.onBufferAdded(buffer);
+        }
+
+        assertWithinBudget("preview.frame", PREVIEW_FRAMES,
+                new long[] {Thread.currentThread().getId()}, 0,
+                new Operation() {
+                    @Override
+                    public void run() {
+                        for (int i=0; i < PREVIEW_FRAMES; i++) {
+                            tracker.onPreviewFrame(buffers[i % buffers.length],
+                                    null);
+                        }
+                    }
+                });
+    }
+
+    @Test
+    public void previewDispatch_staysWithinBudget() throws Exception {
+        final AtomicInteger frames=new AtomicInteger();
+        final AtomicLong cameraThread=new AtomicLong();
+        final CountDownLatch found=new CountDownLatch(1);
+
+        view.onResume();
+        awaitState(CameraLifecycle.State.OPEN);
+        view.setPreviewCallback(new Camera.PreviewCallback() {
+            @Override
+            public void onPreviewFrame(byte[] data, Camera camera) {
+                frames.incrementAndGet();
+                view.addPreviewCallbackBuffer(data);
+            }
+        });
+
+        for (int i=0; i < 3; i++) {
+            view.addPreviewCallbackBuffer(new byte[PREVIEW_WIDTH * PREVIEW_HEIGHT * 3 / 2]);
+        }
+
+        view.initPreview(PREVIEW_WIDTH, PREVIEW_HEIGHT);
+        awaitState(CameraLifecycle.State.PREVIEWING);
+        view.runOnCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                cameraThread.set(Thread.currentThread().getId());
+                found.countDown();
+            }
+        });
+        assertTrue(found.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        awaitFrames(frames, 1);
+
+        assertWithinBudget("preview.dispatch", PREVIEW_FRAMES,
+                new long[] {cameraThread.get()}, getLooperCost(),
+                new Operation() {
+                    @Override
+                    public void run() throws InterruptedException {
+                        stepFrames(frames, PREVIEW_FRAMES);
+                    }
+                });
+
+        assertEquals(0, factory.getLastOpened().getDroppedFrameCount());
+    }
+
+    @Test
+    public void stripeEncode_staysWithinBudget() throws Exception {
+        final int[] stripe=new int[CAPTURE_WIDTH * STRIPE_ROWS];
+        final OutputStream sink=new OutputStream() {
+            @Override
+            public void write(int b) {
+                // discarded
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                // discarded
+            }
+        };
+
+        for (int i=0; i < stripe.length; i++) {
+            stripe[i]=0xFF000000 | ((i * 7919) & 0xFFFFFF);
+        }
+
+        assertWithinBudget("capture.stripeEncode", CAPTURES,
+                new long[] {Thread.currentThread().getId()}, 0,
+                new Operation() {
+                    @Override
+                    public void run() throws IOException {
+                        for (int i=0; i < CAPTURES; i++) {
+                            StripeJpegEncoder encoder=
+                                    new StripeJpegEncoder(sink, CAPTURE_WIDTH,
+                                            CAPTURE_HEIGHT, 95);
+
+                            for (int row=0; row < CAPTURE_HEIGHT; row+=STRIPE_ROWS) {
+                                encoder.write(stripe, 0, CAPTURE_WIDTH,
+                                        Math.min(STRIPE_ROWS, CAPTURE_HEIGHT - row));
+                            }
+
+                            encoder.finish();
+                        }
+                    }
+                });
+    }
+
+    @Test
+    public void captureSave_staysWithinBudget() throws Exception {
+        view.onResume();
+        awaitState(CameraLifecycle.State.OPEN);
+        view.initPreview(PREVIEW_WIDTH, PREVIEW_HEIGHT);
+        awaitState(CameraLifecycle.State.PREVIEWING);
+
+        // the camera hands over each picture in an array of its
+        // own, as a real one does; that is not the library's
+        int delivered=factory.getJpeg().length;
+
+        assertWithinBudget("capture.save", CAPTURES, null, delivered,
+                new Operation() {
+                    @Override
+                    public void run() throws Exception {
+                        for (int i=0; i < CAPTURES; i++) {
+                            view.takePicture(false, true).get(TIMEOUT_MS,
+                                    TimeUnit.MILLISECONDS);
+                            view.restartPreview();
+                        }
+                    }
+                });
+
+        File[] photos=dir.listFiles();
+
+        assertTrue("No photo saved", photos != null && photos.length > 0);
+
+        for (File photo : photos) {
+            assertEquals(delivered, photo.length());
+        }
+    }
+
+    // takes the orientation from the display rather than
+    // the EXIF data
+
+    private static class OrientedDeviceProfile extends SimpleDeviceProfile {
+        @Override
+        public boolean useDeviceOrientation() {
+            return(true);
+        }
+    }
+
+    // runs the operation a few rounds over to let the JIT
+    // settle, then compares the final round's average per
+    // item, less the given overhead, against the named budget
+
+    private void assertWithinBudget(String name, int count, long[] ids,
+                                    long overhead, Operation op) {
+        Assume.assumeTrue("Per-thread allocation counters unavailable",
+                threads != null);
+
+        String value=budgets.getProperty(name);
+
+        assertNotNull("No budget for " + name, value);
+
+        long budget=Long.parseLong(value.trim());
+        long perItem=0;
+
+        try {
+            for (int round=0; round <= WARMUP_ROUNDS; round++) {
+                long start=getAllocatedBytes(ids);
+                long before=getAllocatedBytes(ids);
+
+                op.run();
+
+                long after=getAllocatedBytes(ids);
+
+                // the counter read itself may allocate, so that
+                // is measured and taken out
+
+                perItem=((after - before) - (before - start)) / count - overhead;
+            }
+        }
+        catch (Exception e) {
+            throw new AssertionError(name + " failed: " + e);
+        }
+
+        assertTrue(name + " allocated " + perItem
+                        + " bytes per operation, over its budget of " + budget,
+                perItem <= budget);
+    }
+
+    // the bytes allocated so far by the given threads, or by
+    // every live thread if ids is null
+
+    private static long getAllocatedBytes(long[] ids) {
+        long[] counts=threads.getThreadAllocatedBytes(ids == null
+                ? threads.getAllThreadIds() : ids);
+        long result=0;
+
+        for (long count : counts) {
+            if (count > 0) {
+                result+=count;
+            }
+        }
+
+        return(result);
+    }
+
+    // what Robolectric's Looper allocates per frame, for the
+    // delayed post that paces the simulated preview and the
+    // message that hands the buffer back; a device's Looper
+    // allocates nothing for either, so this is taken out
+
+    private static long getLooperCost() throws Exception {
+        final HandlerThread thread=new HandlerThread("looper-cost");
+
+        thread.start();
+
+        try {
+            final Handler handler=new Handler(thread.getLooper());
+            final Handler sink=new Handler(thread.getLooper(),
+                    new Handler.Callback() {
+                        @Override
+                        public boolean handleMessage(Message msg) {
+                            return(true);
+                        }
+                    });
+            final AtomicInteger frames=new AtomicInteger();
+
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    handler.postDelayed(this, 1000 / FPS);
+                    sink.sendMessage(sink.obtainMessage());
+                    frames.incrementAndGet();
+                }
+            });
+            awaitFrames(frames, 1);
+
+            final long[] ids={thread.getId()};
+            long cost=0;
+
+            for (int round=0; round <= WARMUP_ROUNDS; round++) {
+                long before=getAllocatedBytes(ids);
+
+                stepFrames(frames, PREVIEW_FRAMES);
+                cost=(getAllocatedBytes(ids) - before) / PREVIEW_FRAMES;
+            }
+
+            return(cost);
+        }
+        finally {
+            thread.quit();
+        }
+    }
+
+    // moves Robolectric's clock on one frame at a time, waiting
+    // for each frame to arrive before the next
+
+    private static void stepFrames(AtomicInteger frames, int count)
+            throws InterruptedException {
+        for (int i=0; i < count; i++) {
+            int expected=frames.get() + 1;
+
+            ShadowSystemClock.advanceBy(1000 / FPS, TimeUnit.MILLISECONDS);
+            awaitFrames(frames, expected);
+        }
+    }
+
+    private static void awaitFrames(AtomicInteger frames, int count)
+            throws InterruptedException {
+        long deadline=System.currentTimeMillis() + TIMEOUT_MS;
+
+        while (frames.get() < count) {
+            assertTrue("Only " + frames.get() + " frames",
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(0);
+        }
+    }
+
+    private void awaitState(CameraLifecycle.State state)
+            throws InterruptedException {
+        CameraLifecycle lifecycle=view.getCameraLifecycle();
+        long deadline=System.currentTimeMillis() + TIMEOUT_MS;
+
+        while (!lifecycle.is(state) && System.currentTimeMillis() < deadline) {
+            pause();
+        }
+
+        assertEquals(state, lifecycle.getState());
+    }
+
+    private static void pause() throws InterruptedException {
+        Thread.sleep(10);
+        ShadowLooper.idleMainLooper(10, TimeUnit.MILLISECONDS);
+    }
+
+    private static Camera.Parameters newParametersWithSizes() {
+        Camera.Parameters result=
+                ReflectionHelpers.callConstructor(Camera.Parameters.class,
+                        ReflectionHelpers.ClassParameter.from(Camera.class, null));
+
+        result.set("preview-size-values", PREVIEW_WIDTH + "x" + PREVIEW_HEIGHT);
+        result.set("picture-size-values", CAPTURE_WIDTH + "x" + CAPTURE_HEIGHT);
+
+        return(result);
+    }
+
+    private interface Operation {
+        void run() throws Exception;
+    }
+}
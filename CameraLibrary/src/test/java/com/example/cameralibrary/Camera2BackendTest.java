@@ -0,0 +1,193 @@
+package com.example.cameralibrary;
+
+import android.content.Context;
+import android.graphics.Rect;
+import android.hardware.Camera;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraManager;
+import android.util.Range;
+import android.util.Rational;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowCameraCharacteristics;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.util.ReflectionHelpers;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Opens a Camera2Backend against Robolectric's CameraManager,
+ * with camera ids that are not numbers.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(shadows=CameraViewSimulationTest.ShadowRealParameters.class)
+public class Camera2BackendTest {
+    private static final long TIMEOUT_MS=5000;
+    private CameraManager manager;
+    private Camera2Backend.Factory factory;
+
+    @Before
+    public void setUp() {
+        Context ctxt=RuntimeEnvironment.getApplication();
+
+        manager=(CameraManager)ctxt.getSystemService(Context.CAMERA_SERVICE);
+        shadowOf(manager).addCamera("wide",
+                newCharacteristics(CameraCharacteristics.LENS_FACING_BACK, 90));
+        shadowOf(manager).addCamera("selfie",
+                newCharacteristics(CameraCharacteristics.LENS_FACING_FRONT, 270));
+        factory=
+                new Camera2Backend.Factory(ctxt,
+                        new CameraBackend.ParametersSupplier() {
+                            @Override
+                            public Camera.Parameters newParameters() {
+                                return(ReflectionHelpers.callConstructor(Camera.Parameters.class,
+                                        ReflectionHelpers.ClassParameter.from(Camera.class, null)));
+                            }
+                        });
+    }
+
+    @Test
+    public void indexesFollowTheIdList() {
+        Camera.CameraInfo info=new Camera.CameraInfo();
+
+        assertEquals(2, factory.getNumberOfCameras());
+
+        factory.getCameraInfo(0, info);
+        assertEquals(Camera.CameraInfo.CAMERA_FACING_BACK, info.facing);
+        assertEquals(90, info.orientation);
+
+        factory.getCameraInfo(1, info);
+        assertEquals(Camera.CameraInfo.CAMERA_FACING_FRONT, info.facing);
+        assertEquals(270, info.orientation);
+    }
+
+    @Test
+    public void parametersComeFromCharacteristics() {
+        CameraBackend backend=factory.open(0);
+
+        try {
+            Camera.Parameters params=backend.getParameters();
+            List<Integer> ratios=params.getZoomRatios();
+
+            assertEquals(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE,
+                    params.getFocusMode());
+            assertTrue(params.getSupportedFocusModes()
+                    .contains(Camera.Parameters.FOCUS_MODE_AUTO));
+            assertEquals(Camera.Parameters.FLASH_MODE_OFF, params.getFlashMode());
+            assertTrue(params.getSupportedFlashModes()
+                    .contains(Camera.Parameters.FLASH_MODE_TORCH));
+            assertTrue(params.isZoomSupported());
+            assertEquals(100, (int)ratios.get(0));
+            assertEquals(400, (int)ratios.get(params.getMaxZoom()));
+            assertEquals(-6, params.getMinExposureCompensation());
+            assertEquals(6, params.getMaxExposureCompensation());
+            assertEquals(1, params.getMaxNumFocusAreas());
+        }
+        finally {
+            backend.release();
+        }
+    }
+
+    @Test
+    public void parametersAreCopies() {
+        CameraBackend backend=factory.open(1);
+
+        try {
+            Camera.Parameters params=backend.getParameters();
+
+            params.setZoom(3);
+            backend.setParameters(params);
+
+            assertNotSame(params, backend.getParameters());
+            assertEquals(3, params.getZoom());
+            assertEquals(3, backend.getParameters().getZoom());
+
+            params.setZoom(5);
+            assertEquals(3, backend.getParameters().getZoom());
+        }
+        finally {
+            backend.release();
+        }
+    }
+
+    @Test
+    public void disconnectReachesErrorCallback() throws InterruptedException {
+        final AtomicInteger errors=new AtomicInteger();
+        CameraBackend backend=factory.open(0);
+
+        backend.setErrorCallback(new Camera.ErrorCallback() {
+            @Override
+            public void onError(int error, Camera camera) {
+                errors.incrementAndGet();
+            }
+        });
+        shadowOf(manager).triggerDisconnect();
+
+        long deadline=System.currentTimeMillis() + TIMEOUT_MS;
+
+        while (errors.get() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            ShadowLooper.idleMainLooper(10, TimeUnit.MILLISECONDS);
+        }
+
+        assertEquals(1, errors.get());
+        backend.release();
+    }
+
+    @Test
+    public void saysItCannotRecord() {
+        CameraBackend backend=factory.open(0);
+
+        try {
+            assertFalse(backend.canRecord());
+        }
+        finally {
+            backend.release();
+        }
+    }
+
+    @Test
+    public void rejectsUnknownIndex() {
+        try {
+            factory.open(2);
+            fail("Opened a camera that is not there");
+        }
+        catch (RuntimeException e) {
+            // expected
+        }
+    }
+
+    private static CameraCharacteristics newCharacteristics(int facing,
+                                                            int orientation) {
+        CameraCharacteristics result=
+                ShadowCameraCharacteristics.newCameraCharacteristics();
+        ShadowCameraCharacteristics shadow=shadowOf(result);
+
+        shadow.set(CameraCharacteristics.LENS_FACING, facing);
+        shadow.set(CameraCharacteristics.SENSOR_ORIENTATION, orientation);
+        shadow.set(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE,
+                new Rect(0, 0, 4000, 3000));
+        shadow.set(CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES,
+                new int[] {CameraCharacteristics.CONTROL_AF_MODE_OFF,
+                        CameraCharacteristics.CONTROL_AF_MODE_AUTO,
+                        CameraCharacteristics.CONTROL_AF_MODE_CONTINUOUS_PICTURE});
+        shadow.set(CameraCharacteristics.FLASH_INFO_AVAILABLE, true);
+        shadow.set(CameraCharacteristics.SCALER_AVAILABLE_MAX_DIGITAL_ZOOM, 4f);
+        shadow.set(CameraCharacteristics.CONTROL_AE_COMPENSATION_RANGE,
+                new Range<Integer>(-6, 6));
+        shadow.set(CameraCharacteristics.CONTROL_AE_COMPENSATION_STEP,
+                new Rational(1, 3));
+        shadow.set(CameraCharacteristics.CONTROL_MAX_REGIONS_AF, 1);
+
+        return(result);
+    }
+}
@@ -0,0 +1,245 @@
+package com.example.cameralibrary;
+
+import android.app.Activity;
+import android.content.Context;
+import android.hardware.Camera;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.Implements;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.util.ReflectionHelpers;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives a CameraView through open, preview, capture, and
+ * close against a SimulatedCameraBackend, with the camera
+ * thread running for real.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(shadows=CameraViewSimulationTest.ShadowRealParameters.class)
+public class CameraViewSimulationTest {
+    private static final long TIMEOUT_MS=5000;
+    private static final int PREVIEW_WIDTH=320;
+    private static final int PREVIEW_HEIGHT=240;
+    private Context ctxt;
+    private File dir;
+    private SimulatedCameraBackend.Factory factory;
+    private FailureHost host;
+    private CameraView view;
+
+    // Robolectric's own shadow keeps the values where
+    // flatten() and unflatten() cannot see them, so this one
+    // leaves the real implementation alone
+
+    @Implements(Camera.Parameters.class)
+    public static class ShadowRealParameters {
+    }
+
+    @Before
+    public void setUp() {
+        ctxt=Robolectric.buildActivity(Activity.class).setup().get();
+        dir=new File(ctxt.getCacheDir(), "simulation");
+        factory=
+                new SimulatedCameraBackend.Factory()
+                        .facing(Camera.CameraInfo.CAMERA_FACING_FRONT, 270)
+                        .preview(PREVIEW_WIDTH, PREVIEW_HEIGHT, 30)
+                        .picture(PREVIEW_WIDTH, PREVIEW_HEIGHT, 0)
+                        .parameters(new CameraBackend.ParametersSupplier() {
+                            @Override
+                            public Camera.Parameters newParameters() {
+                                return(newParametersWithSizes());
+                            }
+                        });
+        host=new FailureHost(ctxt);
+        new SimpleCameraHost.Builder(host)
+                .useFrontFacingCamera(true)
+                .photoDirectory(dir)
+                .scanSavedImage(false)
+                .build();
+        view=new CameraView(ctxt);
+        view.setCameraHost(host);
+        view.setCameraBackendFactory(factory);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        view.onPause();
+        awaitState(CameraLifecycle.State.CLOSED);
+    }
+
+    @Test
+    public void opensCameraChosenFromFactory() throws InterruptedException {
+        view.onResume();
+        awaitState(CameraLifecycle.State.OPEN);
+
+        assertEquals(0, host.getCameraId());
+        assertEquals(0, host.failures.get());
+        assertNotNull(factory.getLastOpened());
+    }
+
+    @Test
+    public void previewDeliversFrames() throws InterruptedException {
+        final AtomicInteger frames=new AtomicInteger();
+
+        view.onResume();
+        awaitState(CameraLifecycle.State.OPEN);
+        view.setPreviewCallback(new Camera.PreviewCallback() {
+            @Override
+            public void onPreviewFrame(byte[] data, Camera camera) {
+                frames.incrementAndGet();
+                view.addPreviewCallbackBuffer(data);
+            }
+        });
+
+        for (int i=0; i < 3; i++) {
+            view.addPreviewCallbackBuffer(new byte[PREVIEW_WIDTH * PREVIEW_HEIGHT * 3 / 2]);
+        }
+
+        view.initPreview(PREVIEW_WIDTH, PREVIEW_HEIGHT);
+        awaitState(CameraLifecycle.State.PREVIEWING);
+
+        long deadline=System.currentTimeMillis() + TIMEOUT_MS;
+
+        while (frames.get() < 5 && System.currentTimeMillis() < deadline) {
+            pause();
+        }
+
+        assertTrue("Only " + frames.get() + " frames", frames.get() >= 5);
+    }
+
+    @Test
+    public void pictureIsSaved() throws Exception {
+        view.onResume();
+        awaitState(CameraLifecycle.State.OPEN);
+        view.initPreview(PREVIEW_WIDTH, PREVIEW_HEIGHT);
+
+        PictureTransaction xact=
+                view.takePicture(false, true).get(TIMEOUT_MS,
+                        TimeUnit.MILLISECONDS);
+        File[] photos=dir.listFiles();
+
+        assertNotNull(xact);
+        assertEquals(1, factory.getLastOpened().getPictureCount());
+        assertTrue("No photo saved", photos != null && photos.length > 0);
+        assertEquals(factory.getJpeg().length, photos[0].length());
+    }
+
+    @Test
+    public void failedRecordingRestartsPreview() throws Exception {
+        // a landscape preview, so recording gets as far as
+        // handing the camera to the MediaRecorder, which the
+        // simulated camera then refuses
+        factory.facing(Camera.CameraInfo.CAMERA_FACING_FRONT, 0)
+                .claimsRecording(true);
+        view.onResume();
+        awaitState(CameraLifecycle.State.OPEN);
+        view.initPreview(PREVIEW_WIDTH, PREVIEW_HEIGHT);
+        awaitState(CameraLifecycle.State.PREVIEWING);
+
+        try {
+            view.record();
+            fail("Simulated camera recorded");
+        }
+        catch (UnsupportedOperationException e) {
+            // expected
+        }
+
+        awaitState(CameraLifecycle.State.PREVIEWING);
+        assertFalse(view.isRecordingPrepared());
+        assertTrue(factory.getLastOpened().isPreviewing());
+    }
+
+    @Test
+    public void recordingRejectedBeforeTouchingCamera() throws Exception {
+        factory.facing(Camera.CameraInfo.CAMERA_FACING_FRONT, 0);
+        view.onResume();
+        awaitState(CameraLifecycle.State.OPEN);
+        view.initPreview(PREVIEW_WIDTH, PREVIEW_HEIGHT);
+        awaitState(CameraLifecycle.State.PREVIEWING);
+
+        try {
+            view.prepareRecording();
+            fail("Simulated camera prepared a recording");
+        }
+        catch (UnsupportedOperationException e) {
+            // expected
+        }
+
+        assertEquals(CameraLifecycle.State.PREVIEWING,
+                view.getCameraState());
+        assertTrue(factory.getLastOpened().isPreviewing());
+    }
+
+    @Test
+    public void closesOnPause() throws InterruptedException {
+        view.onResume();
+        awaitState(CameraLifecycle.State.OPEN);
+        view.onPause();
+        awaitState(CameraLifecycle.State.CLOSED);
+
+        try {
+            factory.getLastOpened().getParameters();
+            fail("Simulated camera was not released");
+        }
+        catch (RuntimeException e) {
+            // expected
+        }
+    }
+
+    private void awaitState(CameraLifecycle.State state)
+            throws InterruptedException {
+        CameraLifecycle lifecycle=view.getCameraLifecycle();
+        long deadline=System.currentTimeMillis() + TIMEOUT_MS;
+
+        while (!lifecycle.is(state) && System.currentTimeMillis() < deadline) {
+            pause();
+        }
+
+        assertEquals(state, lifecycle.getState());
+    }
+
+    // lets the camera thread run, then moves Robolectric's
+    // clock on, so that delayed work such as the next preview
+    // frame comes due, and runs whatever that posted to the
+    // main thread
+
+    private static void pause() throws InterruptedException {
+        Thread.sleep(10);
+        ShadowLooper.idleMainLooper(10, TimeUnit.MILLISECONDS);
+    }
+
+    private static Camera.Parameters newParametersWithSizes() {
+        Camera.Parameters result=
+                ReflectionHelpers.callConstructor(Camera.Parameters.class,
+                        ReflectionHelpers.ClassParameter.from(Camera.class, null));
+        String size=PREVIEW_WIDTH + "x" + PREVIEW_HEIGHT;
+
+        result.set("preview-size-values", size);
+        result.set("picture-size-values", size);
+
+        return(result);
+    }
+
+    private static class FailureHost extends SimpleCameraHost {
+        final AtomicInteger failures=new AtomicInteger();
+
+        FailureHost(Context ctxt) {
+            super(ctxt);
+        }
+
+        @Override
+        public void onCameraFail(FailureReason reason) {
+            failures.incrementAndGet();
+        }
+    }
+}
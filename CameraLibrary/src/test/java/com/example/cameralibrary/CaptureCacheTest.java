@@ -0,0 +1,130 @@
+package com.example.cameralibrary;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks CaptureCache's byte accounting as pictures are
+ * added, used, evicted, and given up under memory pressure.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class CaptureCacheTest {
+    private static final int PICTURE=100;
+    private CaptureMemoryBudget budget;
+    private CaptureCache cache;
+
+    @Before
+    public void setUp() {
+        budget=new CaptureMemoryBudget(1048576);
+        cache=
+                new CaptureCache(RuntimeEnvironment.getApplication(),
+                        3 * PICTURE, 0, budget);
+    }
+
+    @After
+    public void tearDown() {
+        cache.release();
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        cache.put("a", new byte[PICTURE], 0);
+        cache.put("b", new byte[PICTURE], 0);
+        cache.put("c", new byte[PICTURE], 0);
+        assertNotNull(cache.get("a"));
+
+        cache.put("d", new byte[PICTURE], 0);
+
+        assertEquals(3 * PICTURE, cache.getSize());
+        assertEquals(1, cache.getEvictionCount());
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("a"));
+        assertNotNull(cache.get("c"));
+        assertNotNull(cache.get("d"));
+    }
+
+    @Test
+    public void replacesSameTag() {
+        cache.put("a", new byte[PICTURE], 0);
+        cache.put("a", new byte[2 * PICTURE], 90);
+
+        assertEquals(2 * PICTURE, cache.getSize());
+        assertEquals(90, cache.get("a").getImageOrientation());
+        assertEquals(0, cache.getEvictionCount());
+    }
+
+    @Test
+    public void skipsOversizedPicture() {
+        cache.put("a", new byte[PICTURE], 0);
+        cache.put("a", new byte[4 * PICTURE], 0);
+
+        assertEquals(0, cache.getSize());
+        assertNull(cache.get("a"));
+    }
+
+    @Test
+    public void removeAndTrimAdjustSize() {
+        cache.put("a", new byte[PICTURE], 0);
+        cache.put("b", new byte[PICTURE], 0);
+        cache.put("c", new byte[PICTURE], 0);
+
+        assertNotNull(cache.remove("b"));
+        assertEquals(2 * PICTURE, cache.getSize());
+
+        cache.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND);
+        assertEquals(PICTURE, cache.getSize());
+        assertNull(cache.get("a"));
+        assertNotNull(cache.get("c"));
+
+        cache.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void decodesPreviewOnFirstUse() throws IOException {
+        byte[] jpeg=newJpeg(64, 48);
+        CaptureCache previews=
+                new CaptureCache(RuntimeEnvironment.getApplication(),
+                        1048576, 16, budget);
+
+        try {
+            previews.put("a", jpeg, 0);
+            assertEquals(jpeg.length, previews.getSize());
+
+            CaptureCache.Entry entry=previews.get("a");
+            Bitmap preview=entry.getPreview();
+
+            assertNotNull(preview);
+            assertSame(preview, entry.getPreview());
+            assertEquals(jpeg.length + preview.getByteCount(),
+                    previews.getSize());
+            assertEquals(previews.getSize(), entry.getSize());
+            assertEquals(0, budget.getReservedBytes());
+        }
+        finally {
+            previews.release();
+        }
+    }
+
+    private static byte[] newJpeg(int width, int height) throws IOException {
+        ByteArrayOutputStream out=new ByteArrayOutputStream();
+        StripeJpegEncoder encoder=
+                new StripeJpegEncoder(out, width, height, 90);
+
+        encoder.write(new int[width * height], 0, width, height);
+        encoder.finish();
+
+        return(out.toByteArray());
+    }
+}
@@ -0,0 +1,99 @@
+package com.example.cameralibrary;
+
+import android.content.Context;
+import android.hardware.Camera;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that a picture needing no cleanup reaches
+ * SimpleCameraHost's byte[] save, and its CaptureCache, as
+ * the camera's own array rather than a copy.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class SimpleCameraHostTest {
+    private Context ctxt;
+    private File dir;
+    private byte[] jpeg;
+    private Camera.CameraInfo info;
+
+    @Before
+    public void setUp() {
+        ctxt=RuntimeEnvironment.getApplication();
+        dir=new File(ctxt.getCacheDir(), "host");
+        jpeg=new byte[4096];
+        info=new Camera.CameraInfo();
+        info.facing=Camera.CameraInfo.CAMERA_FACING_BACK;
+    }
+
+    @Test
+    public void overridingHostGetsCameraArray() {
+        final byte[][] saved=new byte[1][];
+        SimpleCameraHost host=new SimpleCameraHost(ctxt) {
+            @Override
+            public void saveImage(PictureTransaction xact, byte[] image,
+                                  int imageOrientation) {
+                saved[0]=image;
+            }
+        };
+
+        new SimpleCameraHost.Builder(host)
+                .deviceProfile(new OrientedDeviceProfile())
+                .build();
+        save(host, null);
+
+        assertSame(jpeg, saved[0]);
+    }
+
+    @Test
+    public void cacheKeepsCameraArray() {
+        CaptureCache cache=
+                new CaptureCache(ctxt, 1048576, 0,
+                        new CaptureMemoryBudget(1048576));
+        SimpleCameraHost host=
+                new SimpleCameraHost.Builder(ctxt)
+                        .deviceProfile(new OrientedDeviceProfile())
+                        .photoDirectory(dir)
+                        .scanSavedImage(false)
+                        .captureCache(cache)
+                        .build();
+
+        try {
+            save(host, "picture");
+
+            assertSame(jpeg, cache.get("picture").getJpeg());
+            assertEquals(jpeg.length, dir.listFiles()[0].length());
+        }
+        finally {
+            cache.release();
+        }
+    }
+
+    private void save(SimpleCameraHost host, Object tag) {
+        PictureTransaction xact=new PictureTransaction(host);
+
+        if (tag != null) {
+            xact.tag(tag);
+        }
+
+        xact.future=new PictureFuture(xact);
+        new ImageCleanupTask(ctxt, jpeg, info, xact).run();
+    }
+
+    // takes the orientation from the display rather than
+    // the EXIF data, as the fake picture has none
+
+    private static class OrientedDeviceProfile extends SimpleDeviceProfile {
+        @Override
+        public boolean useDeviceOrientation() {
+            return(true);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.example.cameralibrary;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.*;
+
+/**
+ * Encodes images with StripeJpegEncoder and decodes them
+ * again with the JDK's decoder, to check that the output is
+ * a valid baseline JPEG of the right size whose pixels are
+ * close to what went in.
+ */
+public class StripeJpegEncoderTest {
+    private static final int QUALITY=100;
+    private static final double MAX_MEAN_ERROR=2.0;
+    private static final int MAX_PIXEL_ERROR=24;
+
+    @Test
+    public void roundTripsBlockAlignedImage() throws IOException {
+        assertRoundTrip(64, 48, 16);
+    }
+
+    @Test
+    public void roundTripsPartialBlocks() throws IOException {
+        assertRoundTrip(100, 75, 16);
+    }
+
+    @Test
+    public void roundTripsUnevenStripes() throws IOException {
+        assertRoundTrip(37, 29, 5);
+    }
+
+    @Test
+    public void roundTripsSinglePixel() throws IOException {
+        assertRoundTrip(1, 1, 1);
+    }
+
+    @Test(expected=IllegalStateException.class)
+    public void rejectsMissingRows() throws IOException {
+        StripeJpegEncoder encoder=
+                new StripeJpegEncoder(new ByteArrayOutputStream(), 16, 16,
+                        QUALITY);
+
+        encoder.write(gradient(16, 8), 0, 16, 8);
+        encoder.finish();
+    }
+
+    private void assertRoundTrip(int width, int height, int stripeRows)
+            throws IOException {
+        int[] argb=gradient(width, height);
+        ByteArrayOutputStream out=new ByteArrayOutputStream();
+        StripeJpegEncoder encoder=
+                new StripeJpegEncoder(out, width, height, QUALITY);
+
+        for (int top=0; top < height; top+=stripeRows) {
+            int rows=Math.min(stripeRows, height - top);
+
+            encoder.write(argb, top * width, width, rows);
+        }
+
+        encoder.finish();
+
+        BufferedImage decoded=
+                ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+
+        assertNotNull("Output is not a readable JPEG", decoded);
+        assertEquals(width, decoded.getWidth());
+        assertEquals(height, decoded.getHeight());
+
+        long total=0;
+        int worst=0;
+
+        for (int y=0; y < height; y++) {
+            for (int x=0; x < width; x++) {
+                int expected=argb[y * width + x];
+                int actual=decoded.getRGB(x, y);
+
+                for (int shift=0; shift <= 16; shift+=8) {
+                    int error=Math.abs(((expected >> shift) & 0xFF)
+                            - ((actual >> shift) & 0xFF));
+
+                    total+=error;
+                    worst=Math.max(worst, error);
+                }
+            }
+        }
+
+        double mean=(double)total / (width * height * 3);
+
+        assertTrue("Mean channel error " + mean, mean <= MAX_MEAN_ERROR);
+        assertTrue("Worst channel error " + worst, worst <= MAX_PIXEL_ERROR);
+    }
+
+    // smooth in each channel, so that quality 100 should come
+    // back nearly unchanged
+
+    private static int[] gradient(int width, int height) {
+        int[] result=new int[width * height];
+
+        for (int y=0; y < height; y++) {
+            for (int x=0; x < width; x++) {
+                int red=x * 255 / Math.max(1, width - 1);
+                int green=y * 255 / Math.max(1, height - 1);
+                int blue=(x + y) * 255 / Math.max(1, width + height - 2);
+
+                result[y * width + x]=
+                        0xFF000000 | (red << 16) | (green << 8) | blue;
+            }
+        }
+
+        return(result);
+    }
+}